@@ -50,6 +50,7 @@ import io.reactivex.disposables.CompositeDisposable
 abstract class BaseTweetListFragment : BaseListFragment() {
 
     private lateinit var disposable: CompositeDisposable
+    private lateinit var prefetchScrollListener: PrefetchScrollListener
     lateinit var listViewModel: ListViewModel
 
     protected abstract val listRepository: ListViewModel.ListRepository
@@ -115,6 +116,14 @@ abstract class BaseTweetListFragment : BaseListFragment() {
             layoutManager.scrollToPosition(seeingPosition)
         }
 
+        prefetchScrollListener = PrefetchScrollListener(
+                layoutManager,
+                listViewModel.listModel,
+                client.postCache
+        )
+        recyclerView.addOnScrollListener(prefetchScrollListener)
+        prefetchScrollListener.reset(seeingPosition)
+
         val adapterObservableBinder = convertObservableConsumer(
                 recyclerView,
                 adapter,
@@ -143,6 +152,7 @@ abstract class BaseTweetListFragment : BaseListFragment() {
                         .getListEventObservable()
                         .observeOn(AndroidSchedulers.mainThread())
                         .subscribe {
+                            prefetchScrollListener.reset()
                             adapterObservableBinder.invoke(it)
 
                             if (isRefreshing) {
@@ -187,6 +197,8 @@ abstract class BaseTweetListFragment : BaseListFragment() {
 
     override fun onDestroyView() {
         disposable.dispose()
+        prefetchScrollListener.dispose()
+        recyclerView.removeOnScrollListener(prefetchScrollListener)
         listViewModel.listModel.removeOldCache(firstVisibleItemPosition())
         recyclerView.swapAdapter(null, true)
         super.onDestroyView()
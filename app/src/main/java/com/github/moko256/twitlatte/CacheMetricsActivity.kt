@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte
+
+import android.os.Bundle
+import android.widget.TextView
+import androidx.appcompat.app.AppCompatActivity
+import com.github.moko256.twitlatte.metrics.CacheMetrics
+import com.github.moko256.twitlatte.metrics.LatencyHistogram
+import com.github.moko256.twitlatte.metrics.MetricsRegistry
+import com.github.moko256.twitlatte.metrics.SchedulerMetrics
+import java.util.Locale
+
+/**
+ * Shows [MetricsRegistry] for debugging. Tap the text to reload it.
+ */
+class CacheMetricsActivity : AppCompatActivity() {
+
+    private lateinit var metricsTextView: TextView
+
+    public override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+        setContentView(R.layout.activity_cache_metrics)
+
+        supportActionBar?.apply {
+            setDisplayHomeAsUpEnabled(true)
+            setHomeAsUpIndicator(R.drawable.ic_back_white_24dp)
+        }
+
+        metricsTextView = findViewById(R.id.cache_metrics_text)
+        metricsTextView.setOnClickListener {
+            render()
+        }
+    }
+
+    override fun onResume() {
+        super.onResume()
+        render()
+    }
+
+    override fun onSupportNavigateUp(): Boolean {
+        finish()
+        return true
+    }
+
+    private fun render() {
+        val caches = MetricsRegistry.caches().map { describe(it) }
+        val schedulers = MetricsRegistry.schedulers().map { describe(it) }
+        metricsTextView.text = (listOf(describePools()) + caches + schedulers).joinToString("\n\n")
+    }
+
+    private fun describePools(): String {
+        val cacheManager = getCacheManager()
+        return StringBuilder()
+                .appendln("memory pools")
+                .append("  weight       ${cacheManager.memoryCacheWeight() / 1024}KiB of ${cacheManager.memoryCacheMaxWeight() / 1024}KiB")
+                .toString()
+    }
+
+    private fun describe(metrics: CacheMetrics): String {
+        val lookups = metrics.lookups()
+        fun ratio(count: Long) = if (lookups == 0L) {
+            "$count"
+        } else {
+            String.format(Locale.US, "%d (%.1f%%)", count, count * 100.0 / lookups)
+        }
+
+        return StringBuilder()
+                .appendln(metrics.name)
+                .appendln("  lookups      $lookups")
+                .appendln("  memory hits  ${ratio(metrics.memoryHits.get())}")
+                .appendln("  disk hits    ${ratio(metrics.diskHits.get())}")
+                .appendln("  misses       ${ratio(metrics.misses.get())}")
+                .appendln("  evictions    ${metrics.evictions.get()}")
+                .appendln("  disk reads   ${describe(metrics.diskReads)}")
+                .appendln("  disk writes  ${describe(metrics.diskWrites)}")
+                .append("  rows written ${metrics.rowsWritten.get()} (${metrics.rowsUnchanged.get()} unchanged skipped)")
+                .toString()
+    }
+
+    private fun describe(metrics: SchedulerMetrics): String {
+        return StringBuilder()
+                .appendln(metrics.name)
+                .appendln("  queue depth  ${metrics.queueDepth.get()} (max ${metrics.maxQueueDepth.get()})")
+                .appendln("  wait         ${describe(metrics.waitTimes)}")
+                .append("  run          ${describe(metrics.runTimes)}")
+                .toString()
+    }
+
+    private fun describe(histogram: LatencyHistogram): String {
+        val count = histogram.count()
+        return if (count == 0L) {
+            "-"
+        } else {
+            String.format(
+                    Locale.US,
+                    "n=%d mean=%.2fms p50<%.2fms p99<%.2fms",
+                    count,
+                    histogram.meanNanos() / 1e6,
+                    histogram.percentileNanos(0.5) / 1e6,
+                    histogram.percentileNanos(0.99) / 1e6
+            )
+        }
+    }
+}
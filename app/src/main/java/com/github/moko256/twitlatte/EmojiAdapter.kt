@@ -20,24 +20,53 @@ import android.content.Context
 import android.view.ViewGroup
 import android.widget.ImageView
 import androidx.annotation.DrawableRes
+import androidx.collection.ArraySet
+import androidx.collection.LruCache
 import androidx.recyclerview.widget.RecyclerView
 import com.bumptech.glide.RequestManager
 import com.github.moko256.latte.client.base.entity.Emoji
 import com.github.moko256.twitlatte.view.dpToPx
+import io.reactivex.Single
+import io.reactivex.disposables.CompositeDisposable
+
+private const val PAGE_SIZE = 50
+private const val LIMIT_OF_CACHED_PAGES = 8
 
 /**
+ * Shows emojis of a catalog on the disk, loading only pages of them around the shown position.
+ *
  * Created by moko256 on 2018/12/11.
  *
  * @author moko256
  */
 class EmojiAdapter(
-        private val list: List<Emoji>,
         private val context: Context,
         private val glideRequests: RequestManager,
+        private val loadPage: (offset: Int, limit: Int) -> Single<List<Emoji>>,
         private val onEmojiClick: (Emoji) -> Unit,
         private val onLoadClick: () -> Unit
 ) : RecyclerView.Adapter<EmojiViewHolder>() {
 
+    private val pages = LruCache<Int, List<Emoji>>(LIMIT_OF_CACHED_PAGES)
+    private val loadingPages = ArraySet<Int>()
+    private val disposable = CompositeDisposable()
+
+    /**
+     * The number of emojis in the catalog. Pages loaded before are dropped when this is set.
+     */
+    var count: Int = 0
+        set(value) {
+            field = value
+            disposable.clear()
+            loadingPages.clear()
+            pages.evictAll()
+            notifyDataSetChanged()
+        }
+
+    fun dispose() {
+        disposable.dispose()
+    }
+
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): EmojiViewHolder {
         val imageView = ImageView(context)
         val dp32 = context.dpToPx(32)
@@ -49,15 +78,22 @@ class EmojiAdapter(
     }
 
     override fun getItemCount(): Int {
-        return list.size + 1
+        return count + 1
     }
 
     override fun onBindViewHolder(holder: EmojiViewHolder, position: Int) {
-        if (position != list.size) {
-            val emoji = list[position]
-            holder.setImage(emoji.url)
-            holder.itemView.setOnClickListener {
-                onEmojiClick(emoji)
+        if (position != count) {
+            val page = position / PAGE_SIZE
+            val emoji = pages[page]?.getOrNull(position % PAGE_SIZE)
+            if (emoji != null) {
+                holder.setImage(emoji.url)
+                holder.itemView.setOnClickListener {
+                    onEmojiClick(emoji)
+                }
+            } else {
+                holder.clearImage()
+                holder.itemView.setOnClickListener(null)
+                requestPage(page)
             }
         } else {
             holder.setImage(R.drawable.list_add_icon)
@@ -67,6 +103,24 @@ class EmojiAdapter(
         }
     }
 
+    private fun requestPage(page: Int) {
+        if (loadingPages.add(page)) {
+            disposable.add(
+                    loadPage(page * PAGE_SIZE, PAGE_SIZE).subscribe(
+                            {
+                                loadingPages.remove(page)
+                                pages.put(page, it)
+                                notifyItemRangeChanged(page * PAGE_SIZE, it.size)
+                            },
+                            {
+                                loadingPages.remove(page)
+                                it.printStackTrace()
+                            }
+                    )
+            )
+        }
+    }
+
     override fun onViewRecycled(holder: EmojiViewHolder) {
         holder.clearImage()
     }
@@ -17,7 +17,9 @@
 package com.github.moko256.twitlatte
 
 import android.app.Activity
+import android.app.ActivityManager
 import android.app.Application
+import android.content.Context
 import android.content.Intent
 import android.os.Looper
 import android.preference.PreferenceManager
@@ -29,11 +31,14 @@ import com.github.moko256.latte.client.base.entity.Friendship
 import com.github.moko256.latte.client.twitter.okhttp.replaceOkHttpClient
 import com.github.moko256.twitlatte.api.generateApiClient
 import com.github.moko256.twitlatte.api.generateMediaUrlConverter
-import com.github.moko256.twitlatte.cacheMap.StatusCacheMap
-import com.github.moko256.twitlatte.cacheMap.UserCacheMap
+import com.github.moko256.twitlatte.cacheMap.AccountCacheManager
+import com.github.moko256.twitlatte.collections.ConcurrentLruCache
 import com.github.moko256.twitlatte.collections.LruCache
 import com.github.moko256.twitlatte.entity.Client
 import com.github.moko256.twitlatte.glide.GlideModule
+import com.github.moko256.twitlatte.metrics.METRICS_API_CLIENTS
+import com.github.moko256.twitlatte.metrics.METRICS_FRIENDSHIPS
+import com.github.moko256.twitlatte.metrics.MetricsRegistry
 import com.github.moko256.twitlatte.model.AccountsModel
 import com.github.moko256.twitlatte.net.appOkHttpClientInstance
 import com.github.moko256.twitlatte.repository.KEY_ACCOUNT_KEY
@@ -51,17 +56,23 @@ import io.reactivex.android.schedulers.AndroidSchedulers
 
 private const val INTENT_CLIENT_KEY = "intent_client_key"
 const val LIMIT_OF_SIZE_OF_STATUSES_LIST = 1000
-const val LIMIT_OF_SIZE_OF_OBJECT_CACHE = 250
+
+/**
+ * Each of the status and user memory caches, shared by all accounts,
+ * may use 1/[OBJECT_CACHE_HEAP_DIVIDER] of the app's heap.
+ */
+private const val OBJECT_CACHE_HEAP_DIVIDER = 64
 
 lateinit var preferenceRepository: PreferenceRepository
 
 class GlobalApplication : Application() {
 
-    private val apiClientCache = LruCache<Int, ApiClient>(4)
-    private val friendshipCache = LruCache<Long, Friendship>(20)
+    private val apiClientCache = LruCache<Int, ApiClient>(4, MetricsRegistry.cache(METRICS_API_CLIENTS))
+    private val friendshipCache = ConcurrentLruCache<Long, Friendship>(20, MetricsRegistry.cache(METRICS_FRIENDSHIPS))
 
     internal var currentClient: Client? = null
     internal lateinit var accountsModel: AccountsModel
+    internal lateinit var cacheManager: AccountCacheManager
 
     override fun onCreate() {
         RxAndroidPlugins.setInitMainThreadSchedulerHandler {
@@ -72,6 +83,7 @@ class GlobalApplication : Application() {
                 PreferenceManager.getDefaultSharedPreferences(this)
         )
         accountsModel = AccountsModel(this)
+        cacheManager = AccountCacheManager(this)
 
         AppCompatDelegate.setCompatVectorFromResourcesEnabled(true)
         AppCompatDelegate.setDefaultNightMode(
@@ -99,27 +111,41 @@ class GlobalApplication : Application() {
 
     fun initCurrentClient(accessToken: AccessToken) {
         friendshipCache.clearIfNotEmpty()
-        val context = applicationContext
-        val statusCache = currentClient?.statusCache?.apply { close() }
-        val userCache = currentClient?.userCache?.apply { close() }
-        currentClient = Client(
+        currentClient = createClient(accessToken, friendshipCache)
+    }
+
+    fun clearCurrentClient() {
+        currentClient = null
+    }
+
+    /**
+     * Closes caches of [accessToken] in background. Call this when the account is logged out,
+     * after switching to another account, so that its fragments do not read the caches any more.
+     * The current client is cleared here if it is still of [accessToken].
+     */
+    fun removeCaches(accessToken: AccessToken) {
+        if (currentClient?.accessToken == accessToken) {
+            clearCurrentClient()
+        }
+        cacheManager.remove(accessToken)
+    }
+
+    internal fun createClient(
+            accessToken: AccessToken,
+            friendshipCache: ConcurrentLruCache<Long, Friendship>
+    ): Client {
+        val caches = cacheManager.get(accessToken)
+        return Client(
                 accessToken,
                 createApiClientInstance(accessToken),
                 generateMediaUrlConverter(accessToken.clientType),
-                StatusCacheMap(statusCache, context, accessToken),
-                UserCacheMap(userCache, context, accessToken),
+                caches.statusCache,
+                caches.userCache,
+                caches.postCache,
                 friendshipCache
         )
     }
 
-    fun clearCurrentClient() {
-        currentClient?.apply {
-            statusCache.close()
-            userCache.close()
-        }
-        currentClient = null
-    }
-
     fun createApiClientInstance(accessToken: AccessToken): ApiClient {
         val hash = accessToken.getHash()
         return apiClientCache.get(hash)
@@ -137,19 +163,19 @@ fun Activity.getClient(): Client? {
                 if (it == application.currentClient?.accessToken) {
                     application.currentClient
                 } else {
-                    val context = application.applicationContext
-                    Client(
+                    application.createClient(
                             it,
-                            application.createApiClientInstance(it),
-                            generateMediaUrlConverter(it.clientType),
-                            StatusCacheMap(null, context, it),
-                            UserCacheMap(null, context, it),
-                            LruCache(20)
+                            ConcurrentLruCache(20, MetricsRegistry.cache(METRICS_FRIENDSHIPS))
                     )
                 }
             } ?: application.currentClient
 }
 
+fun Context.getObjectCacheBudget(): Long {
+    val memoryClass = (getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager).memoryClass
+    return memoryClass * 1024L * 1024L / OBJECT_CACHE_HEAP_DIVIDER
+}
+
 fun Intent.setAccountKey(accessToken: AccessToken) = apply {
     putExtra(INTENT_CLIENT_KEY, accessToken.getKeyString())
 }
@@ -163,4 +189,6 @@ fun Intent.setAccountKeyForActivity(activity: Activity): Intent {
 
 fun Activity.getCurrentClient() = (application as GlobalApplication).currentClient
 
-fun Activity.getAccountsModel() = (application as GlobalApplication).accountsModel
\ No newline at end of file
+fun Activity.getAccountsModel() = (application as GlobalApplication).accountsModel
+
+fun Activity.getCacheManager() = (application as GlobalApplication).cacheManager
\ No newline at end of file
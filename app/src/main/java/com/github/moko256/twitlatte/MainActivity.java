@@ -251,6 +251,8 @@ public class MainActivity extends AppCompatActivity implements
                                 ((GlobalApplication) getApplication()).clearCurrentClient();
                                 startActivityForResult(new Intent(this, OAuthActivity.class), REQUEST_OAUTH);
                             }
+                            // After the fragments of the account are replaced
+                            ((GlobalApplication) getApplication()).removeCaches(token);
                         }
                 )
                 .setNegativeButton(android.R.string.cancel, null)
@@ -52,7 +52,8 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.RequestManager;
-import com.github.moko256.latte.client.base.entity.Emoji;
+import com.github.moko256.twitlatte.database.CachedEmojisSQLiteOpenHelper;
+import com.github.moko256.twitlatte.database.DiskScheduler;
 import com.github.moko256.twitlatte.entity.Client;
 import com.github.moko256.twitlatte.model.base.PostStatusModel;
 import com.github.moko256.twitlatte.model.impl.PostStatusModelImpl;
@@ -64,7 +65,6 @@ import com.github.moko256.twitlatte.widget.ImageKeyboardEditText;
 import com.google.android.material.snackbar.Snackbar;
 
 import java.util.ArrayList;
-import java.util.List;
 import java.util.Objects;
 
 import io.reactivex.Single;
@@ -120,7 +120,6 @@ public class PostActivity extends AppCompatActivity {
     private AddedImagesAdapter addedImagesAdapter;
     private RecyclerView emojiInputRecyclerView;
     private EmojiAdapter emojiAdapter;
-    private List<Emoji> emojiList = new ArrayList<>();
     private CheckBox isPossiblySensitive;
     private Spinner postVisibility;
     private CheckBox addLocation;
@@ -156,7 +155,10 @@ public class PostActivity extends AppCompatActivity {
         client = GlobalApplicationKt.getClient(this);
         model = new PostStatusModelImpl(
                 getContentResolver(),
-                client.getApiClient()
+                client.getApiClient(),
+                client.getAccessToken().getClientType() == CLIENT_TYPE_MASTODON
+                        ? new CachedEmojisSQLiteOpenHelper(getApplicationContext(), client.getAccessToken())
+                        : null
         );
         disposable = new CompositeDisposable();
 
@@ -313,9 +315,11 @@ public class PostActivity extends AppCompatActivity {
 
         if (client.getAccessToken().getClientType() == CLIENT_TYPE_MASTODON) {
             emojiAdapter = new EmojiAdapter(
-                    emojiList,
                     this,
                     requestManager,
+                    (offset, limit) -> model.getCustomEmojis(offset, limit)
+                            .subscribeOn(DiskScheduler.INSTANCE.getReader())
+                            .observeOn(AndroidSchedulers.mainThread()),
                     emoji -> {
                         int selectionEnd = editText.getSelectionEnd();
                         String shortCode = emoji.getShortCode();
@@ -332,22 +336,11 @@ public class PostActivity extends AppCompatActivity {
                         return Unit.INSTANCE;
                     },
                     () -> {
-                        disposable.add(
-                                model.requestCustomEmojis()
-                                        .subscribeOn(Schedulers.io())
-                                        .observeOn(AndroidSchedulers.mainThread())
-                                        .subscribe(
-                                                emojis -> {
-                                                    emojiList.clear();
-                                                    emojiList.addAll(emojis);
-                                                    emojiAdapter.notifyDataSetChanged();
-                                                },
-                                                this::errorNotify
-                                        )
-                        );
+                        requestCustomEmojis(true);
                         return Unit.INSTANCE;
                     }
             );
+            requestCustomEmojis(false);
             contentWarningText.setFilters(NoSpanInputFilterKt.getNoSpanInputFilter());
             emojiInputRecyclerView.setLayoutManager(new LinearLayoutManager(this, RecyclerView.HORIZONTAL, false));
             emojiInputRecyclerView.setAdapter(emojiAdapter);
@@ -569,6 +562,25 @@ public class PostActivity extends AppCompatActivity {
         );
     }
 
+    private void requestCustomEmojis(boolean forceRefresh) {
+        disposable.add(
+                model.requestCustomEmojis(forceRefresh)
+                        .subscribeOn(Schedulers.io())
+                        .observeOn(AndroidSchedulers.mainThread())
+                        .subscribe(
+                                count -> emojiAdapter.setCount(count),
+                                e -> {
+                                    if (forceRefresh) {
+                                        errorNotify(e);
+                                    } else {
+                                        // Emojis on the disk are shown until the user loads them
+                                        e.printStackTrace();
+                                    }
+                                }
+                        )
+        );
+    }
+
     private void errorNotify(Throwable e) {
         Snackbar.make(
                 rootViewGroup,
@@ -696,9 +708,11 @@ public class PostActivity extends AppCompatActivity {
         addLocation = null;
         postVisibility = null;
         isPossiblySensitive = null;
-        emojiList = null;
         emojiInputRecyclerView = null;
-        emojiAdapter = null;
+        if (emojiAdapter != null) {
+            emojiAdapter.dispose();
+            emojiAdapter = null;
+        }
         addedImagesAdapter.clearImages();
         addedImagesAdapter = null;
         imagesRecyclerView = null;
@@ -709,6 +723,7 @@ public class PostActivity extends AppCompatActivity {
         userIcon = null;
         actionBar = null;
         postButton = null;
+        model.close();
         model = null;
         client = null;
     }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte
+
+import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.recyclerview.widget.RecyclerView
+import androidx.recyclerview.widget.StaggeredGridLayoutManager
+import com.github.moko256.twitlatte.cacheMap.PostCache
+import com.github.moko256.twitlatte.database.DiskScheduler
+import com.github.moko256.twitlatte.model.base.ListModel
+import io.reactivex.disposables.Disposable
+
+private const val PREFETCH_COUNT = 20
+
+/**
+ * Loads posts which will be shown next into the memory cache in background,
+ * so that binding them on the main thread does not read the database.
+ */
+class PrefetchScrollListener(
+        private val layoutManager: RecyclerView.LayoutManager,
+        private val listModel: ListModel,
+        private val postCache: PostCache
+) : RecyclerView.OnScrollListener() {
+
+    private var prefetchedFrom = 0
+    private var prefetchedTo = 0
+
+    private var request: Disposable? = null
+
+    override fun onScrolled(recyclerView: RecyclerView, dx: Int, dy: Int) {
+        if (dy >= 0) {
+            val from = lastVisibleItemPosition() + 1
+            prefetch(from, from + PREFETCH_COUNT)
+        } else {
+            val to = firstVisibleItemPosition()
+            prefetch(to - PREFETCH_COUNT, to)
+        }
+    }
+
+    /**
+     * Forgets prefetched range and prefetches posts from [position].
+     * Call this when the list is attached or positions in the list are changed.
+     */
+    fun reset(position: Int = firstVisibleItemPosition()) {
+        prefetchedFrom = 0
+        prefetchedTo = 0
+        val from = position.coerceAtLeast(0)
+        prefetch(from, from + PREFETCH_COUNT)
+    }
+
+    fun dispose() {
+        request?.dispose()
+        request = null
+    }
+
+    private fun prefetch(from: Int, to: Int) {
+        val size = listModel.getIdsList().size
+        val start = from.coerceIn(0, size)
+        val end = to.coerceIn(start, size)
+
+        if (start >= end || (prefetchedFrom <= start && end <= prefetchedTo)) {
+            return
+        }
+        prefetchedFrom = start
+        prefetchedTo = end
+
+        request?.dispose()
+        request = listModel.getIds(start, end)
+                .observeOn(DiskScheduler.reader)
+                .subscribe({ postCache.getPosts(it) }, { it.printStackTrace() })
+    }
+
+    private fun firstVisibleItemPosition(): Int {
+        return if (layoutManager is StaggeredGridLayoutManager) {
+            layoutManager.findFirstVisibleItemPositions(null).min() ?: 0
+        } else {
+            (layoutManager as LinearLayoutManager).findFirstVisibleItemPosition()
+        }
+    }
+
+    private fun lastVisibleItemPosition(): Int {
+        return if (layoutManager is StaggeredGridLayoutManager) {
+            layoutManager.findLastVisibleItemPositions(null).max() ?: 0
+        } else {
+            (layoutManager as LinearLayoutManager).findLastVisibleItemPosition()
+        }
+    }
+}
@@ -28,6 +28,7 @@ import com.github.moko256.twitlatte.viewmodel.ListViewModel
  */
 
 private const val BUNDLE_KEY_SEARCH_QUERY = "query"
+private const val LIMIT_OF_LOCAL_SEARCH_RESULTS = 100
 
 class SearchResultFragment : BaseTweetListFragment() {
 
@@ -55,6 +56,13 @@ class SearchResultFragment : BaseTweetListFragment() {
         } else {
             emptyList()
         }
+
+        override fun requestLocal(): List<Long> {
+            val ids = client.postCache.search(searchText, LIMIT_OF_LOCAL_SEARCH_RESULTS)
+            val posts = client.postCache.getPosts(ids.toLongArray())
+            // The index may have statuses already deleted from the caches
+            return ids.filterIndexed { i, _ -> posts[i] != null }
+        }
     }
 
 }
\ No newline at end of file
@@ -125,9 +125,10 @@ public class SettingsFragment extends PreferenceFragmentCompat {
                         .setCancelable(true)
                         .setPositiveButton(R.string.do_logout,
                                 (dialog, i) -> {
-                                    accountsModel.delete(accountsModel.get(
+                                    AccessToken token = accountsModel.get(
                                             GlobalApplicationKt.preferenceRepository.getString(KEY_ACCOUNT_KEY, "-1")
-                                    ));
+                                    );
+                                    accountsModel.delete(token);
 
                                     int point = accountsModel.size() - 1;
                                     if (point != -1) {
@@ -150,6 +151,8 @@ public class SettingsFragment extends PreferenceFragmentCompat {
                                         startActivity(new Intent(getContext(), MainActivity.class)
                                                 .addFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK | Intent.FLAG_ACTIVITY_NEW_TASK));
                                     }
+                                    // After the current client is switched from the account
+                                    ((GlobalApplication) requireActivity().getApplication()).removeCaches(token);
                                 }
                         )
                         .setNegativeButton(android.R.string.cancel, null)
@@ -184,6 +187,12 @@ public class SettingsFragment extends PreferenceFragmentCompat {
                 return true;
             });
 
+            Preference cacheMetrics = findPreference("cache_metrics");
+            cacheMetrics.setOnPreferenceClickListener(preference -> {
+                startActivity(new Intent(getContext(), CacheMetricsActivity.class));
+                return true;
+            });
+
             Preference version = findPreference("app_version");
             version.setSummary(BuildConfig.VERSION_NAME);
             version.setOnPreferenceClickListener(preference -> {
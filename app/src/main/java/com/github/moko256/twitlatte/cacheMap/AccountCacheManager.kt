@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.cacheMap
+
+import android.content.Context
+import com.github.moko256.latte.client.base.entity.AccessToken
+import com.github.moko256.latte.client.base.entity.StatusObject
+import com.github.moko256.latte.client.base.entity.User
+import com.github.moko256.twitlatte.collections.PartitionedLongLruCache
+import com.github.moko256.twitlatte.getObjectCacheBudget
+import com.github.moko256.twitlatte.metrics.METRICS_STATUSES
+import com.github.moko256.twitlatte.metrics.METRICS_USERS
+import com.github.moko256.twitlatte.metrics.MetricsRegistry
+import com.github.moko256.twitlatte.preferenceRepository
+import com.github.moko256.twitlatte.repository.DEFAULT_DISK_CACHE_BUDGET_MB
+import com.github.moko256.twitlatte.repository.KEY_DISK_CACHE_BUDGET
+import io.reactivex.Completable
+import io.reactivex.schedulers.Schedulers
+
+/**
+ * Hands out caches of each account.
+ *
+ * Every account gets one [AccountCaches] (and so one set of database helpers) for the process,
+ * whose memory caches are partitions of the status pool and the user pool shared by all accounts.
+ * Each pool is bounded by [getObjectCacheBudget] and evicts the least recently used object
+ * of a segment (See [PartitionedLongLruCache]), whichever account it belongs to. The disk caches of each account are compacted by a [DiskCacheCompactor]
+ * on start and after deletes, and statuses added to them are indexed by a [StatusSearchIndex].
+ */
+class AccountCacheManager(private val context: Context) {
+    private val statusPool = PartitionedLongLruCache(
+        context.getObjectCacheBudget(),
+        StatusObjectWeigher,
+        true,
+        MetricsRegistry.cache(METRICS_STATUSES)
+    )
+    private val userPool = PartitionedLongLruCache(
+        context.getObjectCacheBudget(),
+        UserWeigher,
+        true,
+        MetricsRegistry.cache(METRICS_USERS)
+    )
+
+    private val accounts = HashMap<String, AccountCaches>()
+    private var nextPartition = 0
+
+    fun get(accessToken: AccessToken): AccountCaches {
+        val key = accessToken.getKeyString()
+        synchronized(accounts) {
+            return accounts[key] ?: createCaches(accessToken).also {
+                accounts[key] = it
+            }
+        }
+    }
+
+    private fun createCaches(accessToken: AccessToken): AccountCaches {
+        val partition = nextPartition++
+        val statusCache = StatusCacheMap(statusPool.partition(partition), context, accessToken)
+        val userCache = UserCacheMap(userPool.partition(partition), context, accessToken)
+        val compactor = DiskCacheCompactor(
+            statusCache.diskCache,
+            userCache.diskCache,
+            accessToken.userId
+        ) {
+            preferenceRepository.getString(KEY_DISK_CACHE_BUDGET, DEFAULT_DISK_CACHE_BUDGET_MB).toLong() * 1024 * 1024
+        }
+        statusCache.deleteListener = compactor::schedule
+        compactor.schedule()
+        val searchIndex = StatusSearchIndex(context, accessToken)
+        return AccountCaches(
+            statusCache,
+            userCache,
+            PostCache(statusCache, userCache, searchIndex),
+            compactor,
+            searchIndex
+        )
+    }
+
+    /**
+     * Closes caches of [accessToken] and drops its objects from the memory caches.
+     * Call this when the account is logged out, after clients and lists of the account are detached,
+     * as they may still read the caches until then.
+     *
+     * Returns immediately; pending writes are flushed and databases are closed in background.
+     */
+    fun remove(accessToken: AccessToken) {
+        synchronized(accounts) {
+            accounts.remove(accessToken.getKeyString())
+        }?.let { caches ->
+            Completable.fromAction { caches.close() }
+                .subscribeOn(Schedulers.io())
+                .subscribe({}, { it.printStackTrace() })
+        }
+    }
+
+    /**
+     * Estimated bytes retained by the memory caches of all accounts, for diagnostics.
+     */
+    fun memoryCacheWeight(): Long = statusPool.weight() + userPool.weight()
+
+    /**
+     * Bytes the memory caches of all accounts may retain, for diagnostics.
+     */
+    fun memoryCacheMaxWeight(): Long = statusPool.maxWeight() + userPool.maxWeight()
+}
+
+class AccountCaches(
+    val statusCache: StatusCacheMap,
+    val userCache: UserCacheMap,
+    val postCache: PostCache,
+    private val compactor: DiskCacheCompactor,
+    private val searchIndex: StatusSearchIndex
+) {
+    fun close() {
+        compactor.close()
+        statusCache.close()
+        userCache.close()
+        searchIndex.close()
+    }
+}
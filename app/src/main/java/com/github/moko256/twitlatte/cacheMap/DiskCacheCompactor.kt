@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.cacheMap
+
+import com.github.moko256.twitlatte.database.CachedStatusesSQLiteOpenHelper
+import com.github.moko256.twitlatte.database.CachedUsersSQLiteOpenHelper
+import com.github.moko256.twitlatte.database.DiskScheduler
+import com.github.moko256.twitlatte.database.utils.checkpointWal
+import com.github.moko256.twitlatte.database.utils.databaseSize
+import com.github.moko256.twitlatte.database.utils.freePageRatio
+import com.github.moko256.twitlatte.database.utils.vacuum
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+private const val COMPACTION_BATCH_SIZE = 200
+private const val VACUUM_FREE_PAGE_RATIO = 0.25
+private const val IDLE_THREAD_KEEP_ALIVE_SECONDS = 30L
+private const val CLOSE_TIMEOUT_SECONDS = 5L
+
+/**
+ * Reclaims disk space of the status and user caches of one account in background.
+ *
+ * A pass deletes statuses which no list counts, then, only if the database is larger than [diskBudget],
+ * users who did not post or repeat any cached status at the time of their batch, and finally vacuums the database
+ * if its free pages exceed [VACUUM_FREE_PAGE_RATIO]. The WAL file, which the deletes and the vacuum fill,
+ * is checkpointed at the end.
+ * Rows are examined in transactions of [COMPACTION_BATCH_SIZE] rows, each run on the writer of the database
+ * (See [DiskScheduler]), so that other writes wait for one small batch at most.
+ */
+class DiskCacheCompactor(
+        private val statuses: CachedStatusesSQLiteOpenHelper,
+        private val users: CachedUsersSQLiteOpenHelper,
+        private val keepUserId: Long,
+        private val diskBudget: () -> Long
+) {
+    private val lock = Any()
+    private var isScheduled = false
+
+    @Volatile
+    private var isClosed = false
+
+    private val executor = ThreadPoolExecutor(
+            0, 1,
+            IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            LinkedBlockingQueue<Runnable>()
+    ) {
+        Thread(it, "DiskCacheCompactor").apply {
+            priority = Thread.MIN_PRIORITY
+        }
+    }
+
+    /**
+     * Runs a pass in background unless one is already waiting.
+     */
+    fun schedule() {
+        synchronized(lock) {
+            if (isScheduled || isClosed) {
+                return
+            }
+            isScheduled = true
+        }
+        executor.execute {
+            synchronized(lock) {
+                isScheduled = false
+            }
+            try {
+                compact()
+            } catch (e: Throwable) {
+                e.printStackTrace()
+            }
+        }
+    }
+
+    fun compact() {
+        var fromId: Long? = Long.MIN_VALUE
+        while (fromId != null && !isClosed) {
+            val from: Long = fromId
+            fromId = DiskScheduler.runWrite(statuses.databaseName) {
+                statuses.deleteUncountedStatuses(from, COMPACTION_BATCH_SIZE)
+            }
+        }
+
+        // The statuses and the users are in the same file (See CacheSQLiteOpenHelper)
+        if (!isClosed && statuses.databaseSize() > diskBudget()) {
+            var fromUserId: Long? = Long.MIN_VALUE
+            while (fromUserId != null && !isClosed) {
+                val from: Long = fromUserId
+                fromUserId = DiskScheduler.runWrite(users.databaseName) {
+                    users.deleteUnreferencedUsers(keepUserId, from, COMPACTION_BATCH_SIZE)
+                }
+            }
+        }
+
+        if (!isClosed && statuses.freePageRatio() > VACUUM_FREE_PAGE_RATIO) {
+            DiskScheduler.runWrite(statuses.databaseName) {
+                statuses.vacuum()
+            }
+        }
+
+        if (!isClosed) {
+            DiskScheduler.runWrite(statuses.databaseName) {
+                statuses.checkpointWal()
+            }
+        }
+    }
+
+    /**
+     * Stops after the current batch. Call this before closing the databases.
+     */
+    fun close() {
+        isClosed = true
+        executor.shutdown()
+        executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.cacheMap
+
+import com.github.moko256.twitlatte.collections.LongLruCache
+
+/**
+ * Remembers ids which were not found in the disk cache, so that they are not queried again
+ * until they are added.
+ *
+ * A miss is remembered only if no id was added while it was read from the disk,
+ * otherwise the result of the read may be older than the add.
+ */
+class MissingIdCache(capacity: Int) {
+    private val ids = LongLruCache<Boolean>(capacity)
+    private var generation = 0L
+
+    fun contains(id: Long): Boolean = ids.get(id) != null
+
+    /**
+     * @return a token to pass to [put] after reading the disk
+     */
+    fun generation(): Long = synchronized(ids) { generation }
+
+    fun put(id: Long, generation: Long) {
+        synchronized(ids) {
+            if (generation == this.generation) {
+                ids.put(id, true)
+            }
+        }
+    }
+
+    fun invalidate(id: Long) {
+        synchronized(ids) {
+            generation++
+            ids.remove(id)
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.cacheMap
+
+import com.github.moko256.latte.client.base.entity.*
+import com.github.moko256.latte.html.entity.Link
+import com.github.moko256.twitlatte.collections.Weigher
+
+// Rough estimation of retained heap bytes of cached entities
+private const val OBJECT_HEADER = 16
+private const val REFERENCE = 4
+private const val DATE = OBJECT_HEADER + 8
+
+object StatusObjectWeigher : Weigher<StatusObject> {
+    override fun weigh(value: StatusObject): Int {
+        return when (value) {
+            is Repeat -> OBJECT_HEADER + 3 * 8 + REFERENCE + DATE
+            is Status -> {
+                var size = OBJECT_HEADER + 26 * 8 + DATE
+
+                size += weighString(value.text)
+                size += weighString(value.sourceName)
+                size += weighString(value.sourceWebsite)
+                size += weighString(value.inReplyToScreenName)
+                size += weighString(value.lang)
+                size += weighString(value.url)
+                size += weighString(value.spoilerText)
+                size += weighString(value.visibility)
+
+                value.mentions?.let { mentions ->
+                    size += weighArray(mentions.size)
+                    mentions.forEach { size += weighString(it) }
+                }
+                size += weighLinks(value.urls)
+                value.medias?.let { medias ->
+                    size += weighArray(medias.size)
+                    medias.forEach {
+                        size += OBJECT_HEADER + 4 * REFERENCE
+                        size += weighString(it.thumbnailUrl)
+                        size += weighString(it.originalUrl)
+                        size += weighString(it.downloadVideoUrl)
+                        size += weighString(it.mediaType)
+                    }
+                }
+                size += weighEmojis(value.emojis)
+                value.card?.let {
+                    size += OBJECT_HEADER + 4 * REFERENCE
+                    size += weighString(it.title)
+                    size += weighString(it.description)
+                    size += weighString(it.url)
+                    size += weighString(it.imageUrl)
+                }
+                value.poll?.let { poll ->
+                    size += OBJECT_HEADER + 8 * 8 + DATE
+                    size += weighArray(poll.optionTitles.size)
+                    poll.optionTitles.forEach { size += weighString(it) }
+                    size += weighArray(poll.optionCounts.size) + poll.optionCounts.size * OBJECT_HEADER
+                }
+
+                size
+            }
+        }
+    }
+}
+
+object UserWeigher : Weigher<User> {
+    override fun weigh(value: User): Int {
+        var size = OBJECT_HEADER + 17 * 8 + DATE
+
+        size += weighString(value.name)
+        size += weighString(value.screenName)
+        size += weighString(value.description)
+        size += weighString(value.location)
+        size += weighString(value.url)
+        size += weighString(value.profileBannerImageUrl)
+        size += weighString(value.profileImageURLHttps)
+        size += weighLinks(value.descriptionLinks)
+        size += weighEmojis(value.emojis)
+
+        return size
+    }
+}
+
+private fun weighString(string: String?): Int = if (string != null) {
+    OBJECT_HEADER + 8 + weighArray(0) + string.length * 2
+} else {
+    0
+}
+
+private fun weighArray(length: Int) = OBJECT_HEADER + length * REFERENCE
+
+private fun weighLinks(links: Array<Link>?): Int {
+    var size = 0
+    links?.let {
+        size += weighArray(it.size)
+        it.forEach { link ->
+            size += OBJECT_HEADER + REFERENCE + 8 + weighString(link.url)
+        }
+    }
+    return size
+}
+
+private fun weighEmojis(emojis: Array<Emoji>?): Int {
+    var size = 0
+    emojis?.let {
+        size += weighArray(it.size)
+        it.forEach { emoji ->
+            size += OBJECT_HEADER + 2 * REFERENCE + weighString(emoji.shortCode) + weighString(emoji.url)
+        }
+    }
+    return size
+}
@@ -17,19 +17,176 @@
 package com.github.moko256.twitlatte.cacheMap
 
 import com.github.moko256.latte.client.base.entity.*
+import com.github.moko256.twitlatte.collections.LongLruCache
+import com.github.moko256.twitlatte.database.DiskScheduler
+import com.github.moko256.twitlatte.metrics.METRICS_POSTS
+import com.github.moko256.twitlatte.metrics.MetricsRegistry
 import java.util.*
 
+private const val LIMIT_OF_SIZE_OF_ASSEMBLED_POSTS = 128
+
 /**
  * Created by moko256 on 2018/10/05.
  *
  * @author moko256
  */
-class PostCache(
+class PostCache @JvmOverloads constructor(
         private val statusCache: StatusCacheMap,
-        private val userCache: UserCacheMap
+        private val userCache: UserCacheMap,
+        private val searchIndex: StatusSearchIndex? = null
 ) {
+    /**
+     * Memory hits are posts found in [assembledPosts], misses are posts assembled again.
+     * Disk reads are counted by [statusCache] and [userCache].
+     */
+    private val metrics = MetricsRegistry.cache(METRICS_POSTS)
+
+    /**
+     * Posts already assembled from [statusCache] and [userCache].
+     * Guarded by itself with [generation] to invalidate them.
+     */
+    private val assembledPosts = LongLruCache<Post>(LIMIT_OF_SIZE_OF_ASSEMBLED_POSTS, metrics)
+
+    /**
+     * Incremented on every invalidation, so that a post assembled from objects
+     * that are updated meanwhile is not stored to [assembledPosts].
+     */
+    private var generation = 0L
+
+    init {
+        statusCache.updateListener = { ids ->
+            invalidate(ids) { post, sortedIds ->
+                post.id in sortedIds
+                        || post.repeat?.repeatedStatusId in sortedIds
+                        || post.status?.quotedStatusId in sortedIds
+            }
+        }
+        userCache.updateListener = { ids ->
+            invalidate(ids) { post, sortedIds ->
+                post.repeat?.userId in sortedIds
+                        || post.status?.userId in sortedIds
+                        || post.quotedRepeatingStatus?.userId in sortedIds
+            }
+        }
+    }
+
     fun getPost(postId: Long): Post? {
-        return statusCache.get(postId)?.let { statusObject ->
+        assembledPosts.get(postId)?.let {
+            metrics.memoryHits.incrementAndGet()
+            return it
+        }
+        metrics.misses.incrementAndGet()
+
+        val startGeneration = synchronized(assembledPosts) { generation }
+        val post = assemblePost(postId, statusCache::get, userCache::get)
+        if (post != null) {
+            synchronized(assembledPosts) {
+                if (generation == startGeneration) {
+                    assembledPosts.put(postId, post)
+                }
+            }
+        }
+        return post
+    }
+
+    /**
+     * Puts [posts] read from a snapshot into the memory cache without touching the disk caches,
+     * so that they can be shown before the databases are opened.
+     */
+    fun preload(posts: List<Post>) {
+        synchronized(assembledPosts) {
+            posts.forEach {
+                if (assembledPosts.get(it.id) == null) {
+                    assembledPosts.put(it.id, it)
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts posts of [count] ids from [fromPosition] of the list [listName] into the memory cache,
+     * assembled by one query of the disk cache.
+     *
+     * Call this on the writer of the disk cache (See [DiskScheduler]): statuses and users waiting to be written
+     * are flushed first, and the posts are dropped if any of them is updated meanwhile.
+     */
+    fun preloadList(listName: String, fromPosition: Int, count: Int) {
+        val startGeneration = synchronized(assembledPosts) { generation }
+        statusCache.flush()
+        userCache.flush()
+
+        val posts = statusCache.diskCache.getPosts(listName, fromPosition, count)
+        synchronized(assembledPosts) {
+            if (generation == startGeneration) {
+                posts.forEach {
+                    if (it != null && assembledPosts.get(it.id) == null) {
+                        assembledPosts.put(it.id, it)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets posts of [ids] with one query for statuses and one query for users at most.
+     *
+     * @return posts in the same order as [ids], null if not cached
+     */
+    fun getPosts(ids: LongArray): List<Post?> {
+        val posts = arrayOfNulls<Post>(ids.size)
+        val missing = LongArray(ids.size)
+        var missingCount = 0
+
+        ids.forEachIndexed { i, id ->
+            val post = assembledPosts.get(id)
+            if (post != null) {
+                posts[i] = post
+            } else {
+                missing[missingCount++] = id
+            }
+        }
+        metrics.memoryHits.addAndGet((ids.size - missingCount).toLong())
+        metrics.misses.addAndGet(missingCount.toLong())
+
+        if (missingCount > 0) {
+            val startGeneration = synchronized(assembledPosts) { generation }
+            val statuses = statusCache.getAllWithReferences(missing.copyOf(missingCount))
+
+            val userIds = LongArray(statuses.size())
+            for (i in 0 until statuses.size()) {
+                userIds[i] = when (val statusObject = statuses.valueAt(i)) {
+                    is Repeat -> statusObject.userId
+                    is Status -> statusObject.userId
+                }
+            }
+            val users = userCache.getAll(userIds)
+
+            ids.forEachIndexed { i, id ->
+                if (posts[i] == null) {
+                    posts[i] = assemblePost(id, { statuses[it] }, { users[it] })
+                }
+            }
+
+            synchronized(assembledPosts) {
+                if (generation == startGeneration) {
+                    posts.forEach {
+                        if (it != null) {
+                            assembledPosts.put(it.id, it)
+                        }
+                    }
+                }
+            }
+        }
+
+        return posts.asList()
+    }
+
+    private inline fun assemblePost(
+            postId: Long,
+            getStatus: (Long) -> StatusObject?,
+            getUser: (Long) -> User?
+    ): Post? {
+        return getStatus(postId)?.let { statusObject ->
             val repeat: Repeat?
             val repeatedUser: User?
 
@@ -42,8 +199,8 @@ class PostCache(
             when (statusObject) {
                 is Repeat -> {
                     repeat = statusObject
-                    repeatedUser = userCache.get(statusObject.userId)
-                    status = statusCache.get(statusObject.repeatedStatusId) as Status?
+                    repeatedUser = getUser(statusObject.userId)
+                    status = getStatus(statusObject.repeatedStatusId) as Status?
                 }
                 is Status -> {
                     repeat = null
@@ -53,10 +210,10 @@ class PostCache(
             }
 
             if (status != null) {
-                user = userCache.get(status.userId)
-                quotedStatus = statusCache.get(status.quotedStatusId) as Status?
+                user = getUser(status.userId)
+                quotedStatus = getStatus(status.quotedStatusId) as Status?
                 quoteUser = quotedStatus?.let {
-                    userCache.get(it.userId)
+                    getUser(it.userId)
                 }
             } else {
                 user = null
@@ -83,6 +240,7 @@ class PostCache(
             }
             status.status?.let {
                 statusCache.add(it, incrementCount)
+                searchIndex?.addAll(listOf(it), listOfNotNull(status.user))
             }
         } else {
             addAll(listOf(status), incrementCount)
@@ -143,6 +301,33 @@ class PostCache(
             userCache.addAll(users)
 
             statusCache.addAll(statuses, incrementCount, *excludeIncrementIds)
+
+            searchIndex?.addAll(statuses.filterIsInstance<Status>(), users)
+        }
+    }
+
+    /**
+     * Searches text, spoiler text and names of users of statuses added to this cache.
+     *
+     * @return ids of posts matching all words of [query], newest first
+     */
+    fun search(query: String, limit: Int): List<Long> {
+        return searchIndex?.search(query, limit) ?: emptyList()
+    }
+
+    private inline fun invalidate(ids: LongArray, crossinline refers: (Post, SortedIds) -> Boolean) {
+        val sortedIds = SortedIds(ids)
+        synchronized(assembledPosts) {
+            generation++
+            assembledPosts.removeIf { refers(it, sortedIds) }
         }
     }
+
+    private class SortedIds(private val ids: LongArray) {
+        init {
+            ids.sort()
+        }
+
+        operator fun contains(id: Long?) = id != null && ids.binarySearch(id) >= 0
+    }
 }
\ No newline at end of file
@@ -18,13 +18,20 @@ package com.github.moko256.twitlatte.cacheMap
 
 import android.content.Context
 import androidx.collection.ArraySet
+import androidx.collection.LongSparseArray
 import com.github.moko256.latte.client.base.entity.AccessToken
+import com.github.moko256.latte.client.base.entity.Repeat
 import com.github.moko256.latte.client.base.entity.Status
 import com.github.moko256.latte.client.base.entity.StatusObject
 import com.github.moko256.latte.client.base.entity.getId
-import com.github.moko256.twitlatte.LIMIT_OF_SIZE_OF_OBJECT_CACHE
-import com.github.moko256.twitlatte.collections.LruCache
+import com.github.moko256.twitlatte.collections.PartitionedLongLruCache
+import com.github.moko256.twitlatte.collections.contains
 import com.github.moko256.twitlatte.database.CachedStatusesSQLiteOpenHelper
+import com.github.moko256.twitlatte.database.DiskScheduler
+import com.github.moko256.twitlatte.metrics.METRICS_STATUSES
+import com.github.moko256.twitlatte.metrics.MetricsRegistry
+
+private const val LIMIT_OF_SIZE_OF_MISSING_IDS = 512
 
 /**
  * Created by moko256 on 2016/12/22.
@@ -32,35 +39,196 @@ import com.github.moko256.twitlatte.database.CachedStatusesSQLiteOpenHelper
  * @author moko256
  */
 
-class StatusCacheMap(base: StatusCacheMap?, context: Context, accessToken: AccessToken) {
+class StatusCacheMap(
+    private val cache: PartitionedLongLruCache.Partition<StatusObject>,
+    context: Context,
+    accessToken: AccessToken
+) {
+
+    private val metrics = MetricsRegistry.cache(METRICS_STATUSES)
+
+    /**
+     * Called with ids of statuses updated by add or addAll.
+     */
+    var updateListener: ((ids: LongArray) -> Unit)? = null
+
+    /**
+     * Called after statuses are deleted from the disk cache.
+     */
+    var deleteListener: (() -> Unit)? = null
 
-    private val cache: LruCache<Long, StatusObject> =
-        base?.cache ?: LruCache(LIMIT_OF_SIZE_OF_OBJECT_CACHE)
+    /**
+     * Also used by [DiskCacheCompactor] to reclaim rows in background.
+     */
+    internal val diskCache = CachedStatusesSQLiteOpenHelper(context, accessToken, true)
+
+    private val writeQueue = WriteBehindQueue<StatusObject>(diskCache.databaseName) { statuses, increments ->
+        val written = metrics.diskWrites.time {
+            diskCache.addCachedStatuses(statuses, increments)
+        }
+        metrics.rowsWritten.addAndGet(written.toLong())
+        metrics.rowsUnchanged.addAndGet((statuses.size - written).toLong())
+    }
 
-    private val diskCache = CachedStatusesSQLiteOpenHelper(context, accessToken)
+    private val missingIds = MissingIdCache(LIMIT_OF_SIZE_OF_MISSING_IDS)
 
     fun close() {
+        writeQueue.close()
         diskCache.close()
-        cache.clearIfNotEmpty()
+        cache.clear()
     }
 
     fun get(id: Long): StatusObject? {
-        val memoryCache = cache.get(id)
-        return memoryCache ?: try {
-            val storageCache = diskCache.getCachedStatus(id)
-            if (storageCache != null) {
-                cache.put(storageCache.getId(), storageCache)
+        if (id == -1L) {
+            return null
+        }
+        val memoryCache = cache.get(id) ?: writeQueue.get(id)
+        if (memoryCache != null) {
+            metrics.memoryHits.incrementAndGet()
+            return memoryCache
+        }
+        if (missingIds.contains(id)) {
+            metrics.misses.incrementAndGet()
+            return null
+        }
+
+        val generation = missingIds.generation()
+        val storageCache = try {
+            metrics.diskReads.time {
+                diskCache.getCachedStatus(id)
+            }
+        } catch (e: Throwable) {
+            // A failed read does not prove that the status is missing
+            e.printStackTrace()
+            metrics.misses.incrementAndGet()
+            return null
+        }
+        if (storageCache != null) {
+            metrics.diskHits.incrementAndGet()
+            cache.put(storageCache.getId(), storageCache)
+        } else {
+            metrics.misses.incrementAndGet()
+            missingIds.put(id, generation)
+        }
+        return storageCache
+    }
+
+    fun getAll(ids: LongArray): LongSparseArray<StatusObject> {
+        val result = LongSparseArray<StatusObject>(ids.size)
+        val missing = LongArray(ids.size)
+        var missingCount = 0
+
+        for (id in ids) {
+            if (id != -1L && result.indexOfKey(id) < 0) {
+                val memoryCache = cache.get(id) ?: writeQueue.get(id)
+                if (memoryCache != null) {
+                    metrics.memoryHits.incrementAndGet()
+                    result.put(id, memoryCache)
+                } else if (missingIds.contains(id)) {
+                    metrics.misses.incrementAndGet()
+                } else if (!missing.contains(id, missingCount)) {
+                    missing[missingCount++] = id
+                }
+            }
+        }
+
+        if (missingCount > 0) {
+            loadFromDisk(result, missing, missingCount) {
+                diskCache.getCachedStatuses(it)
+            }
+        }
+        return result
+    }
+
+    /**
+     * Gets statuses of [ids] with statuses repeated or quoted by them,
+     * loading all statuses not in the memory cache by a single query.
+     */
+    fun getAllWithReferences(ids: LongArray): LongSparseArray<StatusObject> {
+        val result = LongSparseArray<StatusObject>(ids.size * 2)
+        val missing = LongArray(ids.size * 3)
+        var missingCount = 0
+
+        fun getFromMemory(id: Long): StatusObject? {
+            if (id == -1L) {
+                return null
+            }
+            result[id]?.let { return it }
+
+            val memoryCache = cache.get(id) ?: writeQueue.get(id)
+            if (memoryCache != null) {
+                metrics.memoryHits.incrementAndGet()
+                result.put(id, memoryCache)
+            } else if (missingIds.contains(id)) {
+                metrics.misses.incrementAndGet()
+            } else if (!missing.contains(id, missingCount)) {
+                missing[missingCount++] = id
+            }
+            return memoryCache
+        }
+
+        for (id in ids) {
+            val statusObject = getFromMemory(id)
+            val status = if (statusObject is Repeat) {
+                getFromMemory(statusObject.repeatedStatusId)
+            } else {
+                statusObject
+            }
+            if (status is Status) {
+                getFromMemory(status.quotedStatusId)
+            }
+        }
+
+        if (missingCount > 0) {
+            loadFromDisk(result, missing, missingCount) {
+                diskCache.getCachedStatusesWithReferences(it)
+            }
+        }
+        return result
+    }
+
+    private inline fun loadFromDisk(
+        result: LongSparseArray<StatusObject>,
+        missing: LongArray,
+        missingCount: Int,
+        load: (ids: LongArray) -> List<StatusObject>
+    ) {
+        val generation = missingIds.generation()
+        try {
+            metrics.diskReads.time {
+                load(missing.copyOf(missingCount))
+            }.forEach {
+                val id = it.getId()
+                cache.put(id, it)
+                result.put(id, it)
+            }
+            for (i in 0 until missingCount) {
+                val id = missing[i]
+                if (result.indexOfKey(id) < 0) {
+                    metrics.misses.incrementAndGet()
+                    missingIds.put(id, generation)
+                } else {
+                    metrics.diskHits.incrementAndGet()
+                }
             }
-            storageCache
         } catch (e: Throwable) {
             e.printStackTrace()
-            null
+            metrics.misses.addAndGet(missingCount.toLong())
         }
     }
 
+    /**
+     * Flushes statuses added but not written to the disk yet.
+     */
+    fun flush() {
+        writeQueue.flush()
+    }
+
     fun add(c: Status, incrementCount: Boolean) {
         cache.put(c.id, c)
-        diskCache.addCachedStatus(c, incrementCount)
+        missingIds.invalidate(c.id)
+        writeQueue.enqueue(c.id, c, if (incrementCount) 1 else 0)
+        updateListener?.invoke(longArrayOf(c.id))
     }
 
     fun addAll(
@@ -69,12 +237,24 @@ class StatusCacheMap(base: StatusCacheMap?, context: Context, accessToken: Acces
         vararg excludeIncrementIds: Long
     ) {
         c.forEach {
-            cache.put(it.getId(), it)
+            val id = it.getId()
+            cache.offer(id, it)
+            missingIds.invalidate(id)
+            writeQueue.enqueue(
+                id,
+                it,
+                if (incrementCount && !excludeIncrementIds.contains(id)) 1 else 0
+            )
         }
 
-        diskCache.addCachedStatuses(c, incrementCount, *excludeIncrementIds)
+        updateListener?.let { listener ->
+            listener(c.map { it.getId() }.toLongArray())
+        }
     }
 
+    /**
+     * Runs on the writer of the disk cache and waits for it (See [DiskScheduler]).
+     */
     fun delete(ids: List<Long>) {
         val list = ArraySet<Long>(ids.size * 6)
         for (id in ids) {
@@ -82,12 +262,19 @@ class StatusCacheMap(base: StatusCacheMap?, context: Context, accessToken: Acces
                 list.add(id)
             }
         }
-        val use = diskCache.getIdsInUse(list)
 
-        if (use.isNotEmpty()) {
-            list.addAll(use)
+        DiskScheduler.runWrite(diskCache.databaseName) {
+            // Counts of pending statuses have to be written before they are decremented
+            writeQueue.flush()
+
+            val use = diskCache.getIdsInUse(list)
+
+            if (use.isNotEmpty()) {
+                list.addAll(use)
+            }
+            diskCache.deleteCachedStatuses(list)
         }
-        diskCache.deleteCachedStatuses(list)
+        deleteListener?.invoke()
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.cacheMap
+
+import android.content.Context
+import com.github.moko256.latte.client.base.entity.AccessToken
+import com.github.moko256.latte.client.base.entity.Status
+import com.github.moko256.latte.client.base.entity.User
+import com.github.moko256.twitlatte.database.CachedSearchIndexSQLiteOpenHelper
+import com.github.moko256.twitlatte.database.SearchIndexEntry
+
+/**
+ * Full-text index of statuses added to the caches of an account, written behind like the caches.
+ */
+class StatusSearchIndex(context: Context, accessToken: AccessToken) {
+
+    private val index = CachedSearchIndexSQLiteOpenHelper(context, accessToken, true)
+
+    private val writeQueue = WriteBehindQueue<SearchIndexEntry>(index.databaseName) { entries, _ ->
+        index.addEntries(entries)
+    }
+
+    /**
+     * Indexes [statuses] with names of their users in [users], if found.
+     */
+    fun addAll(statuses: Collection<Status>, users: Collection<User>) {
+        val usersById = users.associateBy { it.id }
+        statuses.forEach { status ->
+            val user = usersById[status.userId]
+            writeQueue.enqueue(
+                    status.id,
+                    SearchIndexEntry(status.id, status.text, status.spoilerText, user?.name, user?.screenName),
+                    0
+            )
+        }
+    }
+
+    /**
+     * Searches statuses indexed and waiting to be indexed.
+     *
+     * @return ids of statuses matching all words of [query], newest first
+     */
+    fun search(query: String, limit: Int): List<Long> {
+        writeQueue.flush()
+        return try {
+            index.search(query, limit)
+        } catch (e: Throwable) {
+            e.printStackTrace()
+            emptyList()
+        }
+    }
+
+    fun close() {
+        writeQueue.close()
+        index.close()
+    }
+}
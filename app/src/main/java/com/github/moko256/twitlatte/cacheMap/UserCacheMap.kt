@@ -17,11 +17,16 @@
 package com.github.moko256.twitlatte.cacheMap
 
 import android.content.Context
+import androidx.collection.LongSparseArray
 import com.github.moko256.latte.client.base.entity.AccessToken
 import com.github.moko256.latte.client.base.entity.User
-import com.github.moko256.twitlatte.LIMIT_OF_SIZE_OF_OBJECT_CACHE
-import com.github.moko256.twitlatte.collections.LruCache
+import com.github.moko256.twitlatte.collections.PartitionedLongLruCache
+import com.github.moko256.twitlatte.collections.contains
 import com.github.moko256.twitlatte.database.CachedUsersSQLiteOpenHelper
+import com.github.moko256.twitlatte.metrics.METRICS_USERS
+import com.github.moko256.twitlatte.metrics.MetricsRegistry
+
+private const val LIMIT_OF_SIZE_OF_MISSING_IDS = 256
 
 /**
  * Created by moko256 on 2016/12/22.
@@ -29,40 +34,141 @@ import com.github.moko256.twitlatte.database.CachedUsersSQLiteOpenHelper
  * @author moko256
  */
 
-class UserCacheMap(base: UserCacheMap?, context: Context, accessToken: AccessToken) {
+class UserCacheMap(
+    private val cache: PartitionedLongLruCache.Partition<User>,
+    context: Context,
+    accessToken: AccessToken
+) {
+
+    private val metrics = MetricsRegistry.cache(METRICS_USERS)
+
+    /**
+     * Called with ids of users updated by add or addAll.
+     */
+    var updateListener: ((ids: LongArray) -> Unit)? = null
 
-    private val cache: LruCache<Long, User> = base?.cache ?: LruCache(LIMIT_OF_SIZE_OF_OBJECT_CACHE)
-    private val diskCache = CachedUsersSQLiteOpenHelper(context, accessToken)
+    /**
+     * Also used by [DiskCacheCompactor] to reclaim rows in background.
+     */
+    internal val diskCache = CachedUsersSQLiteOpenHelper(context, accessToken, true)
+
+    private val writeQueue = WriteBehindQueue<User>(diskCache.databaseName) { users, _ ->
+        val written = metrics.diskWrites.time {
+            diskCache.addCachedUsers(users)
+        }
+        metrics.rowsWritten.addAndGet(written.toLong())
+        metrics.rowsUnchanged.addAndGet((users.size - written).toLong())
+    }
+
+    private val missingIds = MissingIdCache(LIMIT_OF_SIZE_OF_MISSING_IDS)
 
     fun close() {
+        writeQueue.close()
         diskCache.close()
-        cache.clearIfNotEmpty()
+        cache.clear()
     }
 
     fun add(user: User) {
         cache.put(user.id, user)
-        diskCache.addCachedUser(user)
+        missingIds.invalidate(user.id)
+        writeQueue.enqueue(user.id, user, 0)
+        updateListener?.invoke(longArrayOf(user.id))
     }
 
     fun addAll(c: Collection<User>) {
         if (c.isNotEmpty()) {
             c.forEach {
-                cache.put(it.id, it)
+                cache.offer(it.id, it)
+                missingIds.invalidate(it.id)
+                writeQueue.enqueue(it.id, it, 0)
+            }
+            updateListener?.let { listener ->
+                listener(c.map { it.id }.toLongArray())
             }
-            diskCache.addCachedUsers(c)
         }
     }
 
+    /**
+     * Flushes users added but not written to the disk yet.
+     */
+    fun flush() {
+        writeQueue.flush()
+    }
+
     fun get(id: Long): User? {
-        val memoryCache = cache.get(id)
-        return if (memoryCache == null) {
-            val storageCache = diskCache.getCachedUser(id)
-            if (storageCache != null) {
-                cache.put(storageCache.id, storageCache)
+        val memoryCache = cache.get(id) ?: writeQueue.get(id)
+        if (memoryCache != null) {
+            metrics.memoryHits.incrementAndGet()
+            return memoryCache
+        }
+        if (missingIds.contains(id)) {
+            metrics.misses.incrementAndGet()
+            return null
+        }
+
+        val generation = missingIds.generation()
+        val storageCache = try {
+            metrics.diskReads.time {
+                diskCache.getCachedUser(id)
             }
-            storageCache
+        } catch (e: Throwable) {
+            // A failed read does not prove that the user is missing
+            e.printStackTrace()
+            metrics.misses.incrementAndGet()
+            return null
+        }
+        if (storageCache != null) {
+            metrics.diskHits.incrementAndGet()
+            cache.put(storageCache.id, storageCache)
         } else {
-            memoryCache
+            metrics.misses.incrementAndGet()
+            missingIds.put(id, generation)
+        }
+        return storageCache
+    }
+
+    fun getAll(ids: LongArray): LongSparseArray<User> {
+        val result = LongSparseArray<User>(ids.size)
+        val missing = LongArray(ids.size)
+        var missingCount = 0
+
+        for (id in ids) {
+            if (result.indexOfKey(id) < 0) {
+                val memoryCache = cache.get(id) ?: writeQueue.get(id)
+                if (memoryCache != null) {
+                    metrics.memoryHits.incrementAndGet()
+                    result.put(id, memoryCache)
+                } else if (missingIds.contains(id)) {
+                    metrics.misses.incrementAndGet()
+                } else if (!missing.contains(id, missingCount)) {
+                    missing[missingCount++] = id
+                }
+            }
+        }
+
+        if (missingCount > 0) {
+            val generation = missingIds.generation()
+            try {
+                metrics.diskReads.time {
+                    diskCache.getCachedUsers(missing.copyOf(missingCount))
+                }.forEach {
+                    cache.put(it.id, it)
+                    result.put(it.id, it)
+                }
+                for (i in 0 until missingCount) {
+                    val id = missing[i]
+                    if (result.indexOfKey(id) < 0) {
+                        metrics.misses.incrementAndGet()
+                        missingIds.put(id, generation)
+                    } else {
+                        metrics.diskHits.incrementAndGet()
+                    }
+                }
+            } catch (e: Throwable) {
+                e.printStackTrace()
+                metrics.misses.addAndGet(missingCount.toLong())
+            }
         }
+        return result
     }
 }
\ No newline at end of file
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.cacheMap
+
+import androidx.collection.LongSparseArray
+import com.github.moko256.twitlatte.database.DiskScheduler
+
+/**
+ * Queue of values waiting to be written to the disk cache.
+ *
+ * Values are coalesced by id (the last one wins, count increments are summed)
+ * and written by [write] in one call on the writer of [databaseName] (See [DiskScheduler]),
+ * so that they are serialized with other writes to the file.
+ * [get] returns values which are not written yet, so that readers do not miss them.
+ * A batch whose write fails is put back under newer values and written again with the next batch.
+ */
+class WriteBehindQueue<V>(
+        private val databaseName: String?,
+        private val write: (values: List<V>, increments: IntArray) -> Unit
+) {
+    private val lock = Any()
+
+    private var pending = LongSparseArray<PendingValue<V>>()
+    private var writing: LongSparseArray<PendingValue<V>>? = null
+    private var isScheduled = false
+
+    private var isClosed = false
+
+    private val executor = DiskScheduler.writeExecutor(databaseName)
+
+    /**
+     * Values enqueued after [close] are dropped, as the database may be closed.
+     */
+    fun enqueue(id: Long, value: V, increment: Int) {
+        synchronized(lock) {
+            if (isClosed) {
+                return
+            }
+            val pendingValue = pending[id]
+            if (pendingValue == null) {
+                pending.put(id, PendingValue(value, increment))
+            } else {
+                pendingValue.value = value
+                pendingValue.increment += increment
+            }
+            scheduleIfNeeded()
+        }
+    }
+
+    /**
+     * @return the value of [id] that is not written to the disk yet, or null
+     */
+    fun get(id: Long): V? {
+        synchronized(lock) {
+            return (pending[id] ?: writing?.get(id))?.value
+        }
+    }
+
+    /**
+     * Blocks until all values enqueued before are written.
+     */
+    fun flush() {
+        DiskScheduler.runWrite(databaseName) { writePending() }
+    }
+
+    /**
+     * Writes all values enqueued before. Values enqueued after this are dropped.
+     */
+    fun close() {
+        val wasClosed = synchronized(lock) {
+            isClosed.also { isClosed = true }
+        }
+        if (!wasClosed) {
+            flush()
+        }
+    }
+
+    private fun scheduleIfNeeded() {
+        if (!isScheduled) {
+            isScheduled = true
+            executor.execute { writePending() }
+        }
+    }
+
+    private fun writePending() {
+        val batch = synchronized(lock) {
+            isScheduled = false
+            val batch = pending
+            if (batch.isEmpty) {
+                return
+            }
+            pending = LongSparseArray()
+            writing = batch
+            batch
+        }
+
+        val failure = try {
+            val size = batch.size()
+            val values = ArrayList<V>(size)
+            val increments = IntArray(size)
+            for (i in 0 until size) {
+                val pendingValue = batch.valueAt(i)
+                values.add(pendingValue.value)
+                increments[i] = pendingValue.increment
+            }
+            write(values, increments)
+            null
+        } catch (e: Throwable) {
+            e
+        }
+
+        synchronized(lock) {
+            writing = null
+            if (failure != null) {
+                requeue(batch)
+            }
+        }
+        failure?.printStackTrace()
+    }
+
+    /**
+     * Puts [batch] back without scheduling, so that a failing disk is not retried in a loop.
+     * Newer values of the same id win and the increments are summed.
+     */
+    private fun requeue(batch: LongSparseArray<PendingValue<V>>) {
+        for (i in 0 until batch.size()) {
+            val id = batch.keyAt(i)
+            val failedValue = batch.valueAt(i)
+            val pendingValue = pending[id]
+            if (pendingValue == null) {
+                pending.put(id, failedValue)
+            } else {
+                pendingValue.increment += failedValue.increment
+            }
+        }
+    }
+
+    private class PendingValue<V>(var value: V, var increment: Int)
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.collections
+
+import com.github.moko256.twitlatte.metrics.CacheMetrics
+import org.jetbrains.annotations.TestOnly
+
+private const val MAX_SEGMENTS = 8
+private const val MIN_SEGMENT_CAPACITY = 16
+
+/**
+ * Lock-striped version of [LruCache].
+ *
+ * Keys are spread over independent segments, each one is an [LruCache] with its own lock,
+ * so a `get` on the main thread only contends with writers that hit the same segment.
+ * The recency order is kept per segment, so eviction is approximately LRU.
+ */
+class ConcurrentLruCache<K, V>(capacity: Int, metrics: CacheMetrics? = null) {
+    private val segments: Array<LruCache<K, V>>
+    private val mask: Int
+
+    init {
+        var count = 1
+        while (count < MAX_SEGMENTS && capacity / (count * 2) >= MIN_SEGMENT_CAPACITY) {
+            count *= 2
+        }
+        mask = count - 1
+
+        val segmentCapacity = capacity / count
+        val remainder = capacity % count
+        segments = Array(count) {
+            LruCache<K, V>(if (it < remainder) segmentCapacity + 1 else segmentCapacity, metrics)
+        }
+    }
+
+    @TestOnly
+    fun valueIterable() = segments.asIterable().flatMap { it.valueIterable() }
+
+    @TestOnly
+    fun segmentCount() = segments.size
+
+    private fun segmentFor(key: K): LruCache<K, V> {
+        val h = key.hashCode()
+        return segments[(h xor (h ushr 16)) and mask]
+    }
+
+    fun get(key: K): V? {
+        return segmentFor(key).get(key)
+    }
+
+    fun put(key: K, value: V) {
+        segmentFor(key).put(key, value)
+    }
+
+    fun size(): Int {
+        return segments.sumBy { it.size() }
+    }
+
+    fun clear() {
+        segments.forEach { it.clear() }
+    }
+
+    fun clearIfNotEmpty() {
+        segments.forEach { it.clearIfNotEmpty() }
+    }
+}
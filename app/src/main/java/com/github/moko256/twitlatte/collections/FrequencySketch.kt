@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.collections
+
+private const val RESET_MASK = 0x7777777777777777L
+private val SEEDS = longArrayOf(
+    -0x3c5a37a36834ced9L,
+    -0x4b6d499041670d8dL,
+    -0x651e95c4d06fbfb1L,
+    -0x340d631b7bdddcdbL
+)
+
+/**
+ * Count-Min sketch of 4-bit counters to estimate the popularity of long keys (TinyLFU).
+ *
+ * Each long in the table holds sixteen counters. A key uses four counters in four different
+ * longs, and all counters are halved periodically so that old popularity fades out.
+ * Not thread safe, it is guarded by the owner's lock.
+ */
+class FrequencySketch(expectedEntries: Int) {
+    private var table = LongArray(0)
+    private var tableMask = 0
+    private var sampleSize = 0
+    private var size = 0
+
+    init {
+        ensureCapacity(expectedEntries)
+    }
+
+    /**
+     * Resizes the table to hold [expectedEntries] keys, keeping counts.
+     */
+    fun ensureCapacity(expectedEntries: Int) {
+        var length = 8
+        while (length < expectedEntries) {
+            length *= 2
+        }
+        if (length > table.size) {
+            // The counter of a key at index i of the old table is at an index congruent to i in the new one,
+            // at the same offset in the long. Copying the old table to each part keeps the estimates,
+            // which may only be overestimated like those of colliding keys.
+            val oldTable = table
+            table = LongArray(length)
+            if (oldTable.isNotEmpty()) {
+                for (i in table.indices) {
+                    table[i] = oldTable[i and tableMask]
+                }
+            }
+            tableMask = length - 1
+            sampleSize = length * 10
+        }
+    }
+
+    /**
+     * @param hash mixed hash of the key, see [mixLong]
+     * @return estimated count of the key, 0 to 15
+     */
+    fun frequency(hash: Long): Int {
+        val start = (hash.toInt() and 3) shl 2
+        var frequency = Int.MAX_VALUE
+        for (i in 0..3) {
+            val index = indexOf(hash, i)
+            val count = ((table[index] ushr ((start + i) shl 2)) and 0xfL).toInt()
+            if (count < frequency) {
+                frequency = count
+            }
+        }
+        return frequency
+    }
+
+    /**
+     * @param hash mixed hash of the key, see [mixLong]
+     */
+    fun increment(hash: Long) {
+        val start = (hash.toInt() and 3) shl 2
+
+        var added = false
+        for (i in 0..3) {
+            val index = indexOf(hash, i)
+            val offset = (start + i) shl 2
+            val mask = 0xfL shl offset
+            if ((table[index] and mask) != mask) {
+                table[index] += 1L shl offset
+                added = true
+            }
+        }
+
+        if (added) {
+            size++
+            if (size >= sampleSize) {
+                reset()
+            }
+        }
+    }
+
+    fun clear() {
+        table.fill(0L)
+        size = 0
+    }
+
+    private fun reset() {
+        for (i in table.indices) {
+            table[i] = (table[i] ushr 1) and RESET_MASK
+        }
+        size /= 2
+    }
+
+    private fun indexOf(hash: Long, i: Int): Int {
+        var h = (hash + SEEDS[i]) * SEEDS[i]
+        h += h ushr 32
+        return h.toInt() and tableMask
+    }
+}
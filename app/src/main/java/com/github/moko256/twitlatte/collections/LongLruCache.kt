@@ -0,0 +1,486 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.collections
+
+import com.github.moko256.twitlatte.metrics.CacheMetrics
+import org.jetbrains.annotations.TestOnly
+
+private const val MAX_SEGMENTS = 8
+private const val MIN_SEGMENT_CAPACITY = 16L
+private const val MIN_SEGMENT_WEIGHT = 64 * 1024L
+
+private const val INITIAL_SEGMENT_CAPACITY = 16
+
+/**
+ * [ConcurrentLruCache] specialized for primitive long keys.
+ *
+ * Each segment is an open-addressing table (linear probing, backward shift deletion)
+ * over parallel arrays, and the recency order is an intrusive linked list of array indices,
+ * so neither `get` nor `put` boxes the key or allocates an entry object.
+ *
+ * The cache is bounded either by the count of entries or, when a [Weigher] is given,
+ * by the total weight of values.
+ *
+ * With admission enabled, [offer] admits a new entry only if a [FrequencySketch] estimates
+ * it is accessed more often than the entry it would evict, so that a burst of one-shot
+ * inserts does not flush popular entries. [get] and [put] always record and insert.
+ *
+ * Only evictions are counted to the given [CacheMetrics], because hits and misses are
+ * counted by the owner, which knows whether a miss is served by the disk.
+ */
+class LongLruCache<V> private constructor(
+    private val maxWeight: Long,
+    minSegmentWeight: Long,
+    weigher: Weigher<V>?,
+    admission: Boolean,
+    metrics: CacheMetrics?
+) {
+    private val segments: Array<LongLruSegment<V>>
+    private val mask: Int
+
+    constructor(
+        capacity: Int,
+        metrics: CacheMetrics? = null
+    ) : this(capacity.toLong(), MIN_SEGMENT_CAPACITY, null, false, metrics)
+
+    constructor(
+        maxWeight: Long,
+        weigher: Weigher<V>,
+        admission: Boolean = false,
+        metrics: CacheMetrics? = null
+    ) : this(maxWeight, MIN_SEGMENT_WEIGHT, weigher, admission, metrics)
+
+    init {
+        var count = 1
+        while (count < MAX_SEGMENTS && maxWeight / (count * 2) >= minSegmentWeight) {
+            count *= 2
+        }
+        mask = count - 1
+
+        val segmentWeight = maxWeight / count
+        val remainder = maxWeight % count
+        segments = Array(count) {
+            LongLruSegment(
+                if (it < remainder) segmentWeight + 1 else segmentWeight,
+                weigher,
+                admission,
+                metrics
+            )
+        }
+    }
+
+    @TestOnly
+    fun valueIterable() = segments.asIterable().flatMap { it.values() }
+
+    @TestOnly
+    fun segmentCount() = segments.size
+
+    private fun segmentFor(hash: Long) = segments[(hash ushr 32).toInt() and mask]
+
+    fun get(key: Long): V? = get(0, key)
+
+    fun put(key: Long, value: V) {
+        put(0, key, value)
+    }
+
+    /**
+     * Puts the value if the key is already cached, or if the admission policy accepts it.
+     *
+     * @return whether the value is cached
+     */
+    fun offer(key: Long, value: V): Boolean = offer(0, key, value)
+
+    fun remove(key: Long) {
+        val hash = hashOf(0, key)
+        segmentFor(hash).remove(0, key, hash)
+    }
+
+    // Keys of different owners are different keys, so that partitions of PartitionedLongLruCache
+    // share the cache without wrapping their entries.
+
+    internal fun get(owner: Int, key: Long): V? {
+        val hash = hashOf(owner, key)
+        return segmentFor(hash).get(owner, key, hash)
+    }
+
+    internal fun put(owner: Int, key: Long, value: V) {
+        val hash = hashOf(owner, key)
+        segmentFor(hash).put(owner, key, hash, value)
+    }
+
+    internal fun offer(owner: Int, key: Long, value: V): Boolean {
+        val hash = hashOf(owner, key)
+        return segmentFor(hash).offer(owner, key, hash, value)
+    }
+
+    /**
+     * Removes all entries of [owner].
+     */
+    internal fun removeOwner(owner: Int) {
+        segments.forEach { it.removeOwner(owner) }
+    }
+
+    /**
+     * Removes all entries whose value matches [predicate].
+     */
+    fun removeIf(predicate: (V) -> Boolean) {
+        segments.forEach { it.removeIf(predicate) }
+    }
+
+    fun size(): Int {
+        return segments.sumBy { it.size() }
+    }
+
+    /**
+     * Current total weight of cached values. It is equal to [size] if no [Weigher] is given.
+     */
+    fun weight(): Long {
+        return segments.fold(0L) { acc, segment -> acc + segment.weight() }
+    }
+
+    fun maxWeight() = maxWeight
+
+    fun clear() {
+        segments.forEach { it.clear() }
+    }
+
+    fun clearIfNotEmpty() {
+        segments.forEach {
+            if (it.size() > 0) {
+                it.clear()
+            }
+        }
+    }
+}
+
+/**
+ * Estimates the cost of a cached value, in any unit the cache's max weight is given in.
+ */
+interface Weigher<in V> {
+    fun weigh(value: V): Int
+}
+
+internal fun mixLong(key: Long): Long {
+    val h = key * -0x61c8864680b583ebL
+    return h xor (h ushr 29)
+}
+
+/** Keys of owners are spread apart before being mixed, and owner 0 hashes as [mixLong]. */
+private fun hashOf(owner: Int, key: Long) = mixLong(key xor (owner * -0x61c8864680b583ebL))
+
+private class LongLruSegment<V>(
+    private val maxWeight: Long,
+    private val weigher: Weigher<V>?,
+    admission: Boolean,
+    private val metrics: CacheMetrics?
+) {
+    private val sketch = if (admission) FrequencySketch(INITIAL_SEGMENT_CAPACITY) else null
+
+    /** Entry index + 1 for each slot, 0 means empty. */
+    private var table = IntArray(INITIAL_SEGMENT_CAPACITY * 2)
+    private var tableMask = table.size - 1
+
+    private var keys = LongArray(INITIAL_SEGMENT_CAPACITY)
+    private var owners = IntArray(INITIAL_SEGMENT_CAPACITY)
+    private var values = arrayOfNulls<Any>(INITIAL_SEGMENT_CAPACITY)
+    private var weights = IntArray(INITIAL_SEGMENT_CAPACITY)
+
+    /** Toward the most recently used entry. */
+    private var newer = IntArray(INITIAL_SEGMENT_CAPACITY)
+    /** Toward the least recently used entry. */
+    private var older = IntArray(INITIAL_SEGMENT_CAPACITY)
+
+    private var newest = -1
+    private var eldest = -1
+
+    private var size = 0
+    private var weight = 0L
+
+    /** Head of the list of free entries, chained by [older]. */
+    private var free = -1
+    private var allocated = 0
+
+    fun size() = size
+
+    fun weight() = weight
+
+    @Suppress("UNCHECKED_CAST")
+    fun values(): List<V> {
+        synchronized(this) {
+            val result = ArrayList<V>(size)
+            var e = eldest
+            while (e != -1) {
+                result.add(values[e] as V)
+                e = newer[e]
+            }
+            return result
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    fun get(owner: Int, key: Long, hash: Long): V? {
+        synchronized(this) {
+            sketch?.increment(hash)
+            val slot = findSlot(owner, key, hash)
+            return if (slot == -1) {
+                null
+            } else {
+                val e = table[slot] - 1
+                moveToNewest(e)
+                values[e] as V
+            }
+        }
+    }
+
+    fun put(owner: Int, key: Long, hash: Long, value: V) {
+        val valueWeight = weigher?.weigh(value) ?: 1
+
+        synchronized(this) {
+            sketch?.increment(hash)
+            insert(owner, key, hash, value, valueWeight, false)
+        }
+    }
+
+    fun offer(owner: Int, key: Long, hash: Long, value: V): Boolean {
+        val valueWeight = weigher?.weigh(value) ?: 1
+
+        synchronized(this) {
+            sketch?.increment(hash)
+            return insert(owner, key, hash, value, valueWeight, sketch != null)
+        }
+    }
+
+    fun remove(owner: Int, key: Long, hash: Long) {
+        synchronized(this) {
+            val slot = findSlot(owner, key, hash)
+            if (slot != -1) {
+                remove(table[slot] - 1, slot)
+            }
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    fun removeIf(predicate: (V) -> Boolean) {
+        synchronized(this) {
+            var e = eldest
+            while (e != -1) {
+                val next = newer[e]
+                if (predicate(values[e] as V)) {
+                    remove(e, slotOf(e))
+                }
+                e = next
+            }
+        }
+    }
+
+    fun removeOwner(owner: Int) {
+        synchronized(this) {
+            var e = eldest
+            while (e != -1) {
+                val next = newer[e]
+                if (owners[e] == owner) {
+                    remove(e, slotOf(e))
+                }
+                e = next
+            }
+        }
+    }
+
+    private fun insert(owner: Int, key: Long, hash: Long, value: V, valueWeight: Int, checkAdmission: Boolean): Boolean {
+        val slot = findSlot(owner, key, hash)
+        if (slot != -1) {
+            val e = table[slot] - 1
+            if (valueWeight > maxWeight) {
+                remove(e, slot)
+                return false
+            }
+            weight += valueWeight - weights[e]
+            values[e] = value
+            weights[e] = valueWeight
+            moveToNewest(e)
+        } else {
+            if (valueWeight > maxWeight) {
+                return false
+            }
+            if (checkAdmission && weight + valueWeight > maxWeight && !admit(hash)) {
+                return false
+            }
+            val e = allocate()
+
+            keys[e] = key
+            owners[e] = owner
+            values[e] = value
+            weights[e] = valueWeight
+
+            var i = hash.toInt() and tableMask
+            while (table[i] != 0) {
+                i = (i + 1) and tableMask
+            }
+            table[i] = e + 1
+
+            linkNewest(e)
+            size++
+            weight += valueWeight
+        }
+
+        while (weight > maxWeight) {
+            val victim = eldest
+            remove(victim, slotOf(victim))
+            metrics?.evictions?.incrementAndGet()
+        }
+        return true
+    }
+
+    private fun admit(candidateHash: Long): Boolean {
+        val sketch = sketch ?: return true
+        return eldest == -1 || sketch.frequency(candidateHash) > sketch.frequency(hashAt(eldest))
+    }
+
+    fun clear() {
+        synchronized(this) {
+            table.fill(0)
+            values.fill(null)
+            newest = -1
+            eldest = -1
+            size = 0
+            weight = 0
+            free = -1
+            allocated = 0
+            sketch?.clear()
+        }
+    }
+
+    private fun allocate(): Int {
+        if (free != -1) {
+            val e = free
+            free = older[e]
+            return e
+        }
+        if (allocated == keys.size) {
+            grow()
+        }
+        return allocated++
+    }
+
+    private fun grow() {
+        val capacity = keys.size * 2
+        keys = keys.copyOf(capacity)
+        owners = owners.copyOf(capacity)
+        values = values.copyOf(capacity)
+        weights = weights.copyOf(capacity)
+        newer = newer.copyOf(capacity)
+        older = older.copyOf(capacity)
+        sketch?.ensureCapacity(capacity)
+
+        table = IntArray(capacity * 2)
+        tableMask = table.size - 1
+        var e = eldest
+        while (e != -1) {
+            var i = hashAt(e).toInt() and tableMask
+            while (table[i] != 0) {
+                i = (i + 1) and tableMask
+            }
+            table[i] = e + 1
+            e = newer[e]
+        }
+    }
+
+    private fun remove(e: Int, slot: Int) {
+        removeSlot(slot)
+        unlink(e)
+        weight -= weights[e]
+        values[e] = null
+        older[e] = free
+        free = e
+        size--
+    }
+
+    private fun findSlot(owner: Int, key: Long, hash: Long): Int {
+        var i = hash.toInt() and tableMask
+        while (true) {
+            val e = table[i]
+            if (e == 0) {
+                return -1
+            }
+            if (keys[e - 1] == key && owners[e - 1] == owner) {
+                return i
+            }
+            i = (i + 1) and tableMask
+        }
+    }
+
+    private fun hashAt(e: Int) = hashOf(owners[e], keys[e])
+
+    private fun slotOf(e: Int) = findSlot(owners[e], keys[e], hashAt(e))
+
+    private fun removeSlot(slot: Int) {
+        var hole = slot
+        var i = slot
+        while (true) {
+            i = (i + 1) and tableMask
+            val e = table[i]
+            if (e == 0) {
+                break
+            }
+            val home = hashAt(e - 1).toInt() and tableMask
+            val movable = if (hole <= i) {
+                home <= hole || home > i
+            } else {
+                home <= hole && home > i
+            }
+            if (movable) {
+                table[hole] = e
+                hole = i
+            }
+        }
+        table[hole] = 0
+    }
+
+    private fun moveToNewest(e: Int) {
+        if (newest != e) {
+            unlink(e)
+            linkNewest(e)
+        }
+    }
+
+    private fun linkNewest(e: Int) {
+        newer[e] = -1
+        older[e] = newest
+        if (newest != -1) {
+            newer[newest] = e
+        }
+        newest = e
+        if (eldest == -1) {
+            eldest = e
+        }
+    }
+
+    private fun unlink(e: Int) {
+        val n = newer[e]
+        val o = older[e]
+        if (n != -1) {
+            older[n] = o
+        } else {
+            newest = o
+        }
+        if (o != -1) {
+            newer[o] = n
+        } else {
+            eldest = n
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.github.moko256.twitlatte.collections
 
+import com.github.moko256.twitlatte.metrics.CacheMetrics
 import org.jetbrains.annotations.TestOnly
 
 /**
@@ -23,16 +24,24 @@ import org.jetbrains.annotations.TestOnly
  *
  * @author moko256
  */
-class LruCache<K, V>(capacity: Int) {
-    private val map = LimitedLinkedHashMap<K, V>(capacity)
+class LruCache<K, V>(capacity: Int, private val metrics: CacheMetrics? = null) {
+    private val map = LimitedLinkedHashMap<K, V>(capacity, metrics)
 
     @TestOnly
     fun valueIterable() = map.values.asIterable()
 
     fun get(key: K): V? {
-        synchronized(this) {
-            return map[key]
+        val value = synchronized(this) {
+            map[key]
+        }
+        if (metrics != null) {
+            if (value != null) {
+                metrics.memoryHits.incrementAndGet()
+            } else {
+                metrics.misses.incrementAndGet()
+            }
         }
+        return value
     }
 
     fun put(key: K, value: V) {
@@ -60,9 +69,13 @@ class LruCache<K, V>(capacity: Int) {
     }
 }
 
-private class LimitedLinkedHashMap<K, V>(private val capacity: Int)
+private class LimitedLinkedHashMap<K, V>(private val capacity: Int, private val metrics: CacheMetrics?)
     : LinkedHashMap<K, V>(capacity + 2, 1f, true) {
     override fun removeEldestEntry(eldest: MutableMap.MutableEntry<K, V>?): Boolean {
-        return size > capacity
+        val remove = size > capacity
+        if (remove) {
+            metrics?.evictions?.incrementAndGet()
+        }
+        return remove
     }
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.collections
+
+import java.nio.LongBuffer
+
+/**
+ * List of longs which reads [buffer] (typically a memory-mapped file) in place until it is modified.
+ * The first modification copies the contents into an [ArrayList], later operations use the copy.
+ */
+class MappedLongList(private val buffer: LongBuffer) : AbstractMutableList<Long>() {
+    private var copy: ArrayList<Long>? = null
+
+    override val size: Int
+        get() = copy?.size ?: buffer.limit()
+
+    override fun get(index: Int): Long {
+        val copy = copy
+        return if (copy != null) {
+            copy[index]
+        } else {
+            if (index < 0 || index >= buffer.limit()) {
+                throw IndexOutOfBoundsException("Index: $index, Size: ${buffer.limit()}")
+            }
+            buffer.get(index)
+        }
+    }
+
+    override fun set(index: Int, element: Long): Long = copy().set(index, element)
+
+    override fun add(index: Int, element: Long) {
+        copy().add(index, element)
+    }
+
+    override fun addAll(elements: Collection<Long>): Boolean = copy().addAll(elements)
+
+    override fun addAll(index: Int, elements: Collection<Long>): Boolean = copy().addAll(index, elements)
+
+    override fun removeAt(index: Int): Long = copy().removeAt(index)
+
+    override fun removeRange(fromIndex: Int, toIndex: Int) {
+        copy().subList(fromIndex, toIndex).clear()
+    }
+
+    override fun clear() {
+        copy = ArrayList()
+    }
+
+    /**
+     * @return true if the contents are still read from the buffer
+     */
+    fun isMapped(): Boolean = copy == null
+
+    private fun copy(): ArrayList<Long> {
+        return copy ?: ArrayList<Long>(buffer.limit() + 32).also { list ->
+            for (i in 0 until buffer.limit()) {
+                list.add(buffer.get(i))
+            }
+            copy = list
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.collections
+
+import com.github.moko256.twitlatte.metrics.CacheMetrics
+
+/**
+ * [LongLruCache] shared by several partitions under one weight budget.
+ *
+ * Each [Partition] sees its own key space, and entries of all partitions are spread over the same segments
+ * of the cache. The recency order is kept in each segment, so an entry evicted from a segment is
+ * the least recently used one of that segment, whichever partition it belongs to.
+ */
+class PartitionedLongLruCache<V>(
+    maxWeight: Long,
+    weigher: Weigher<V>,
+    admission: Boolean = false,
+    metrics: CacheMetrics? = null
+) {
+    private val cache = LongLruCache(maxWeight, weigher, admission, metrics)
+
+    fun partition(id: Int) = Partition(cache, id)
+
+    fun size() = cache.size()
+
+    fun weight() = cache.weight()
+
+    fun maxWeight() = cache.maxWeight()
+
+    fun clear() {
+        cache.clear()
+    }
+
+    class Partition<V> internal constructor(
+        private val cache: LongLruCache<V>,
+        private val id: Int
+    ) {
+        fun get(key: Long): V? = cache.get(id, key)
+
+        fun put(key: Long, value: V) {
+            cache.put(id, key, value)
+        }
+
+        /**
+         * @see LongLruCache.offer
+         */
+        fun offer(key: Long, value: V): Boolean = cache.offer(id, key, value)
+
+        /**
+         * Removes all entries of this partition.
+         */
+        fun clear() {
+            cache.removeOwner(id)
+        }
+    }
+}
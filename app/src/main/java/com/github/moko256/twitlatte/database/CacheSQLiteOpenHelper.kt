@@ -0,0 +1,223 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.moko256.twitlatte.database
+
+import android.content.Context
+import android.database.Cursor
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteException
+import android.database.sqlite.SQLiteOpenHelper
+import com.github.moko256.latte.client.base.entity.AccessToken
+import com.github.moko256.twitlatte.database.utils.ConnectionScope
+import com.github.moko256.twitlatte.database.utils.configureWalCheckpoint
+import com.github.moko256.twitlatte.database.utils.enableWal
+import java.io.File
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+
+private const val CACHE_DATABASE_NAME = "Cache.db"
+private const val CACHE_DATABASE_VERSION = 1
+
+private const val SEPARATE_STATUSES_DATABASE_NAME = "CachedStatuses.db"
+private const val SEPARATE_USERS_DATABASE_NAME = "CachedUsers.db"
+
+/**
+ * Files of the account which are not id lists, left as they are by [moveSeparateFiles].
+ * Trends.db and the ListEntries.db of each user (in a directory named by the user) stay separate,
+ * as they are replaced as a whole by each fetch and never read with posts.
+ * SearchIndex.db stays separate, so that the index can be dropped or rebuilt without touching the cache.
+ */
+private val OTHER_DATABASE_NAMES = arrayOf(CACHE_DATABASE_NAME, "Trends.db", "SearchIndex.db")
+
+/**
+ * Files which a helper has opened in this process, so that they are created with the current version.
+ */
+private val openedFiles = Collections.newSetFromMap(ConcurrentHashMap<String, Boolean>())
+
+/**
+ * Held while a helper opens a file which is not in [openedFiles].
+ */
+private val creatingLock = Any()
+
+/**
+ * Cache database of an account, which holds the statuses, the users and the id lists in one file,
+ * so that a page of a list is read as complete posts by one query (See [CachedStatusesSQLiteOpenHelper.getPosts]).
+ *
+ * Subclasses read and write their own tables, but any of them creates all tables,
+ * so the file has one schema version whichever helper opens it first.
+ * Until then, helpers open the file one at a time, so that only one of them creates it and moves the old files.
+ * Helpers of the same account share the writer of the file (See [DiskScheduler]).
+ */
+abstract class CacheSQLiteOpenHelper(
+        context: Context,
+        accessToken: AccessToken?
+) : SQLiteOpenHelper(
+        context,
+        accessToken?.let {
+            File(context.cacheDir, it.getKeyString() + "/" + CACHE_DATABASE_NAME).absolutePath
+        },
+        null,
+        CACHE_DATABASE_VERSION
+), ConnectionScope {
+
+    init {
+        enableWal()
+    }
+
+    override fun onOpen(db: SQLiteDatabase) {
+        super.onOpen(db)
+        db.configureWalCheckpoint()
+    }
+
+    override fun getWritableDatabase(): SQLiteDatabase {
+        val name = databaseName
+        if (name == null || openedFiles.contains(name)) {
+            return super.getWritableDatabase()
+        }
+        synchronized(creatingLock) {
+            val db = super.getWritableDatabase()
+            openedFiles.add(name)
+            return db
+        }
+    }
+
+    override fun getReadableDatabase(): SQLiteDatabase {
+        val name = databaseName
+        if (name == null || openedFiles.contains(name)) {
+            return super.getReadableDatabase()
+        }
+        synchronized(creatingLock) {
+            val db = super.getReadableDatabase()
+            openedFiles.add(name)
+            return db
+        }
+    }
+
+    /**
+     * Helpers of a file open it one at a time until it is created, but the helper reads the version
+     * before it locks the file, so this checks the version again to run only once in any case.
+     */
+    override fun onCreate(db: SQLiteDatabase) {
+        if (db.version == CACHE_DATABASE_VERSION) {
+            return
+        }
+        CachedStatusesSQLiteOpenHelper.createTables(db)
+        CachedUsersSQLiteOpenHelper.createTables(db)
+        CachedIdListSQLiteOpenHelper.createTables(db)
+
+        databaseName?.let { File(it).parentFile }?.let {
+            moveSeparateFiles(db, it)
+        }
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {}
+}
+
+/**
+ * Moves rows of the files in [directory] which held the statuses, the users and each id list (named by the list)
+ * before they were merged into [db], and deletes the files.
+ * Each file is upgraded from its version first, so that files of any released version keep their rows.
+ */
+private fun moveSeparateFiles(db: SQLiteDatabase, directory: File) {
+    directory.listFiles()?.forEach { file ->
+        val name = file.name
+        if (!name.endsWith(".db") || OTHER_DATABASE_NAMES.contains(name)) {
+            return@forEach
+        }
+
+        val isSeparateFile = try {
+            SQLiteDatabase.openDatabase(file.absolutePath, null, SQLiteDatabase.OPEN_READWRITE).use { source ->
+                when {
+                    name == SEPARATE_STATUSES_DATABASE_NAME -> {
+                        if (CachedStatusesSQLiteOpenHelper.upgradeSeparateFile(source, source.version)) {
+                            db.copyRows(source, CachedStatusesSQLiteOpenHelper.TABLE_NAME)
+                            if (source.hasTable(CachedStatusesSQLiteOpenHelper.COUNTS_TABLE_NAME)) {
+                                db.copyRows(source, CachedStatusesSQLiteOpenHelper.COUNTS_TABLE_NAME)
+                            }
+                        }
+                        true
+                    }
+                    name == SEPARATE_USERS_DATABASE_NAME -> {
+                        if (CachedUsersSQLiteOpenHelper.upgradeSeparateFile(source, source.version)) {
+                            db.copyRows(source, CachedUsersSQLiteOpenHelper.TABLE_NAME)
+                        }
+                        true
+                    }
+                    source.hasTable(CachedIdListSQLiteOpenHelper.ID_LIST_TABLE_NAME) -> {
+                        if (CachedIdListSQLiteOpenHelper.upgradeSeparateFile(source, source.version)) {
+                            val listName = "listName" to name.removeSuffix(".db")
+                            db.copyRows(source, CachedIdListSQLiteOpenHelper.ID_LIST_TABLE_NAME, listName)
+                            db.copyRows(source, CachedIdListSQLiteOpenHelper.SEEING_ID_TABLE_NAME, listName)
+                        }
+                        true
+                    }
+                    else -> false
+                }
+            }
+        } catch (e: SQLiteException) {
+            e.printStackTrace()
+            name == SEPARATE_STATUSES_DATABASE_NAME || name == SEPARATE_USERS_DATABASE_NAME
+        }
+        if (isSeparateFile) {
+            SQLiteDatabase.deleteDatabase(file)
+        }
+    }
+}
+
+private fun SQLiteDatabase.hasTable(tableName: String): Boolean {
+    return rawQuery("select 1 from sqlite_master where type='table' and name=?", arrayOf(tableName)).use {
+        it.moveToFirst()
+    }
+}
+
+/**
+ * Inserts rows of [tableName] of [source] into the same table of this database, in the columns of this table.
+ * [constants] are values of columns which [source] does not have, the same for every row.
+ */
+private fun SQLiteDatabase.copyRows(source: SQLiteDatabase, tableName: String, vararg constants: Pair<String, String>) {
+    val columns = rawQuery("select * from $tableName limit 0", null).use { it.columnNames }
+            .filter { column -> constants.none { it.first == column } }
+    val insertColumns = columns + constants.map { it.first }
+
+    compileStatement(
+            insertColumns.joinToString(
+                    ",",
+                    "insert or replace into $tableName(",
+                    ") values(${insertColumns.joinToString(",") { "?" }})"
+            )
+    ).use { statement ->
+        source.rawQuery("select ${columns.joinToString(",")} from $tableName", null).use { c ->
+            while (c.moveToNext()) {
+                statement.clearBindings()
+                for (i in columns.indices) {
+                    when (c.getType(i)) {
+                        Cursor.FIELD_TYPE_INTEGER -> statement.bindLong(i + 1, c.getLong(i))
+                        Cursor.FIELD_TYPE_FLOAT -> statement.bindDouble(i + 1, c.getDouble(i))
+                        Cursor.FIELD_TYPE_STRING -> statement.bindString(i + 1, c.getString(i))
+                        Cursor.FIELD_TYPE_BLOB -> statement.bindBlob(i + 1, c.getBlob(i))
+                        else -> statement.bindNull(i + 1)
+                    }
+                }
+                constants.forEachIndexed { i, (_, value) ->
+                    statement.bindString(columns.size + i + 1, value)
+                }
+                statement.executeInsert()
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database
+
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+import com.github.moko256.latte.client.base.entity.AccessToken
+import com.github.moko256.latte.client.base.entity.CacheValidator
+import com.github.moko256.latte.client.base.entity.Emoji
+import com.github.moko256.twitlatte.database.utils.*
+import java.io.File
+
+/**
+ * State of a cached emoji catalog, used to decide whether it has to be refreshed.
+ */
+data class EmojiCatalogInfo(
+        val validator: CacheValidator,
+        val fetchedAt: Long
+)
+
+/**
+ * Catalog of custom emojis of an instance, shared by all accounts of the instance.
+ *
+ * Emojis are stored in the order of the response, so that a page of them can be read by its position.
+ */
+class CachedEmojisSQLiteOpenHelper @JvmOverloads constructor(
+        context: Context,
+        accessToken: AccessToken?,
+        override val keepsConnectionOpen: Boolean = false
+) : SQLiteOpenHelper(
+        context,
+        if (accessToken != null) {
+            File(context.cacheDir, "Emojis/" + accessToken.url + ".db").absolutePath
+        } else {
+            null
+        },
+        null, 1
+), ConnectionScope {
+
+    companion object {
+        private const val TABLE_NAME = "Emojis"
+        private const val CATALOG_TABLE_NAME = "Catalog"
+    }
+
+    init {
+        enableWal()
+    }
+
+    override fun onOpen(db: SQLiteDatabase) {
+        super.onOpen(db)
+        db.configureWalCheckpoint()
+    }
+
+    override fun onCreate(db: SQLiteDatabase) {
+        db.execSQL("create table $TABLE_NAME(position integer primary key,shortCode,url)")
+        db.execSQL("create table $CATALOG_TABLE_NAME(etag,lastModified,fetchedAt)")
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {}
+
+    /**
+     * @return null if the catalog has never been fetched
+     */
+    fun getCatalogInfo(): EmojiCatalogInfo? = read {
+        val c = query(CATALOG_TABLE_NAME, arrayOf("etag", "lastModified", "fetchedAt"), null, null, null, null, null, "1")
+        val info = if (c.moveToFirst()) {
+            EmojiCatalogInfo(
+                    CacheValidator(c.getString(0), c.getString(1)),
+                    c.getLong(2)
+            )
+        } else {
+            null
+        }
+        c.close()
+        info
+    }
+
+    fun replaceEmojis(emojis: List<Emoji>, validator: CacheValidator, fetchedAt: Long) {
+        transaction {
+            delete(TABLE_NAME, null, null)
+            compileStatement("insert into $TABLE_NAME(position,shortCode,url) values(?,?,?)").use { statement ->
+                emojis.forEachIndexed { index, emoji ->
+                    statement.bindLong(1, index.toLong())
+                    statement.bindString(2, emoji.shortCode)
+                    statement.bindString(3, emoji.url)
+                    statement.executeInsert()
+                }
+            }
+            putCatalogInfo(validator, fetchedAt)
+        }
+    }
+
+    /**
+     * Updates the catalog info without changing emojis, when they were not modified.
+     */
+    fun updateCatalogInfo(validator: CacheValidator, fetchedAt: Long) {
+        transaction {
+            putCatalogInfo(validator, fetchedAt)
+        }
+    }
+
+    private fun SQLiteDatabase.putCatalogInfo(validator: CacheValidator, fetchedAt: Long) {
+        delete(CATALOG_TABLE_NAME, null, null)
+        compileStatement("insert into $CATALOG_TABLE_NAME(etag,lastModified,fetchedAt) values(?,?,?)").use { statement ->
+            statement.bindStringOrNull(1, validator.etag)
+            statement.bindStringOrNull(2, validator.lastModified)
+            statement.bindLong(3, fetchedAt)
+            statement.executeInsert()
+        }
+    }
+
+    fun count(): Int = read {
+        val c = rawQuery("select count(*) from $TABLE_NAME", null)
+        val count = if (c.moveToFirst()) c.getInt(0) else 0
+        c.close()
+        count
+    }
+
+    /**
+     * @return at most [limit] emojis from [offset] in the order of the catalog
+     */
+    fun getEmojis(offset: Int, limit: Int): List<Emoji> = read {
+        val c = query(
+                TABLE_NAME,
+                arrayOf("shortCode", "url"),
+                "position>=$offset and position<${offset + limit}",
+                null, null, null,
+                "position"
+        )
+        val result = ArrayList<Emoji>(c.count)
+        while (c.moveToNext()) {
+            result.add(Emoji(c.getString(0), c.getString(1)))
+        }
+        c.close()
+        result
+    }
+}
@@ -19,8 +19,6 @@ package com.github.moko256.twitlatte.database
 import android.content.Context
 import android.database.DatabaseUtils
 import android.database.sqlite.SQLiteDatabase
-import android.database.sqlite.SQLiteOpenHelper
-import android.database.sqlite.SQLiteStatement
 import com.github.moko256.latte.client.base.entity.AccessToken
 import com.github.moko256.twitlatte.database.utils.read
 import com.github.moko256.twitlatte.database.utils.transaction
@@ -35,141 +33,273 @@ import java.io.File
 class CachedIdListSQLiteOpenHelper(
     context: Context,
     accessToken: AccessToken?,
-    name: String
-
-) : SQLiteOpenHelper(
-    context,
-    accessToken?.let {
-        File(
-            context.cacheDir,
-            "${it.getKeyString()}/$name.db"
-        ).absolutePath
-    },
-    null,
-    2
-) {
+    val listName: String,
+    override val keepsConnectionOpen: Boolean = false
+) : CacheSQLiteOpenHelper(context, accessToken) {
     companion object {
         private val COLUMNS = arrayOf("id")
 
-        private const val ID_LIST_TABLE_NAME = "IdList"
-        private const val SEEING_ID_TABLE_NAME = "SeeingId"
+        internal const val ID_LIST_TABLE_NAME = "IdList"
+        internal const val SEEING_ID_TABLE_NAME = "SeeingId"
+
+        /**
+         * Distance between positions of ids added at the top or the bottom,
+         * which leaves room for ids inserted between them later.
+         */
+        private const val POSITION_GAP = 1L shl 20
+
+        /**
+         * Least distance between positions of rows spread by [insertIdsAt] when there is no room for ids.
+         */
+        private const val MIN_SPREAD_GAP = POSITION_GAP shr 8
+
+        private const val insertIdListStatement = "insert into $ID_LIST_TABLE_NAME(listName,position,id) values(?,?,?)"
+
+        /**
+         * Ids of all lists of the account are in one table, ordered by position descending in each list,
+         * so that the top of the list has the largest position.
+         * Positions are not renumbered on insert or remove, only the changed rows (and nearby rows
+         * when an insert finds no room, see [spreadAndInsert]) are written.
+         */
+        internal fun createTables(db: SQLiteDatabase) {
+            db.execSQL("create table $ID_LIST_TABLE_NAME(listName text,position integer,id)")
+            db.execSQL("create index ${ID_LIST_TABLE_NAME}_position on $ID_LIST_TABLE_NAME(listName,position)")
+            db.execSQL("create table $SEEING_ID_TABLE_NAME(listName text primary key,id)")
+        }
 
-        private const val insertIdListStatement = "insert into $ID_LIST_TABLE_NAME values(?)"
+        /**
+         * Upgrades the file of a list, which held only the ids of the list until they were moved to the cache database,
+         * from [oldVersion] to its last version 3, in the same steps as the helper of the file did.
+         *
+         * @return false if the rows of [oldVersion] are not kept, as the helper dropped them
+         */
+        internal fun upgradeSeparateFile(db: SQLiteDatabase, oldVersion: Int): Boolean {
+            if (oldVersion < 2) {
+                return false
+            }
+            if (oldVersion < 3) {
+                // Until version 2 the top of the list was the last row
+                db.execSQL("alter table $ID_LIST_TABLE_NAME add column position integer")
+                db.execSQL("update $ID_LIST_TABLE_NAME set position=rowid*$POSITION_GAP")
+            }
+            return true
+        }
     }
 
-    override fun onCreate(db: SQLiteDatabase) {
-        db.execSQL("create table $ID_LIST_TABLE_NAME(id)")
-        db.execSQL("create table $SEEING_ID_TABLE_NAME(id)")
+    /**
+     * Selects rows of this list.
+     */
+    private val listSelection = "listName=" + DatabaseUtils.sqlEscapeString(listName)
+
+    /**
+     * Snapshot of the ids next to the database file, null if the database is in memory.
+     * This helper does not update it, the owner of the list writes it.
+     */
+    val snapshot = accessToken?.let {
+        IdListSnapshot(File(context.cacheDir, "${it.getKeyString()}/$listName.ids"))
     }
 
-    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
-        if (oldVersion < 2) {
-            db.execSQL("drop table IdList")
-            db.execSQL("drop table ListViewPosition")
-            onCreate(db)
-        }
-        // else (oldVersion < 3) ...
+    /**
+     * Posts at the top of the list, written by the owner of the list as well.
+     */
+    val postSnapshot = accessToken?.let {
+        PostListSnapshot(File(context.cacheDir, "${it.getKeyString()}/$listName.posts"))
     }
 
+    /**
+     * Positions of the rows in the order of the list, so that a change at an index does not
+     * scan the position index to find its row.
+     */
+    private var positionList: PositionList? = null
+
     fun getIds(): List<Long> {
         return read {
-            getIdsInner(this)
-        }
-    }
+            val c = query(ID_LIST_TABLE_NAME, COLUMNS, listSelection, null, null, null, "position desc")
+            val ids = LongArray(c.count)
 
-    private fun getIdsInner(db: SQLiteDatabase): List<Long> {
-        val c = db.query(ID_LIST_TABLE_NAME, COLUMNS, null, null, null, null, null)
-        val count = c.count
-        val ids = LongArray(count)
+            var i = 0
+            while (c.moveToNext()) {
+                ids[i] = c.getLong(0)
+                i++
+            }
 
-        var i = count
-        while (c.moveToNext()) {
-            i--
-            ids[i] = c.getLong(0)
+            c.close()
+            ids.asList()
         }
-
-        c.close()
-        return ids.asList()
     }
 
     fun insertIdsAtFirst(ids: List<Long>) {
-        transaction {
-            val insert = compileStatement(insertIdListStatement)
-
-            addIdsInner(insert, ids)
-
-            insert.close()
+        changePositions { positions ->
+            val top = if (positions.size > 0) positions[0] else 0L
+            insertIdsBetween(this, positions, 0, top + (ids.size + 1) * POSITION_GAP, top, ids)
         }
     }
 
     fun insertIdsAtLast(ids: List<Long>) {
-        transaction {
-            val n = getIdsInner(this)
-
-            val insert = compileStatement(insertIdListStatement)
-
-            deleteAllIds(this)
-            addIdsInner(insert, ids)
-            addIdsInner(insert, n)
-
-            insert.close()
+        changePositions { positions ->
+            val bottom = if (positions.size > 0) positions[positions.size - 1] else 0L
+            insertIdsBetween(this, positions, positions.size, bottom, bottom - (ids.size + 1) * POSITION_GAP, ids)
         }
     }
 
     fun insertIdsAt(index: Int, ids: List<Long>) {
-        transaction {
-            val n = getIdsInner(this)
-            val d = n.subList(0, index)
-
-            val insert = compileStatement(insertIdListStatement)
-
-            deleteTopIds(this, n.size, index)
-            addIdsInner(insert, ids)
-            addIdsInner(insert, d)
+        if (index == 0) {
+            insertIdsAtFirst(ids)
+            return
+        }
 
-            insert.close()
+        changePositions { positions ->
+            if (index >= positions.size) {
+                // index is the end of the list (or beyond it)
+                val bottom = if (positions.size > 0) positions[positions.size - 1] else 0L
+                insertIdsBetween(this, positions, positions.size, bottom, bottom - (ids.size + 1) * POSITION_GAP, ids)
+            } else {
+                val upper = positions[index - 1]
+                val lower = positions[index]
+                if (upper - lower > ids.size) {
+                    insertIdsBetween(this, positions, index, upper, lower, ids)
+                } else {
+                    // No room between the neighbours
+                    spreadAndInsert(this, positions, index, ids)
+                }
+            }
         }
     }
 
     fun removeAt(index: Int) {
-        write {
-            val offset = DatabaseUtils.queryNumEntries(this, ID_LIST_TABLE_NAME).toInt() - index - 1
-            execSQL(
-                "delete from $ID_LIST_TABLE_NAME where rowid in (select rowid from $ID_LIST_TABLE_NAME limit 1 offset $offset)"
-            )
+        changePositions { positions ->
+            if (index < positions.size) {
+                execSQL(
+                    "delete from $ID_LIST_TABLE_NAME where rowid in " +
+                            "(select rowid from $ID_LIST_TABLE_NAME where $listSelection and position=${positions[index]} limit 1)"
+                )
+                positions.removeAt(index)
+            }
         }
     }
 
     fun removeFromLast(count: Int) {
-        write {
+        changePositions { positions ->
             execSQL(
-                "delete from $ID_LIST_TABLE_NAME where rowid in (select rowid from $ID_LIST_TABLE_NAME limit $count)"
+                "delete from $ID_LIST_TABLE_NAME where rowid in " +
+                        "(select rowid from $ID_LIST_TABLE_NAME where $listSelection order by position limit $count)"
             )
+            positions.removeLast(count)
         }
     }
 
-    private fun addIdsInner(statement: SQLiteStatement, ids: List<Long>) {
-        for (i in ids.indices.reversed()) {
-            statement.bindLong(1, ids[i])
-            statement.execute()
+    /**
+     * Runs [action] in a transaction with [positionList], which is loaded on the first change.
+     * Changes are made on one thread (the writer of the list), so the cache follows the database.
+     */
+    private inline fun changePositions(action: SQLiteDatabase.(positions: PositionList) -> Unit) {
+        try {
+            transaction {
+                val positions = positionList ?: loadPositions(this).also { positionList = it }
+                action(positions)
+            }
+        } catch (e: Throwable) {
+            // Reloaded on the next change, as the transaction is rolled back
+            positionList = null
+            throw e
         }
     }
 
-    private fun deleteAllIds(database: SQLiteDatabase) {
-        database.execSQL("delete from $ID_LIST_TABLE_NAME")
+    private fun loadPositions(database: SQLiteDatabase): PositionList {
+        val c = database.rawQuery("select position from $ID_LIST_TABLE_NAME where $listSelection order by position desc", null)
+        val positions = LongArray(c.count)
+        var i = 0
+        while (c.moveToNext()) {
+            positions[i++] = c.getLong(0)
+        }
+        c.close()
+        return PositionList(positions, i)
     }
 
-    private fun deleteTopIds(database: SQLiteDatabase, listSize: Int, toIndex: Int) {
-        val offset = listSize - toIndex
-        database.execSQL(
-            "delete from $ID_LIST_TABLE_NAME where rowid in (select rowid from $ID_LIST_TABLE_NAME limit $toIndex offset $offset)"
-        )
+    /**
+     * Inserts [ids] at positions evenly spaced between [upper] and [lower], exclusive,
+     * and their positions at [index] of [positions].
+     */
+    private fun insertIdsBetween(
+        database: SQLiteDatabase,
+        positions: PositionList,
+        index: Int,
+        upper: Long,
+        lower: Long,
+        ids: List<Long>
+    ) {
+        val step = (upper - lower) / (ids.size + 1)
+        val inserted = LongArray(ids.size) { upper - (it + 1) * step }
+        val insert = database.compileStatement(insertIdListStatement)
+        ids.forEachIndexed { i, id ->
+            insert.bindString(1, listName)
+            insert.bindLong(2, inserted[i])
+            insert.bindLong(3, id)
+            insert.execute()
+        }
+        insert.close()
+        positions.insert(index, inserted)
     }
 
+    /**
+     * Spreads the rows around [index] evenly over their range with room for [ids], then inserts [ids] at [index].
+     * The rows are doubled until they are [MIN_SPREAD_GAP] apart (a range at the top or the bottom of the list
+     * always is, as it is extended), so that only nearby rows are written unless the whole list is crowded.
+     */
+    private fun spreadAndInsert(
+        database: SQLiteDatabase,
+        positions: PositionList,
+        index: Int,
+        ids: List<Long>
+    ) {
+        var radius = 1
+        var first: Int
+        var end: Int
+        var upper: Long
+        var lower: Long
+        do {
+            first = (index - radius).coerceAtLeast(0)
+            end = (index + radius).coerceAtMost(positions.size)
+            val count = end - first + ids.size + 1
+            upper = if (first == 0) positions[0] + count * POSITION_GAP else positions[first - 1]
+            lower = if (end == positions.size) positions[end - 1] - count * POSITION_GAP else positions[end]
+            radius *= 2
+        } while ((upper - lower) / count < MIN_SPREAD_GAP)
+
+        val c = database.rawQuery(
+            "select rowid from $ID_LIST_TABLE_NAME where $listSelection and " +
+                    "position<=${positions[first]} and position>=${positions[end - 1]} order by position desc",
+            null
+        )
+        val rowIds = LongArray(c.count)
+        var i = 0
+        while (c.moveToNext()) {
+            rowIds[i++] = c.getLong(0)
+        }
+        c.close()
+
+        val step = (upper - lower) / (end - first + ids.size + 1)
+        var next = upper - step
+        val update = database.compileStatement("update $ID_LIST_TABLE_NAME set position=? where rowid=?")
+        for (row in first until end) {
+            if (row == index) {
+                // Leaves room for ids
+                next -= ids.size * step
+            }
+            update.bindLong(1, next)
+            update.bindLong(2, rowIds[row - first])
+            update.execute()
+            positions[row] = next
+            next -= step
+        }
+        update.close()
+
+        insertIdsBetween(database, positions, index, positions[index - 1], positions[index], ids)
+    }
 
     fun getSeeingId(): Long {
         return read {
-            val c = query(SEEING_ID_TABLE_NAME, COLUMNS, null, null, null, null, null)
+            val c = query(SEEING_ID_TABLE_NAME, COLUMNS, listSelection, null, null, null, null)
             val r = if (c.moveToNext()) {
                 c.getLong(0)
             } else {
@@ -181,10 +311,40 @@ class CachedIdListSQLiteOpenHelper(
     }
 
     fun setSeeingId(id: Long?) {
-        transaction {
-            execSQL("delete from $SEEING_ID_TABLE_NAME")
-            execSQL("insert into $SEEING_ID_TABLE_NAME values($id)")
+        write {
+            execSQL("insert or replace into $SEEING_ID_TABLE_NAME(listName,id) values(?,?)", arrayOf<Any?>(listName, id))
         }
     }
 
-}
\ No newline at end of file
+}
+
+/**
+ * Growable array of positions.
+ */
+private class PositionList(private var array: LongArray, var size: Int) {
+
+    operator fun get(index: Int) = array[index]
+
+    operator fun set(index: Int, value: Long) {
+        array[index] = value
+    }
+
+    fun insert(index: Int, values: LongArray) {
+        if (size + values.size > array.size) {
+            array = array.copyOf(maxOf(array.size * 2, size + values.size))
+        }
+        System.arraycopy(array, index, array, index + values.size, size - index)
+        System.arraycopy(values, 0, array, index, values.size)
+        size += values.size
+    }
+
+    fun removeAt(index: Int) {
+        System.arraycopy(array, index + 1, array, index, size - index - 1)
+        size--
+    }
+
+    fun removeLast(count: Int) {
+        size = (size - count).coerceAtLeast(0)
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database
+
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+import com.github.moko256.latte.client.base.entity.AccessToken
+import com.github.moko256.twitlatte.database.utils.*
+import java.io.File
+import java.text.Normalizer
+import java.util.Locale
+
+/**
+ * Text of a cached status to be indexed.
+ */
+class SearchIndexEntry(
+        val id: Long,
+        val text: String,
+        val spoilerText: String?,
+        val userName: String?,
+        val screenName: String?
+)
+
+/**
+ * Full-text index (FTS4) of cached statuses, whose docid is the id of the status.
+ *
+ * Only [maxEntries] newest statuses are kept, so that the index does not grow with the status cache.
+ * Statuses already indexed are not indexed again, as their text does not change.
+ * Texts are segmented before being indexed (See [toIndexedText]), so that words in text without spaces are found.
+ */
+class CachedSearchIndexSQLiteOpenHelper @JvmOverloads constructor(
+        context: Context,
+        accessToken: AccessToken?,
+        override val keepsConnectionOpen: Boolean = false,
+        private val maxEntries: Int = DEFAULT_MAX_ENTRIES
+) : SQLiteOpenHelper(
+        context,
+        if (accessToken != null) {
+            File(context.cacheDir, accessToken.getKeyString() + "/SearchIndex.db").absolutePath
+        } else {
+            null
+        },
+        null, 2
+), ConnectionScope {
+
+    companion object {
+        const val DEFAULT_MAX_ENTRIES = 10000
+
+        private const val TABLE_NAME = "StatusesIndex"
+
+        private const val ID_QUERY_CHUNK_SIZE = 500
+
+        /**
+         * Converts words of [query] to an FTS query matching texts which contain all of them,
+         * ASCII words as prefixes of words and others as substrings (See [toIndexedText]).
+         *
+         * @return null if [query] has no word
+         */
+        internal fun toMatchQuery(query: String): String? {
+            val terms = ArrayList<String>()
+            forEachRun(query) { run, isAscii ->
+                terms.add(
+                        if (isAscii || run.length == 1) {
+                            "\"$run*\""
+                        } else {
+                            // Bigrams of the run in a row
+                            (0 until run.length - 1).joinToString(" ", "\"", "\"") { run.substring(it, it + 2) }
+                        }
+                )
+            }
+            return terms.takeIf { it.isNotEmpty() }?.joinToString(" ")
+        }
+
+        /**
+         * Splits [text] into words separated by spaces, as the simple tokenizer of FTS
+         * only splits text at ASCII separators.
+         *
+         * Runs of ASCII letters and digits are words. Other runs, which may be written without spaces
+         * (like Japanese or Chinese), are split into overlapping bigrams followed by their last character,
+         * so that a substring of a run is found by a phrase of its bigrams, or by a prefix if it is one character.
+         */
+        internal fun toIndexedText(text: String?): String? {
+            if (text == null) {
+                return null
+            }
+            val builder = StringBuilder(text.length * 3)
+            forEachRun(text) { run, isAscii ->
+                if (isAscii) {
+                    builder.append(run).append(' ')
+                } else {
+                    for (i in 0 until run.length - 1) {
+                        builder.append(run, i, i + 2).append(' ')
+                    }
+                    builder.append(run[run.length - 1]).append(' ')
+                }
+            }
+            return builder.toString()
+        }
+
+        /**
+         * Calls [action] with each run of ASCII letters and digits and each run of other letters and digits
+         * in [text] after NFKC normalization and case folding.
+         */
+        private inline fun forEachRun(text: String, action: (run: String, isAscii: Boolean) -> Unit) {
+            val normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT)
+            var start = 0
+            while (start < normalized.length) {
+                if (!Character.isLetterOrDigit(normalized[start])) {
+                    start++
+                    continue
+                }
+                val isAscii = normalized[start] < '\u0080'
+                var end = start + 1
+                while (end < normalized.length
+                        && Character.isLetterOrDigit(normalized[end])
+                        && (normalized[end] < '\u0080') == isAscii) {
+                    end++
+                }
+                action(normalized.substring(start, end), isAscii)
+                start = end
+            }
+        }
+    }
+
+    init {
+        enableWal()
+    }
+
+    override fun onOpen(db: SQLiteDatabase) {
+        super.onOpen(db)
+        db.configureWalCheckpoint()
+    }
+
+    override fun onCreate(db: SQLiteDatabase) {
+        db.execSQL("create virtual table $TABLE_NAME using fts4(text,spoilerText,userName,screenName)")
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+        if (oldVersion < 2) {
+            // Texts were not segmented, statuses are indexed again as they are cached
+            db.execSQL("drop table $TABLE_NAME")
+            onCreate(db)
+        }
+    }
+
+    /**
+     * Indexes [entries] not indexed yet, then deletes the oldest entries over [maxEntries].
+     *
+     * @return the number of entries indexed
+     */
+    fun addEntries(entries: Collection<SearchIndexEntry>): Int {
+        var added = 0
+        transaction {
+            val indexedIds = HashSet<Long>()
+            entries.map { it.id }.chunked(ID_QUERY_CHUNK_SIZE).forEach { chunk ->
+                selectMultiple(TABLE_NAME, arrayOf("docid"), "docid in (${chunk.joinToString(",")})") {
+                    indexedIds.add(getLong(0))
+                }
+            }
+
+            compileStatement(
+                    "insert into $TABLE_NAME(docid,text,spoilerText,userName,screenName) values(?,?,?,?,?)"
+            ).use { statement ->
+                entries.forEach {
+                    if (indexedIds.add(it.id)) {
+                        statement.clearBindings()
+                        statement.bindLong(1, it.id)
+                        statement.bindString(2, toIndexedText(it.text))
+                        statement.bindStringOrNull(3, toIndexedText(it.spoilerText))
+                        statement.bindStringOrNull(4, toIndexedText(it.userName))
+                        statement.bindStringOrNull(5, toIndexedText(it.screenName))
+                        statement.executeInsert()
+                        added++
+                    }
+                }
+            }
+
+            if (added > 0) {
+                val excess = count(this) - maxEntries
+                if (excess > 0) {
+                    execSQL("delete from $TABLE_NAME where docid in (select docid from $TABLE_NAME order by docid limit $excess)")
+                }
+            }
+        }
+        return added
+    }
+
+    /**
+     * @return ids of statuses matching all words of [query], newest first
+     */
+    fun search(query: String, limit: Int): List<Long> {
+        val matchQuery = toMatchQuery(query) ?: return emptyList()
+        return read {
+            val c = rawQuery(
+                    "select docid from $TABLE_NAME where $TABLE_NAME match ? order by docid desc limit $limit",
+                    arrayOf(matchQuery)
+            )
+            val result = ArrayList<Long>(c.count)
+            while (c.moveToNext()) {
+                result.add(c.getLong(0))
+            }
+            c.close()
+            result
+        }
+    }
+
+    fun count(): Long = read { count(this) }
+
+    private fun count(db: SQLiteDatabase): Long {
+        val c = db.rawQuery("select count(*) from $TABLE_NAME", null)
+        val count = if (c.moveToFirst()) c.getLong(0) else 0L
+        c.close()
+        return count
+    }
+}
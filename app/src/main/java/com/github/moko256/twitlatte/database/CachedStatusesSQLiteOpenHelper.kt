@@ -16,20 +16,16 @@
 
 package com.github.moko256.twitlatte.database
 
-import android.content.ContentValues
 import android.content.Context
 import android.database.Cursor
 import android.database.sqlite.SQLiteDatabase
-import android.database.sqlite.SQLiteOpenHelper
 import android.database.sqlite.SQLiteStatement
 import androidx.collection.ArraySet
 import com.github.moko256.latte.client.base.entity.*
 import com.github.moko256.latte.html.entity.Link
 import com.github.moko256.twitlatte.database.utils.*
 import com.github.moko256.twitlatte.text.splitWithComma
-import java.io.File
 import java.net.URLDecoder
-import java.net.URLEncoder
 import java.util.*
 
 /**
@@ -38,21 +34,14 @@ import java.util.*
  * @author moko256
  */
 
-class CachedStatusesSQLiteOpenHelper(
+class CachedStatusesSQLiteOpenHelper @JvmOverloads constructor(
         context: Context,
-        val accessToken: AccessToken?
-) : SQLiteOpenHelper(
-        context,
-        if (accessToken != null) {
-            File(context.cacheDir, accessToken.getKeyString() + "/CachedStatuses.db").absolutePath
-        } else {
-            null
-        },
-        null, 7
-) {
+        val accessToken: AccessToken?,
+        override val keepsConnectionOpen: Boolean = false
+) : CacheSQLiteOpenHelper(context, accessToken) {
 
-    private companion object {
-        private const val TABLE_NAME = "CachedStatuses"
+    internal companion object {
+        internal const val TABLE_NAME = "CachedStatuses"
         private val TABLE_COLUMNS = arrayOf(
                 "createdAt",
                 "id",
@@ -71,18 +60,8 @@ class CachedStatusesSQLiteOpenHelper(
                 "inReplyToScreenName",
                 "isSensitive",
                 "lang",
-                "mentions",
-                "urls_urls",
-                "urls_starts",
-                "urls_ends",
-                "medias_thumbnail_urls",
-                "medias_original_urls",
-                "medias_download_video_urls",
-                "medias_types",
                 "quotedStatusId",
                 "url",
-                "emojis_shortcodes",
-                "emojis_urls",
                 "contentWarning",
                 "visibility",
                 "card_title",
@@ -94,45 +73,218 @@ class CachedStatusesSQLiteOpenHelper(
                 "poll_expired",
                 "poll_multiple",
                 "poll_votesCount",
+                "poll_voted",
+                "entities",
+                "fingerprint"
+        )
+
+        /**
+         * Comma-joined list columns until version 7 of CachedStatuses.db, which are replaced by "entities"
+         * (See [StatusEntities]). They are left in upgraded files as null.
+         */
+        private val LEGACY_LIST_COLUMNS = arrayOf(
+                "mentions",
+                "urls_urls",
+                "urls_starts",
+                "urls_ends",
+                "medias_thumbnail_urls",
+                "medias_original_urls",
+                "medias_download_video_urls",
+                "medias_types",
+                "emojis_shortcodes",
+                "emojis_urls",
                 "poll_optionTitles",
-                "poll_optionCounts",
-                "poll_voted"
+                "poll_optionCounts"
         )
 
-        private const val COUNTS_TABLE_NAME = "Counts"
-    }
+        private val REPLACE_STATUS_STATEMENT = TABLE_COLUMNS.joinToString(
+                ",",
+                "insert or replace into $TABLE_NAME(",
+                ") values(${TABLE_COLUMNS.joinToString(",") { "?" }})"
+        )
 
-    override fun onCreate(db: SQLiteDatabase) {
-        db.createTableWithUniqueIntKey(TABLE_NAME, TABLE_COLUMNS, 1 /*TABLE_COLUMNS.indexOf("id")*/)
-        db.createTableWithUniqueIntKey(COUNTS_TABLE_NAME, arrayOf("id", "count integer default 0"), 0)
-    }
+        /**
+         * Selects the status, the repeated status and the quoted status of a post as one row.
+         * Append the list of ids in parentheses.
+         */
+        private val POST_ROWS_QUERY = arrayOf("s", "r", "q").joinToString(",", "select ") { alias ->
+            TABLE_COLUMNS.joinToString(",") { "$alias.$it" }
+        } + " from $TABLE_NAME s" +
+                " left join $TABLE_NAME r on r.id=s.repeatedStatusId" +
+                " left join $TABLE_NAME q on q.id=(case when s.repeatedStatusId=-1 then s.quotedStatusId else r.quotedStatusId end)" +
+                " where s.id in "
+        private val POST_ROW_OFFSETS = intArrayOf(0, TABLE_COLUMNS.size, TABLE_COLUMNS.size * 2)
+
+        /**
+         * Selects the rows of [POST_ROWS_QUERY] and the users of their statuses for the ids of a page of a list,
+         * in the order of the list. Bind the name of the list and append the limit.
+         */
+        private val LIST_POST_ROWS_QUERY = arrayOf("s", "r", "q").joinToString(",", "select ") { alias ->
+            TABLE_COLUMNS.joinToString(",") { "$alias.$it" }
+        } + arrayOf("su", "ru", "qu").joinToString(",", ",") { alias ->
+            CachedUsersSQLiteOpenHelper.TABLE_COLUMNS.joinToString(",") { "$alias.$it" }
+        } + " from ${CachedIdListSQLiteOpenHelper.ID_LIST_TABLE_NAME} l" +
+                " left join $TABLE_NAME s on s.id=l.id" +
+                " left join $TABLE_NAME r on r.id=s.repeatedStatusId" +
+                " left join $TABLE_NAME q on q.id=(case when s.repeatedStatusId=-1 then s.quotedStatusId else r.quotedStatusId end)" +
+                " left join ${CachedUsersSQLiteOpenHelper.TABLE_NAME} su on su.id=s.userId" +
+                " left join ${CachedUsersSQLiteOpenHelper.TABLE_NAME} ru on ru.id=r.userId" +
+                " left join ${CachedUsersSQLiteOpenHelper.TABLE_NAME} qu on qu.id=q.userId" +
+                " where l.listName=? order by l.position desc"
+        private val LIST_POST_USER_OFFSETS = IntArray(3) {
+            TABLE_COLUMNS.size * 3 + CachedUsersSQLiteOpenHelper.TABLE_COLUMNS.size * it
+        }
+
+        internal const val COUNTS_TABLE_NAME = "Counts"
+
+        private const val ID_QUERY_CHUNK_SIZE = 500
+
+        internal fun createTables(db: SQLiteDatabase) {
+            db.createTableWithUniqueIntKey(TABLE_NAME, TABLE_COLUMNS, 1 /*TABLE_COLUMNS.indexOf("id")*/)
+            db.createTableWithUniqueIntKey(COUNTS_TABLE_NAME, arrayOf("id", "count integer default 0"), 0)
+
+            // To find statuses which repeat or quote a status without scanning the table
+            db.execSQL("create index ${TABLE_NAME}_repeatedStatusId on $TABLE_NAME(repeatedStatusId)")
+            db.execSQL("create index ${TABLE_NAME}_quotedStatusId on $TABLE_NAME(quotedStatusId)")
+        }
+
+        /**
+         * Upgrades CachedStatuses.db, which held only these tables until they were moved to the cache database,
+         * from [oldVersion] to its last version 10, in the same steps as the helper of the file did.
+         *
+         * @return false if the rows of [oldVersion] are not kept, as the helper dropped them
+         */
+        internal fun upgradeSeparateFile(db: SQLiteDatabase, oldVersion: Int): Boolean {
+            if (oldVersion < 4) {
+                return false
+            }
+            if (oldVersion < 5) {
+                db.addColumn(TABLE_NAME, "card_title")
+                db.addColumn(TABLE_NAME, "card_url")
+            }
+            if (oldVersion < 6) {
+                db.addColumn(TABLE_NAME, "card_description", "\"\"")
+                db.addColumn(TABLE_NAME, "card_image_url")
+            }
+            if (oldVersion < 7) {
+                arrayOf(
+                        "poll_expiresAt",
+                        "poll_expired",
+                        "poll_multiple",
+                        "poll_votesCount",
+                        "poll_optionTitles",
+                        "poll_optionCounts",
+                        "poll_voted"
+                ).forEach {
+                    db.addColumn(TABLE_NAME, it)
+                }
+                db.addColumn(TABLE_NAME, "poll_id", "-1")
+            }
+            if (oldVersion < 8) {
+                migrateListColumnsToEntities(db)
+            }
+            // Version 9 added only the indexes, which the cache database has
+            if (oldVersion < 10) {
+                db.addColumn(TABLE_NAME, "fingerprint")
+            }
+            return true
+        }
+
+        private fun migrateListColumnsToEntities(db: SQLiteDatabase) {
+            db.addColumn(TABLE_NAME, "entities")
+
+            val rows = db.selectMultipleAsList(
+                    TABLE_NAME,
+                    arrayOf("id", *LEGACY_LIST_COLUMNS),
+                    "repeatedStatusId=-1"
+            ) {
+                getLong(0) to StatusEntities(
+                        mentions = getString(1).splitWithComma()?.toTypedArray(),
+                        urls = restoreLinks(
+                                getString(2).splitWithComma(),
+                                getString(3).splitWithComma(),
+                                getString(4).splitWithComma()
+                        ),
+                        medias = restoreMedias(
+                                getString(5).splitWithCommaAndReplaceEmptyWithNull(),
+                                getString(6).splitWithComma(),
+                                getString(7).splitWithCommaAndReplaceEmptyWithNull(),
+                                getString(8).splitWithComma()
+                        ),
+                        emojis = restoreEmojis(
+                                getString(9).splitWithComma(),
+                                getString(10).splitWithComma()
+                        ),
+                        pollOptionTitles = getString(11).splitWithComma()?.map { URLDecoder.decode(it, "utf-8") },
+                        pollOptionCounts = getString(12).splitWithComma()?.map { it.toInt() }
+                ).encode()
+            }
 
-    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
-        if (oldVersion < 4) {
-            db.execSQL("drop table $TABLE_NAME")
-            onCreate(db)
+            db.compileStatement("update $TABLE_NAME set entities=? where id=?").use { statement ->
+                rows.forEach { (id, entities) ->
+                    if (entities != null) {
+                        statement.bindBlob(1, entities)
+                        statement.bindLong(2, id)
+                        statement.execute()
+                    }
+                }
+            }
+            db.execSQL("update $TABLE_NAME set ${LEGACY_LIST_COLUMNS.joinToString(",") { "$it=null" }}")
         }
-        if (oldVersion < 5) {
-            db.addColumn(TABLE_NAME, "card_title")
-            db.addColumn(TABLE_NAME, "card_url")
+
+        private fun restoreEmojis(
+                shortCodes: List<String>?,
+                urls: List<String>?
+        ): Array<Emoji>? = if (shortCodes != null && urls != null && urls.size == shortCodes.size) {
+            Array(shortCodes.size) {
+                Emoji(
+                        shortCode = shortCodes[it],
+                        url = urls[it]
+                )
+            }
+        } else {
+            null
         }
-        if (oldVersion < 6) {
-            db.addColumn(TABLE_NAME, "card_description", "\"\"")
-            db.addColumn(TABLE_NAME, "card_image_url")
+
+        private fun restoreLinks(
+                urls: List<String>?,
+                starts: List<String>?,
+                ends: List<String>?
+        ): Array<Link>? = if (urls != null
+                && starts != null
+                && starts.size == urls.size
+                && ends != null
+                && ends.size == urls.size) {
+            Array(urls.size) {
+                Link(
+                        url = urls[it],
+                        start = starts[it].toInt(),
+                        end = ends[it].toInt()
+                )
+            }
+        } else {
+            null
         }
-        if (oldVersion < 7) {
-            arrayOf(
-                    "poll_expiresAt",
-                    "poll_expired",
-                    "poll_multiple",
-                    "poll_votesCount",
-                    "poll_optionTitles",
-                    "poll_optionCounts",
-                    "poll_voted"
-            ).forEach {
-                db.addColumn(TABLE_NAME, it)
+
+        private fun restoreMedias(
+                thumbnailUrls: List<String?>?,
+                originalUrls: List<String>?,
+                downloadVideoUrls: List<String?>?,
+                imageTypes: List<String>?
+        ): Array<Media>? = if (imageTypes != null
+                && thumbnailUrls != null && thumbnailUrls.size == imageTypes.size
+                && originalUrls != null && originalUrls.size == imageTypes.size
+                && downloadVideoUrls != null && downloadVideoUrls.size == imageTypes.size) {
+            Array(imageTypes.size) {
+                Media(
+                        thumbnailUrl = thumbnailUrls[it],
+                        originalUrl = originalUrls[it],
+                        downloadVideoUrl = downloadVideoUrls[it],
+                        mediaType = imageTypes[it]
+                )
             }
-            db.addColumn(TABLE_NAME, "poll_id", "-1")
+        } else {
+            null
         }
     }
 
@@ -148,54 +300,154 @@ class CachedStatusesSQLiteOpenHelper(
         }
     }
 
-    private fun convertCursorToStatusObject(c: Cursor): StatusObject {
-        val createdAt = Date(c.getLong(0))
-        val statusId = c.getLong(1)
-        val userId = c.getLong(2)
-        val repeatedStatusId = c.getLong(3)
+    fun getCachedStatuses(ids: LongArray): List<StatusObject> {
+        return read {
+            selectMultipleAsList(
+                TABLE_NAME,
+                TABLE_COLUMNS,
+                "id in (${ids.joinToString(",")})"
+            ) {
+                convertCursorToStatusObject(this)
+            }
+        }
+    }
+
+    /**
+     * Returns statuses of [ids], statuses repeated by them and statuses quoted by all of them.
+     * This is everything needed to make [Post]s of [ids].
+     *
+     * Each post is read as one row joining the status, the repeated status and the quoted status.
+     */
+    fun getCachedStatusesWithReferences(ids: LongArray): List<StatusObject> {
+        val result = ArrayList<StatusObject>(ids.size * 2)
+        val addedIds = ArraySet<Long>(ids.size * 2)
+        read {
+            val cursor = rawQuery("$POST_ROWS_QUERY(${ids.joinToString(",")})", null)
+            while (cursor.moveToNext()) {
+                for (offset in POST_ROW_OFFSETS) {
+                    if (!cursor.isNull(offset + 1) && addedIds.add(cursor.getLong(offset + 1))) {
+                        result.add(convertCursorToStatusObject(cursor, offset))
+                    }
+                }
+            }
+            cursor.close()
+        }
+        return result
+    }
+
+    /**
+     * Returns posts of [count] ids from [fromPosition] of the list [listName] (See [CachedIdListSQLiteOpenHelper]),
+     * each read as one row joining the statuses and the users of the post.
+     *
+     * @return posts in the order of the list, null if the status of the id is not cached
+     */
+    fun getPosts(listName: String, fromPosition: Int, count: Int): List<Post?> {
+        return read {
+            val cursor = rawQuery("$LIST_POST_ROWS_QUERY limit $count offset $fromPosition", arrayOf(listName))
+            val posts = ArrayList<Post?>(cursor.count)
+            while (cursor.moveToNext()) {
+                posts.add(convertCursorToPost(cursor))
+            }
+            cursor.close()
+            posts
+        }
+    }
+
+    /**
+     * Assembles a post from a row of [LIST_POST_ROWS_QUERY], in the same way as PostCache does from the caches.
+     */
+    private fun convertCursorToPost(c: Cursor): Post? {
+        if (c.isNull(POST_ROW_OFFSETS[0] + 1)) {
+            return null
+        }
+        val statusObject = convertCursorToStatusObject(c, POST_ROW_OFFSETS[0])
+        val statusUser = convertCursorToUserOrNull(c, LIST_POST_USER_OFFSETS[0])
+
+        val repeat: Repeat?
+        val repeatedUser: User?
+        val status: Status?
+        val user: User?
+        when (statusObject) {
+            is Repeat -> {
+                repeat = statusObject
+                repeatedUser = statusUser
+                status = if (!c.isNull(POST_ROW_OFFSETS[1] + 1)) {
+                    convertCursorToStatusObject(c, POST_ROW_OFFSETS[1]) as? Status
+                } else {
+                    null
+                }
+                user = convertCursorToUserOrNull(c, LIST_POST_USER_OFFSETS[1])
+            }
+            is Status -> {
+                repeat = null
+                repeatedUser = null
+                status = statusObject
+                user = statusUser
+            }
+        }
+
+        val quotedStatus = if (!c.isNull(POST_ROW_OFFSETS[2] + 1)) {
+            convertCursorToStatusObject(c, POST_ROW_OFFSETS[2]) as? Status
+        } else {
+            null
+        }
+
+        return Post(
+                id = statusObject.getId(),
+                repeat = repeat,
+                repeatedUser = repeatedUser,
+                status = status,
+                user = user,
+                quotedRepeatingStatus = quotedStatus,
+                quotedRepeatingUser = convertCursorToUserOrNull(c, LIST_POST_USER_OFFSETS[2])
+        )
+    }
+
+    private fun convertCursorToUserOrNull(c: Cursor, offset: Int): User? {
+        return if (!c.isNull(offset)) {
+            CachedUsersSQLiteOpenHelper.convertCursorToUser(c, offset)
+        } else {
+            null
+        }
+    }
+
+    private fun convertCursorToStatusObject(c: Cursor, offset: Int = 0): StatusObject {
+        val createdAt = Date(c.getLong(offset))
+        val statusId = c.getLong(offset + 1)
+        val userId = c.getLong(offset + 2)
+        val repeatedStatusId = c.getLong(offset + 3)
         return if (repeatedStatusId == -1L) {
+            val entities = StatusEntities.decode(c.getBlob(offset + 31))
             Status(
                     createdAt = createdAt,
                     id = statusId,
                     userId = userId,
-                    text = c.getString(4),
-                    sourceName = c.getString(5),
-                    sourceWebsite = c.getString(6),
-                    inReplyToStatusId = c.getLong(7),
-                    inReplyToUserId = c.getLong(8),
-                    isFavorited = c.getBoolean(9),
-                    isRepeated = c.getBoolean(10),
-                    favoriteCount = c.getInt(11),
-                    repeatCount = c.getInt(12),
-                    repliesCount = c.getInt(13),
-                    inReplyToScreenName = c.getString(14),
-                    isSensitive = c.getBoolean(15),
-                    lang = c.getString(16),
-                    mentions = c.getString(17).splitWithComma()?.toTypedArray(),
-                    urls = restoreLinks(
-                            c.getString(18).splitWithComma(),
-                            c.getString(19).splitWithComma(),
-                            c.getString(20).splitWithComma()
-                    ),
-                    medias = restoreMedias(
-                            c.getString(21).splitWithCommaAndReplaceEmptyWithNull(),
-                            c.getString(22).splitWithComma(),
-                            c.getString(23).splitWithCommaAndReplaceEmptyWithNull(),
-                            c.getString(24).splitWithComma()
-                    ),
-                    quotedStatusId = c.getLong(25),
-                    url = c.getString(26),
-                    emojis = restoreEmojis(
-                            c.getString(27).splitWithComma(),
-                            c.getString(28).splitWithComma()
-                    ),
-                    spoilerText = c.getString(29),
-                    visibility = c.getString(30),
+                    text = c.getString(offset + 4),
+                    sourceName = c.getString(offset + 5),
+                    sourceWebsite = c.getString(offset + 6),
+                    inReplyToStatusId = c.getLong(offset + 7),
+                    inReplyToUserId = c.getLong(offset + 8),
+                    isFavorited = c.getBoolean(offset + 9),
+                    isRepeated = c.getBoolean(offset + 10),
+                    favoriteCount = c.getInt(offset + 11),
+                    repeatCount = c.getInt(offset + 12),
+                    repliesCount = c.getInt(offset + 13),
+                    inReplyToScreenName = c.getString(offset + 14),
+                    isSensitive = c.getBoolean(offset + 15),
+                    lang = c.getString(offset + 16),
+                    mentions = entities.mentions,
+                    urls = entities.urls,
+                    medias = entities.medias,
+                    quotedStatusId = c.getLong(offset + 17),
+                    url = c.getString(offset + 18),
+                    emojis = entities.emojis,
+                    spoilerText = c.getString(offset + 19),
+                    visibility = c.getString(offset + 20),
                     card = c.let {
-                        val title = it.getString(31)
-                        val description = it.getString(32)
-                        val url = it.getString(33)
-                        val imageUrl = it.getString(34)
+                        val title = it.getString(offset + 21)
+                        val description = it.getString(offset + 22)
+                        val url = it.getString(offset + 23)
+                        val imageUrl = it.getString(offset + 24)
 
                         if (title != null && description != null && url != null) {
                             Card(
@@ -209,19 +461,17 @@ class CachedStatusesSQLiteOpenHelper(
                         }
                     },
                     poll = let {
-                        val pollId = c.getLong(35)
+                        val pollId = c.getLong(offset + 25)
                         if (pollId != -1L) {
                             Poll(
                                     pollId,
-                                    Date(c.getLong(36)),
-                                    c.getBoolean(37),
-                                    c.getBoolean(38),
-                                    c.getInt(39),
-                                    c.getString(40).splitWithComma()?.map { URLDecoder.decode(it, "utf-8") }
-                                            ?: emptyList(),
-                                    c.getString(41).splitWithComma()?.map { it.toInt() }
-                                            ?: emptyList(),
-                                    c.getBoolean(42)
+                                    Date(c.getLong(offset + 26)),
+                                    c.getBoolean(offset + 27),
+                                    c.getBoolean(offset + 28),
+                                    c.getInt(offset + 29),
+                                    entities.pollOptionTitles ?: emptyList(),
+                                    entities.pollOptionCounts ?: emptyList(),
+                                    c.getBoolean(offset + 30)
                             )
                         } else {
                             null
@@ -248,43 +498,40 @@ class CachedStatusesSQLiteOpenHelper(
         }
     }
 
+    /**
+     * Walks references level by level, reading each level with one query per [ID_QUERY_CHUNK_SIZE] ids.
+     * (Recursive common table expressions are not available in SQLite of API 19.)
+     */
     private fun getIdsInUseInner(db: SQLiteDatabase, ids: Collection<Long>): Collection<Long> {
         val result = ArraySet<Long>(ids.size * 5)
-        val columns = arrayOf(TABLE_COLUMNS[3], TABLE_COLUMNS[25])
-
-        ids.forEach { id ->
-            db.selectMultiple(
-                TABLE_NAME,
-                columns,
-                "id=$id"
-            ) {
-                val repeatId = getLong(0)
-                if (repeatId != -1L) {
-                    if (!ids.contains(repeatId)) {
-                        result.add(repeatId)
-                    }
-                } else {
-                    val quotedId = getLong(1)
-                    if (quotedId != -1L) {
-                        if (!ids.contains(quotedId)) {
-                            result.add(quotedId)
-                        }
+        val visited = ArraySet<Long>(ids.size * 6)
+        visited.addAll(ids)
+
+        var level: List<Long> = ids.toList()
+        while (level.isNotEmpty()) {
+            val nextLevel = ArrayList<Long>()
+            level.chunked(ID_QUERY_CHUNK_SIZE).forEach { chunk ->
+                db.selectMultiple(
+                    TABLE_NAME,
+                    arrayOf("repeatedStatusId", "quotedStatusId"),
+                    "id in (${chunk.joinToString(",")})"
+                ) {
+                    val repeatId = getLong(0)
+                    val referredId = if (repeatId != -1L) repeatId else getLong(1)
+                    if (referredId != -1L && visited.add(referredId)) {
+                        result.add(referredId)
+                        nextLevel.add(referredId)
                     }
                 }
             }
-        }
-
-        if (result.isNotEmpty()) {
-            result.addAll(getIdsInUseInner(db, result))
+            level = nextLevel
         }
         return result
     }
 
     fun addCachedStatus(status: StatusObject, incrementCount: Boolean) {
-        val values = createStatusContentValues(status)
-
         transaction {
-            replace(TABLE_NAME, null, values)
+            replaceStatuses(this, listOf(status))
             if (incrementCount) {
                 val id = status.getId()
                 val insertIfNeeded = insertOrIgnoreCountStatement(this)
@@ -299,13 +546,13 @@ class CachedStatusesSQLiteOpenHelper(
         }
     }
 
-    fun addCachedStatuses(statuses: Collection<StatusObject>, incrementCount: Boolean, vararg excludeIncrementIds: Long) {
-        val contentValues = statuses.map { createStatusContentValues(it) }
-
+    /**
+     * @return the number of statuses written, which excludes statuses whose content is unchanged
+     */
+    fun addCachedStatuses(statuses: Collection<StatusObject>, incrementCount: Boolean, vararg excludeIncrementIds: Long): Int {
+        var written = 0
         transaction {
-            contentValues.forEach {
-                replace(TABLE_NAME, null, it)
-            }
+            written = replaceStatuses(this, statuses)
 
             if (incrementCount) {
                 val insertIfNeeded = insertOrIgnoreCountStatement(this)
@@ -323,6 +570,37 @@ class CachedStatusesSQLiteOpenHelper(
                 }
             }
         }
+        return written
+    }
+
+    /**
+     * Writes [statuses] in one transaction, adding `increments[i]` to the count of `statuses[i]`.
+     * Counts are added whether or not the content of the status is changed.
+     *
+     * @return the number of statuses written, which excludes statuses whose content is unchanged
+     */
+    fun addCachedStatuses(statuses: List<StatusObject>, increments: IntArray): Int {
+        var written = 0
+        transaction {
+            written = replaceStatuses(this, statuses)
+
+            val insertIfNeeded = insertOrIgnoreCountStatement(this)
+            val increment = compileStatement("UPDATE $COUNTS_TABLE_NAME SET count=count+? WHERE id=?")
+
+            statuses.forEachIndexed { index, status ->
+                val count = increments[index]
+                if (count > 0) {
+                    val id = status.getId()
+                    insertIfNeeded.bindLong(1, id)
+                    insertIfNeeded.execute()
+
+                    increment.bindLong(1, count.toLong())
+                    increment.bindLong(2, id)
+                    increment.execute()
+                }
+            }
+        }
+        return written
     }
 
     private fun insertOrIgnoreCountStatement(database: SQLiteDatabase): SQLiteStatement {
@@ -333,122 +611,185 @@ class CachedStatusesSQLiteOpenHelper(
         return database.compileStatement("UPDATE $COUNTS_TABLE_NAME SET count=count+1 WHERE id=?")
     }
 
-    private fun createStatusContentValues(status: StatusObject): ContentValues {
-        val contentValues = ContentValues(TABLE_COLUMNS.size)
+    private fun replaceStatusStatement(database: SQLiteDatabase): SQLiteStatement {
+        return database.compileStatement(REPLACE_STATUS_STATEMENT)
+    }
 
-        when (status) {
-            is Status -> {
-                contentValues.put(TABLE_COLUMNS[0], status.createdAt.time)
-                contentValues.put(TABLE_COLUMNS[1], status.id)
-                contentValues.put(TABLE_COLUMNS[2], status.userId)
-                contentValues.put(TABLE_COLUMNS[3], -1L)
-                contentValues.put(TABLE_COLUMNS[4], status.text)
-                contentValues.put(TABLE_COLUMNS[5], status.sourceName)
-                contentValues.put(TABLE_COLUMNS[6], status.sourceWebsite)
-                contentValues.put(TABLE_COLUMNS[7], status.inReplyToStatusId)
-                contentValues.put(TABLE_COLUMNS[8], status.inReplyToUserId)
-                contentValues.put(TABLE_COLUMNS[9], status.isFavorited)
-                contentValues.put(TABLE_COLUMNS[10], status.isRepeated)
-                contentValues.put(TABLE_COLUMNS[11], status.favoriteCount)
-                contentValues.put(TABLE_COLUMNS[12], status.repeatCount)
-                contentValues.put(TABLE_COLUMNS[13], status.repliesCount)
-                contentValues.put(TABLE_COLUMNS[14], status.inReplyToScreenName)
-                contentValues.put(TABLE_COLUMNS[15], status.isSensitive)
-                contentValues.put(TABLE_COLUMNS[16], status.lang)
-
-                val mentions = status.mentions
-                if (mentions != null) {
-                    contentValues.put(TABLE_COLUMNS[17], mentions.joinToString(","))
+    /**
+     * Writes [statuses] with one compiled statement, which is much cheaper than building ContentValues
+     * and compiling `replace` for each row. Call this in a transaction.
+     *
+     * Statuses whose fingerprint equals the stored one are skipped, because most statuses of a refresh
+     * are already cached with the same content.
+     *
+     * @return the number of statuses written
+     */
+    private fun replaceStatuses(database: SQLiteDatabase, statuses: Collection<StatusObject>): Int {
+        val storedFingerprints = database.selectFingerprints(TABLE_NAME, statuses.map { it.getId() }, ID_QUERY_CHUNK_SIZE)
+        var written = 0
+        replaceStatusStatement(database).use { statement ->
+            statuses.forEach {
+                val id = it.getId()
+                val entities = encodeEntities(it)
+                val fingerprint = fingerprint(it, entities)
+                if (storedFingerprints[id] != fingerprint) {
+                    bindStatus(statement, it, entities, fingerprint)
+                    statement.executeInsert()
+                    storedFingerprints[id] = fingerprint
+                    written++
                 }
+            }
+        }
+        return written
+    }
 
-                status.urls?.let {
-                    val size = it.size
-                    val urls = arrayOfNulls<String>(size)
-                    val starts = arrayOfNulls<String>(size)
-                    val ends = arrayOfNulls<String>(size)
+    private fun encodeEntities(status: StatusObject): ByteArray? {
+        return if (status is Status) {
+            StatusEntities(
+                    mentions = status.mentions,
+                    urls = status.urls,
+                    medias = status.medias,
+                    emojis = status.emojis,
+                    pollOptionTitles = status.poll?.optionTitles,
+                    pollOptionCounts = status.poll?.optionCounts
+            ).encode()
+        } else {
+            null
+        }
+    }
 
-                    it.forEachIndexed { i, entity ->
-                        urls[i] = entity.url
-                        starts[i] = entity.start.toString()
-                        ends[i] = entity.end.toString()
-                    }
-                    contentValues.put(TABLE_COLUMNS[18], urls.joinToString(","))
-                    contentValues.put(TABLE_COLUMNS[19], starts.joinToString(","))
-                    contentValues.put(TABLE_COLUMNS[20], ends.joinToString(","))
-                }
+    /**
+     * Hashes all values bound by [bindStatus] except the fingerprint itself.
+     */
+    private fun fingerprint(status: StatusObject, entities: ByteArray?): Long {
+        val fingerprint = RowFingerprint()
+        when (status) {
+            is Status -> {
+                fingerprint
+                        .add(status.createdAt.time)
+                        .add(status.id)
+                        .add(status.userId)
+                        .add(-1L)
+                        .add(status.text)
+                        .add(status.sourceName)
+                        .add(status.sourceWebsite)
+                        .add(status.inReplyToStatusId)
+                        .add(status.inReplyToUserId)
+                        .add(status.isFavorited)
+                        .add(status.isRepeated)
+                        .add(status.favoriteCount)
+                        .add(status.repeatCount)
+                        .add(status.repliesCount)
+                        .add(status.inReplyToScreenName)
+                        .add(status.isSensitive)
+                        .add(status.lang)
+                        .add(status.quotedStatusId)
+                        .add(status.url)
+                        .add(status.spoilerText)
+                        .add(status.visibility)
+
+                val card = status.card
+                fingerprint
+                        .add(card?.title)
+                        .add(card?.description)
+                        .add(card?.url)
+                        .add(card?.imageUrl)
 
-                status.medias?.let {
-                    val size = it.size
-                    val thumbnailUrls = arrayOfNulls<String>(size)
-                    val originalUrls = arrayOfNulls<String>(size)
-                    val downloadVideoUrls = arrayOfNulls<String>(size)
-                    val types = arrayOfNulls<String>(size)
-
-                    it.forEachIndexed { i, entity ->
-                        thumbnailUrls[i] = entity.thumbnailUrl
-                        originalUrls[i] = entity.originalUrl
-                        downloadVideoUrls[i] = entity.downloadVideoUrl
-                        types[i] = entity.mediaType
-                    }
-                    contentValues.put(TABLE_COLUMNS[21], thumbnailUrls.joinToString(","))
-                    contentValues.put(TABLE_COLUMNS[22], originalUrls.joinToString(","))
-                    contentValues.put(TABLE_COLUMNS[23], downloadVideoUrls.joinToString(","))
-                    contentValues.put(TABLE_COLUMNS[24], types.joinToString(","))
+                val poll = status.poll
+                if (poll != null) {
+                    fingerprint
+                            .add(poll.id)
+                            .add(poll.expiresAt?.time ?: -1L)
+                            .add(poll.expired)
+                            .add(poll.multiple)
+                            .add(poll.votesCount)
+                            .add(poll.voted)
+                } else {
+                    fingerprint.add(-1L)
                 }
 
-                contentValues.put(TABLE_COLUMNS[25], status.quotedStatusId)
-
-                contentValues.put(TABLE_COLUMNS[26], status.url)
+                fingerprint.add(entities)
+            }
 
-                status.emojis?.let {
-                    val size = it.size
-                    val shortCodes = arrayOfNulls<String>(size)
-                    val urls = arrayOfNulls<String>(size)
+            is Repeat -> {
+                fingerprint
+                        .add(status.createdAt.time)
+                        .add(status.id)
+                        .add(status.userId)
+                        .add(status.repeatedStatusId)
+            }
+        }
+        return fingerprint.value
+    }
 
-                    it.forEachIndexed { i, emoji ->
-                        shortCodes[i] = emoji.shortCode
-                        urls[i] = emoji.url
-                    }
-                    contentValues.put(TABLE_COLUMNS[27], shortCodes.joinToString(","))
-                    contentValues.put(TABLE_COLUMNS[28], urls.joinToString(","))
-                }
+    /**
+     * Binds [status] to the statement of [replaceStatusStatement]. Parameter i + 1 is TABLE_COLUMNS[i].
+     */
+    private fun bindStatus(statement: SQLiteStatement, status: StatusObject, entities: ByteArray?, fingerprint: Long) {
+        statement.clearBindings()
 
-                contentValues.put(TABLE_COLUMNS[29], status.spoilerText)
-                contentValues.put(TABLE_COLUMNS[30], status.visibility)
+        when (status) {
+            is Status -> {
+                statement.bindLong(1, status.createdAt.time)
+                statement.bindLong(2, status.id)
+                statement.bindLong(3, status.userId)
+                statement.bindLong(4, -1L)
+                statement.bindString(5, status.text)
+                statement.bindStringOrNull(6, status.sourceName)
+                statement.bindStringOrNull(7, status.sourceWebsite)
+                statement.bindLong(8, status.inReplyToStatusId)
+                statement.bindLong(9, status.inReplyToUserId)
+                statement.bindBoolean(10, status.isFavorited)
+                statement.bindBoolean(11, status.isRepeated)
+                statement.bindLong(12, status.favoriteCount.toLong())
+                statement.bindLong(13, status.repeatCount.toLong())
+                statement.bindLong(14, status.repliesCount.toLong())
+                statement.bindStringOrNull(15, status.inReplyToScreenName)
+                statement.bindBoolean(16, status.isSensitive)
+                statement.bindStringOrNull(17, status.lang)
+                statement.bindLong(18, status.quotedStatusId)
+                statement.bindString(19, status.url)
+                statement.bindStringOrNull(20, status.spoilerText)
+                statement.bindStringOrNull(21, status.visibility)
 
                 status.card?.let {
-                    contentValues.put(TABLE_COLUMNS[31], it.title)
-                    contentValues.put(TABLE_COLUMNS[32], it.description)
-                    contentValues.put(TABLE_COLUMNS[33], it.url)
-                    contentValues.put(TABLE_COLUMNS[34], it.imageUrl)
+                    statement.bindString(22, it.title)
+                    statement.bindString(23, it.description)
+                    statement.bindString(24, it.url)
+                    statement.bindStringOrNull(25, it.imageUrl)
                 }
 
                 val poll = status.poll
                 if (poll != null) {
-                    contentValues.put(TABLE_COLUMNS[35], poll.id)
-                    contentValues.put(TABLE_COLUMNS[36], poll.expiresAt?.time)
-                    contentValues.put(TABLE_COLUMNS[37], poll.expired)
-                    contentValues.put(TABLE_COLUMNS[38], poll.multiple)
-                    contentValues.put(TABLE_COLUMNS[39], poll.votesCount)
-                    contentValues.put(TABLE_COLUMNS[40], poll.optionTitles.joinToString(",") { URLEncoder.encode(it, "utf-8") })
-                    contentValues.put(TABLE_COLUMNS[41], poll.optionCounts.joinToString(","))
-                    contentValues.put(TABLE_COLUMNS[42], poll.voted)
+                    statement.bindLong(26, poll.id)
+                    statement.bindLongOrNull(27, poll.expiresAt?.time)
+                    statement.bindBoolean(28, poll.expired)
+                    statement.bindBoolean(29, poll.multiple)
+                    statement.bindLong(30, poll.votesCount.toLong())
+                    statement.bindBoolean(31, poll.voted)
                 } else {
-                    contentValues.put(TABLE_COLUMNS[35], -1L)
+                    statement.bindLong(26, -1L)
+                }
+
+                entities?.let {
+                    statement.bindBlob(32, it)
                 }
             }
 
             is Repeat -> {
-                contentValues.put(TABLE_COLUMNS[0], status.createdAt.time)
-                contentValues.put(TABLE_COLUMNS[1], status.id)
-                contentValues.put(TABLE_COLUMNS[2], status.userId)
-                contentValues.put(TABLE_COLUMNS[3], status.repeatedStatusId)
+                statement.bindLong(1, status.createdAt.time)
+                statement.bindLong(2, status.id)
+                statement.bindLong(3, status.userId)
+                statement.bindLong(4, status.repeatedStatusId)
             }
         }
-
-        return contentValues
+        statement.bindLong(33, fingerprint)
     }
 
+    /**
+     * Decrements counts of [ids] and deletes those of them which are no longer counted.
+     * Other statuses which are not counted are left to [deleteUncountedStatuses].
+     */
     fun deleteCachedStatuses(ids: Collection<Long>) {
         transaction {
             val sqLiteStatement = decrementCountStatement(this)
@@ -456,68 +797,41 @@ class CachedStatusesSQLiteOpenHelper(
                 sqLiteStatement.bindLong(1, id)
                 sqLiteStatement.execute()
             }
-            delete(TABLE_NAME, "id not in (select id from $COUNTS_TABLE_NAME where count>0)", null)
-            delete(COUNTS_TABLE_NAME, "count=0", null)
+            ids.chunked(ID_QUERY_CHUNK_SIZE).forEach { chunk ->
+                val idList = chunk.joinToString(",")
+                delete(TABLE_NAME, "id in ($idList) and id not in (select id from $COUNTS_TABLE_NAME where count>0)", null)
+                delete(COUNTS_TABLE_NAME, "id in ($idList) and count<=0", null)
+            }
         }
     }
 
-    private fun decrementCountStatement(database: SQLiteDatabase): SQLiteStatement {
-        return database.compileStatement("UPDATE $COUNTS_TABLE_NAME SET count=count-1 WHERE id=?")
-    }
-
-    private fun restoreEmojis(
-            shortCodes: List<String>?,
-            urls: List<String>?
-    ): Array<Emoji>? = if (shortCodes != null && urls != null && urls.size == shortCodes.size) {
-        Array(shortCodes.size) {
-            Emoji(
-                    shortCode = shortCodes[it],
-                    url = urls[it]
+    /**
+     * Deletes statuses which are not counted, examining at most [limit] statuses whose id is larger than [fromId]
+     * in one short transaction.
+     *
+     * @return the largest id examined, to pass as [fromId] next time, or null if no status is left
+     */
+    fun deleteUncountedStatuses(fromId: Long, limit: Int): Long? {
+        var lastId: Long? = null
+        transaction {
+            val c = rawQuery(
+                "select max(id) from (select id from $TABLE_NAME where id>$fromId order by id limit $limit)",
+                null
             )
-        }
-    } else {
-        null
-    }
+            lastId = if (c.moveToFirst() && !c.isNull(0)) c.getLong(0) else null
+            c.close()
 
-    private fun restoreLinks(
-            urls: List<String>?,
-            starts: List<String>?,
-            ends: List<String>?
-    ): Array<Link>? = if (urls != null
-            && starts != null
-            && starts.size == urls.size
-            && ends != null
-            && ends.size == urls.size) {
-        Array(urls.size) {
-            Link(
-                    url = urls[it],
-                    start = starts[it].toInt(),
-                    end = ends[it].toInt()
-            )
+            lastId?.let {
+                val range = "id>$fromId and id<=$it"
+                delete(TABLE_NAME, "$range and id not in (select id from $COUNTS_TABLE_NAME where count>0)", null)
+                delete(COUNTS_TABLE_NAME, "$range and count<=0", null)
+            }
         }
-    } else {
-        null
+        return lastId
     }
 
-    private fun restoreMedias(
-            thumbnailUrls: List<String?>?,
-            originalUrls: List<String>?,
-            downloadVideoUrls: List<String?>?,
-            imageTypes: List<String>?
-    ): Array<Media>? = if (imageTypes != null
-            && thumbnailUrls != null && thumbnailUrls.size == imageTypes.size
-            && originalUrls != null && originalUrls.size == imageTypes.size
-            && downloadVideoUrls != null && downloadVideoUrls.size == imageTypes.size) {
-        Array(imageTypes.size) {
-            Media(
-                    thumbnailUrl = thumbnailUrls[it],
-                    originalUrl = originalUrls[it],
-                    downloadVideoUrl = downloadVideoUrls[it],
-                    mediaType = imageTypes[it]
-            )
-        }
-    } else {
-        null
+    private fun decrementCountStatement(database: SQLiteDatabase): SQLiteStatement {
+        return database.compileStatement("UPDATE $COUNTS_TABLE_NAME SET count=count-1 WHERE id=?")
     }
 }
 
@@ -534,4 +848,21 @@ internal fun String?.splitWithCommaAndReplaceEmptyWithNull(): List<String?>? {
     } else {
         null
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Returns the stored "fingerprint" of the rows of [ids] by id (See [RowFingerprint]),
+ * used by the status and the user helpers to skip rows whose content is unchanged.
+ * Rows written before fingerprints were stored are not included.
+ */
+internal fun SQLiteDatabase.selectFingerprints(tableName: String, ids: Collection<Long>, chunkSize: Int = 500): MutableMap<Long, Long> {
+    val result = HashMap<Long, Long>(ids.size * 2)
+    ids.chunked(chunkSize).forEach { chunk ->
+        selectMultiple(tableName, arrayOf("id", "fingerprint"), "id in (${chunk.joinToString(",")})") {
+            if (!isNull(1)) {
+                result[getLong(0)] = getLong(1)
+            }
+        }
+    }
+    return result
+}
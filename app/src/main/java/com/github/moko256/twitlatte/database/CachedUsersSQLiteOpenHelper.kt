@@ -16,17 +16,16 @@
 
 package com.github.moko256.twitlatte.database
 
-import android.content.ContentValues
 import android.content.Context
+import android.database.Cursor
 import android.database.sqlite.SQLiteDatabase
-import android.database.sqlite.SQLiteOpenHelper
+import android.database.sqlite.SQLiteStatement
 import com.github.moko256.latte.client.base.entity.AccessToken
 import com.github.moko256.latte.client.base.entity.Emoji
 import com.github.moko256.latte.client.base.entity.User
 import com.github.moko256.latte.html.entity.Link
 import com.github.moko256.twitlatte.database.utils.*
 import com.github.moko256.twitlatte.text.splitWithComma
-import java.io.File
 import java.util.*
 
 /**
@@ -35,11 +34,15 @@ import java.util.*
  * @author moko256
  */
 
-class CachedUsersSQLiteOpenHelper(context: Context, accessToken: AccessToken?) : SQLiteOpenHelper(context, if (accessToken != null) File(context.cacheDir, accessToken.getKeyString() + "/" + "CachedUsers.db").absolutePath else null, null, 3) {
+class CachedUsersSQLiteOpenHelper @JvmOverloads constructor(
+        context: Context,
+        accessToken: AccessToken?,
+        override val keepsConnectionOpen: Boolean = false
+) : CacheSQLiteOpenHelper(context, accessToken) {
 
-    private companion object {
-        private const val TABLE_NAME = "CachedUsers"
-        private val TABLE_COLUMNS = arrayOf(
+    internal companion object {
+        internal const val TABLE_NAME = "CachedUsers"
+        internal val TABLE_COLUMNS = arrayOf(
                 "id",
                 "name",
                 "screenName",
@@ -59,20 +62,96 @@ class CachedUsersSQLiteOpenHelper(context: Context, accessToken: AccessToken?) :
                 "urls_starts",
                 "urls_ends",
                 "Emoji_shortcodes",
-                "Emoji_urls"
+                "Emoji_urls",
+                "fingerprint"
+        )
+        private val REPLACE_USER_STATEMENT = TABLE_COLUMNS.joinToString(
+                ",",
+                "insert or replace into $TABLE_NAME(",
+                ") values(${TABLE_COLUMNS.joinToString(",") { "?" }})"
         )
-    }
 
-    override fun onCreate(db: SQLiteDatabase) {
-        db.createTableWithUniqueIntKey(TABLE_NAME, TABLE_COLUMNS, 0 /*TABLE_COLUMNS.indexOf("id")*/)
-    }
+        internal fun createTables(db: SQLiteDatabase) {
+            db.createTableWithUniqueIntKey(TABLE_NAME, TABLE_COLUMNS, 0 /*TABLE_COLUMNS.indexOf("id")*/)
+        }
+
+        /**
+         * Upgrades CachedUsers.db, which held only this table until it was moved to the cache database,
+         * from [oldVersion] to its last version 4, in the same steps as the helper of the file did.
+         *
+         * @return false if the rows of [oldVersion] are not kept, as the helper dropped them
+         */
+        internal fun upgradeSeparateFile(db: SQLiteDatabase, oldVersion: Int): Boolean {
+            if (oldVersion < 3) {
+                return false
+            }
+            if (oldVersion < 4) {
+                db.addColumn(TABLE_NAME, "fingerprint")
+            }
+            return true
+        }
 
-    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
-        if (oldVersion < 3) {
-            db.execSQL("drop table CachedStatuses")
+        /**
+         * Reads a user from [TABLE_COLUMNS] of [c] from [offset], which is not 0 in rows joined with other tables.
+         */
+        internal fun convertCursorToUser(c: Cursor, offset: Int = 0): User {
+            return User(
+                id = c.getLong(offset),
+                name = c.getString(offset + 1),
+                screenName = c.getString(offset + 2),
+                location = c.getString(offset + 3),
+                description = c.getString(offset + 4),
+                profileImageURLHttps = c.getString(offset + 5),
+                url = c.getString(offset + 6),
+                isProtected = c.getBoolean(offset + 7),
+                followersCount = c.getInt(offset + 8),
+                favoritesCount = c.getInt(offset + 9),
+                friendsCount = c.getInt(offset + 10),
+                createdAt = Date(c.getLong(offset + 11)),
+                profileBannerImageUrl = c.getString(offset + 12),
+                statusesCount = c.getInt(offset + 13),
+                isVerified = c.getBoolean(offset + 14),
+                descriptionLinks = restoreLinks(
+                    c.getString(offset + 15).splitWithComma(),
+                    c.getString(offset + 16).splitWithComma(),
+                    c.getString(offset + 17).splitWithComma()
+                ),
+                emojis = restoreEmojis(
+                    c.getString(offset + 18).splitWithComma(),
+                    c.getString(offset + 19).splitWithComma()
+                )
+            )
+        }
 
-            onCreate(db)
+        private fun restoreLinks(
+                urls: List<String>?,
+                starts: List<String>?,
+                ends: List<String>?
+        ): Array<Link>? = if (urls != null
+                && starts != null
+                && starts.size == urls.size
+                && ends != null
+                && ends.size == urls.size) {
+            Array(urls.size) {
+                Link(
+                        url = urls[it],
+                        start = starts[it].toInt(),
+                        end = ends[it].toInt()
+                )
+            }
+        } else {
+            null
         }
+
+        private fun restoreEmojis(shortCodes: List<String>?,
+                                  urls: List<String>?): Array<Emoji>? =
+                if (shortCodes != null && urls != null) {
+                    Array(shortCodes.size) {
+                        Emoji(shortCodes[it], urls[it])
+                    }
+                } else {
+                    null
+                }
     }
 
     fun getCachedUser(id: Long): User? {
@@ -82,67 +161,112 @@ class CachedUsersSQLiteOpenHelper(context: Context, accessToken: AccessToken?) :
                 TABLE_COLUMNS,
                 "id=$id"
             ) {
-                User(
-                    id = getLong(0),
-                    name = getString(1),
-                    screenName = getString(2),
-                    location = getString(3),
-                    description = getString(4),
-                    profileImageURLHttps = getString(5),
-                    url = getString(6),
-                    isProtected = getBoolean(7),
-                    followersCount = getInt(8),
-                    favoritesCount = getInt(9),
-                    friendsCount = getInt(10),
-                    createdAt = Date(getLong(11)),
-                    profileBannerImageUrl = getString(12),
-                    statusesCount = getInt(13),
-                    isVerified = getBoolean(14),
-                    descriptionLinks = restoreLinks(
-                        getString(15).splitWithComma(),
-                        getString(16).splitWithComma(),
-                        getString(17).splitWithComma()
-                    ),
-                    emojis = restoreEmojis(
-                        getString(18).splitWithComma(),
-                        getString(19).splitWithComma()
-                    )
-                )
+                convertCursorToUser(this)
+            }
+        }
+    }
+
+    fun getCachedUsers(ids: LongArray): List<User> {
+        return read {
+            selectMultipleAsList(
+                TABLE_NAME,
+                TABLE_COLUMNS,
+                "id in (${ids.joinToString(",")})"
+            ) {
+                convertCursorToUser(this)
             }
         }
     }
 
     fun addCachedUser(user: User) {
+        addCachedUsers(listOf(user))
+    }
+
+    /**
+     * Users whose fingerprint equals the stored one are skipped,
+     * because most users of a refresh are already cached with the same content.
+     *
+     * @return the number of users written
+     */
+    fun addCachedUsers(users: Collection<User>): Int {
+        var written = 0
         transaction {
-            addCachedUserAtTransaction(this, user)
+            val storedFingerprints = selectFingerprints(TABLE_NAME, users.map { it.id })
+            compileStatement(REPLACE_USER_STATEMENT).use { statement ->
+                for (user in users) {
+                    val fingerprint = fingerprint(user)
+                    if (storedFingerprints[user.id] != fingerprint) {
+                        bindUser(statement, user, fingerprint)
+                        statement.executeInsert()
+                        storedFingerprints[user.id] = fingerprint
+                        written++
+                    }
+                }
+            }
         }
+        return written
     }
 
-    fun addCachedUsers(users: Collection<User>) {
-        transaction {
-            for (user in users) {
-                addCachedUserAtTransaction(this, user)
+    private fun fingerprint(user: User): Long {
+        val fingerprint = RowFingerprint()
+                .add(user.id)
+                .add(user.name)
+                .add(user.screenName)
+                .add(user.location)
+                .add(user.description)
+                .add(user.profileImageURLHttps)
+                .add(user.url)
+                .add(user.isProtected)
+                .add(user.followersCount)
+                .add(user.favoritesCount)
+                .add(user.friendsCount)
+                .add(user.createdAt.time)
+                .add(user.profileBannerImageUrl)
+                .add(user.statusesCount)
+                .add(user.isVerified)
+
+        val descriptionLinks = user.descriptionLinks
+        if (descriptionLinks != null) {
+            fingerprint.add(descriptionLinks.size)
+            descriptionLinks.forEach {
+                fingerprint.add(it.url).add(it.start).add(it.end)
+            }
+        } else {
+            fingerprint.add(null as String?)
+        }
+
+        val emojis = user.emojis
+        if (emojis != null) {
+            fingerprint.add(emojis.size)
+            emojis.forEach {
+                fingerprint.add(it.shortCode).add(it.url)
             }
+        } else {
+            fingerprint.add(null as String?)
         }
+        return fingerprint.value
     }
 
-    private fun addCachedUserAtTransaction(database: SQLiteDatabase, user: User) {
-        val contentValues = ContentValues(TABLE_COLUMNS.size)
-        contentValues.put(TABLE_COLUMNS[0], user.id)
-        contentValues.put(TABLE_COLUMNS[1], user.name)
-        contentValues.put(TABLE_COLUMNS[2], user.screenName)
-        contentValues.put(TABLE_COLUMNS[3], user.location)
-        contentValues.put(TABLE_COLUMNS[4], user.description)
-        contentValues.put(TABLE_COLUMNS[5], user.profileImageURLHttps)
-        contentValues.put(TABLE_COLUMNS[6], user.url)
-        contentValues.put(TABLE_COLUMNS[7], user.isProtected)
-        contentValues.put(TABLE_COLUMNS[8], user.followersCount)
-        contentValues.put(TABLE_COLUMNS[9], user.favoritesCount)
-        contentValues.put(TABLE_COLUMNS[10], user.friendsCount)
-        contentValues.put(TABLE_COLUMNS[11], user.createdAt.time)
-        contentValues.put(TABLE_COLUMNS[12], user.profileBannerImageUrl)
-        contentValues.put(TABLE_COLUMNS[13], user.statusesCount)
-        contentValues.put(TABLE_COLUMNS[14], user.isVerified)
+    /**
+     * Binds [user] to [REPLACE_USER_STATEMENT]. Parameter i + 1 is TABLE_COLUMNS[i].
+     */
+    private fun bindUser(statement: SQLiteStatement, user: User, fingerprint: Long) {
+        statement.clearBindings()
+        statement.bindLong(1, user.id)
+        statement.bindString(2, user.name)
+        statement.bindString(3, user.screenName)
+        statement.bindStringOrNull(4, user.location)
+        statement.bindString(5, user.description)
+        statement.bindString(6, user.profileImageURLHttps)
+        statement.bindStringOrNull(7, user.url)
+        statement.bindBoolean(8, user.isProtected)
+        statement.bindLong(9, user.followersCount.toLong())
+        statement.bindLong(10, user.favoritesCount.toLong())
+        statement.bindLong(11, user.friendsCount.toLong())
+        statement.bindLong(12, user.createdAt.time)
+        statement.bindStringOrNull(13, user.profileBannerImageUrl)
+        statement.bindLong(14, user.statusesCount.toLong())
+        statement.bindBoolean(15, user.isVerified)
 
         val descriptionLinks = user.descriptionLinks
         if (descriptionLinks != null) {
@@ -156,9 +280,9 @@ class CachedUsersSQLiteOpenHelper(context: Context, accessToken: AccessToken?) :
                 starts[i] = entity.start.toString()
                 ends[i] = entity.end.toString()
             }
-            contentValues.put(TABLE_COLUMNS[15], urls.joinToString(","))
-            contentValues.put(TABLE_COLUMNS[16], starts.joinToString(","))
-            contentValues.put(TABLE_COLUMNS[17], ends.joinToString(","))
+            statement.bindString(16, urls.joinToString(","))
+            statement.bindString(17, starts.joinToString(","))
+            statement.bindString(18, ends.joinToString(","))
         }
 
         val emojis = user.emojis
@@ -171,47 +295,46 @@ class CachedUsersSQLiteOpenHelper(context: Context, accessToken: AccessToken?) :
                 shortCodes[i] = emoji.shortCode
                 urls[i] = emoji.url
             }
-            contentValues.put(TABLE_COLUMNS[18], shortCodes.joinToString(","))
-            contentValues.put(TABLE_COLUMNS[19], urls.joinToString(","))
+            statement.bindString(19, shortCodes.joinToString(","))
+            statement.bindString(20, urls.joinToString(","))
         }
-
-        database.replace(TABLE_NAME, null, contentValues)
+        statement.bindLong(21, fingerprint)
     }
 
-
     fun deleteCachedUser(id: Long) {
         write {
             delete(TABLE_NAME, "id=$id", null)
         }
     }
 
-    private fun restoreLinks(
-            urls: List<String>?,
-            starts: List<String>?,
-            ends: List<String>?
-    ): Array<Link>? = if (urls != null
-            && starts != null
-            && starts.size == urls.size
-            && ends != null
-            && ends.size == urls.size) {
-        Array(urls.size) {
-            Link(
-                    url = urls[it],
-                    start = starts[it].toInt(),
-                    end = ends[it].toInt()
+    /**
+     * Deletes users who neither posted nor repeated a cached status, except [keepUserId],
+     * examining at most [limit] users whose id is larger than [fromId] in one short transaction.
+     * The statuses are checked in the same transaction, so that users of statuses written
+     * between two batches are kept.
+     *
+     * @return the largest id examined, to pass as [fromId] next time, or null if no user is left
+     */
+    fun deleteUnreferencedUsers(keepUserId: Long, fromId: Long, limit: Int): Long? {
+        var lastId: Long? = null
+        transaction {
+            val c = rawQuery(
+                "select max(id) from (select id from $TABLE_NAME where id>$fromId order by id limit $limit)",
+                null
             )
-        }
-    } else {
-        null
-    }
+            lastId = if (c.moveToFirst() && !c.isNull(0)) c.getLong(0) else null
+            c.close()
 
-    private fun restoreEmojis(shortCodes: List<String>?,
-                              urls: List<String>?): Array<Emoji>? =
-            if (shortCodes != null && urls != null) {
-                Array(shortCodes.size) {
-                    Emoji(shortCodes[it], urls[it])
-                }
-            } else {
-                null
+            lastId?.let {
+                val range = "id>$fromId and id<=$it"
+                delete(
+                    TABLE_NAME,
+                    "$range and id!=$keepUserId and id not in " +
+                            "(select userId from ${CachedStatusesSQLiteOpenHelper.TABLE_NAME} where userId>$fromId and userId<=$it)",
+                    null
+                )
             }
-}
\ No newline at end of file
+        }
+        return lastId
+    }
+}
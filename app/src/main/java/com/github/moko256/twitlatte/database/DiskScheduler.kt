@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database
+
+import android.database.sqlite.SQLiteOpenHelper
+import com.github.moko256.twitlatte.metrics.METRICS_DISK_READS
+import com.github.moko256.twitlatte.metrics.METRICS_DISK_WRITES
+import com.github.moko256.twitlatte.metrics.MetricsRegistry
+import com.github.moko256.twitlatte.metrics.SchedulerMetrics
+import io.reactivex.Scheduler
+import io.reactivex.schedulers.Schedulers
+import java.io.File
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.FutureTask
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+private const val READER_THREADS = 3
+private const val IDLE_THREAD_KEEP_ALIVE_SECONDS = 30L
+private const val IN_MEMORY_DATABASE_NAME = ":memory:"
+
+/**
+ * Schedulers for work on the database files, used instead of Schedulers.io().
+ *
+ * Writes to a database file run one at a time on the writer of the file, so that they never contend for
+ * the SQLite lock of the file, while writes to different files run in parallel.
+ * Reads of all files share [reader], a pool of [READER_THREADS] threads which run beside the writers thanks to WAL.
+ * Threads exit while they are idle.
+ *
+ * Network requests must not run on these: subscribe on Schedulers.io() and observe on these.
+ * Queue depths and wait times are reported to [MetricsRegistry].
+ */
+object DiskScheduler {
+
+    private val readExecutor = MeasuredExecutor(
+            ThreadPoolExecutor(
+                    READER_THREADS, READER_THREADS,
+                    IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    LinkedBlockingQueue<Runnable>()
+            ) {
+                Thread(it, "DiskScheduler-reader")
+            }.apply {
+                allowCoreThreadTimeOut(true)
+            },
+            MetricsRegistry.scheduler(METRICS_DISK_READS)
+    )
+
+    val reader: Scheduler = Schedulers.from(readExecutor)
+
+    private val writers = HashMap<String, Writer>()
+
+    /**
+     * Name of the database file whose writer is the current thread.
+     */
+    private val currentWriterName = ThreadLocal<String>()
+
+    fun writer(helper: SQLiteOpenHelper): Scheduler = writerOf(helper.databaseName).scheduler
+
+    fun writer(databaseName: String?): Scheduler = writerOf(databaseName).scheduler
+
+    fun writeExecutor(databaseName: String?): Executor = writerOf(databaseName).executor
+
+    /**
+     * Runs [action] on the writer of [databaseName] and waits for it.
+     * If this is called on the writer, [action] is run here, so that it does not wait for itself.
+     */
+    fun <T> runWrite(databaseName: String?, action: () -> T): T {
+        val name = databaseName ?: IN_MEMORY_DATABASE_NAME
+        if (currentWriterName.get() == name) {
+            return action()
+        }
+
+        val task = FutureTask<T>(Callable { action() })
+        writerOf(name).executor.execute(task)
+        try {
+            return task.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
+    }
+
+    private fun writerOf(databaseName: String?): Writer {
+        val name = databaseName ?: IN_MEMORY_DATABASE_NAME
+        synchronized(writers) {
+            return writers.getOrPut(name) { Writer(name) }
+        }
+    }
+
+    private class Writer(name: String) {
+        val executor = MeasuredExecutor(
+                ThreadPoolExecutor(
+                        0, 1,
+                        IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                        LinkedBlockingQueue<Runnable>()
+                ) { runnable ->
+                    Thread({
+                        currentWriterName.set(name)
+                        runnable.run()
+                    }, "DiskScheduler-writer-" + File(name).name)
+                },
+                MetricsRegistry.scheduler(METRICS_DISK_WRITES)
+        )
+        val scheduler: Scheduler = Schedulers.from(executor)
+    }
+
+    private class MeasuredExecutor(
+            private val executor: Executor,
+            private val metrics: SchedulerMetrics
+    ) : Executor {
+        override fun execute(command: Runnable) {
+            val submittedAt = System.nanoTime()
+            metrics.onSubmitted()
+            executor.execute {
+                metrics.onStarted(System.nanoTime() - submittedAt)
+                metrics.runTimes.time {
+                    command.run()
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database
+
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.LongBuffer
+import java.nio.channels.FileChannel
+
+private const val MAGIC = 0x444c4954 // "TILD" in little-endian
+private const val FORMAT_VERSION = 1
+private const val HEADER_SIZE = 16
+
+/**
+ * Copy of an id list in a file, which can be memory-mapped without opening its database.
+ *
+ * The file is a header of the magic number, the format version and the number of ids (little-endian ints,
+ * padded to 16 bytes) followed by the ids as little-endian longs.
+ * It is deleted by [invalidate] before the database is modified and written again by [write] after that,
+ * so that a snapshot older than its database is never read.
+ */
+class IdListSnapshot(private val file: File) {
+
+    /**
+     * Maps the snapshot into memory. Ids are not read until they are accessed.
+     *
+     * @return the ids, or null if there is no valid snapshot
+     */
+    fun map(): LongBuffer? {
+        if (!file.exists()) {
+            return null
+        }
+        return try {
+            RandomAccessFile(file, "r").use { randomAccessFile ->
+                val channel = randomAccessFile.channel
+                val fileSize = channel.size()
+                if (fileSize < HEADER_SIZE) {
+                    return null
+                }
+                val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize)
+                        .order(ByteOrder.LITTLE_ENDIAN)
+                val count = buffer.getInt(8)
+                if (buffer.getInt(0) != MAGIC
+                        || buffer.getInt(4) != FORMAT_VERSION
+                        || HEADER_SIZE + count * 8L != fileSize) {
+                    return null
+                }
+                buffer.position(HEADER_SIZE)
+                buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer()
+            }
+        } catch (e: IOException) {
+            e.printStackTrace()
+            null
+        }
+    }
+
+    fun write(ids: List<Long>) {
+        val buffer = ByteBuffer.allocate(HEADER_SIZE + ids.size * 8).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.putInt(MAGIC)
+        buffer.putInt(FORMAT_VERSION)
+        buffer.putInt(ids.size)
+        buffer.position(HEADER_SIZE)
+        for (id in ids) {
+            buffer.putLong(id)
+        }
+        buffer.flip()
+
+        try {
+            file.parentFile?.mkdirs()
+            val temporaryFile = File(file.parentFile, file.name + ".tmp")
+            FileOutputStream(temporaryFile).use {
+                it.channel.write(buffer)
+            }
+            if (!temporaryFile.renameTo(file)) {
+                temporaryFile.delete()
+                file.delete()
+            }
+        } catch (e: IOException) {
+            e.printStackTrace()
+            file.delete()
+        }
+    }
+
+    fun invalidate() {
+        file.delete()
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database
+
+import com.github.moko256.latte.client.base.entity.Card
+import com.github.moko256.latte.client.base.entity.Poll
+import com.github.moko256.latte.client.base.entity.Post
+import com.github.moko256.latte.client.base.entity.Repeat
+import com.github.moko256.latte.client.base.entity.Status
+import com.github.moko256.latte.client.base.entity.User
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.Date
+
+private const val MAGIC = 0x504f5354 // "POST"
+private const val FORMAT_VERSION = 1
+
+private const val HAS_REPEAT = 1
+private const val HAS_REPEATED_USER = 1 shl 1
+private const val HAS_STATUS = 1 shl 2
+private const val HAS_USER = 1 shl 3
+private const val HAS_QUOTE = 1 shl 4
+private const val HAS_QUOTE_USER = 1 shl 5
+
+/**
+ * Assembled posts at the top of a timeline in a file, which are shown on start before their databases are opened.
+ *
+ * The file is the magic number, the format version and the number of posts, followed by each post
+ * as flags of its present parts and the parts. Lists in statuses and users are stored as [StatusEntities].
+ */
+class PostListSnapshot(private val file: File) {
+
+    /**
+     * Reads the file, which is deleted if it is not a valid snapshot. Call this off the main thread.
+     *
+     * @return the posts, or null if there is no valid snapshot
+     */
+    fun read(): List<Post>? {
+        if (!file.exists()) {
+            return null
+        }
+        val posts = try {
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                if (input.readInt() == MAGIC && input.readInt() == FORMAT_VERSION) {
+                    val size = input.readInt()
+                    // A post takes more than one byte, so this is not the size of a broken file
+                    if (size in 0..input.available()) {
+                        List(size) { input.readPost() }.takeIf { input.read() == -1 }
+                    } else {
+                        null
+                    }
+                } else {
+                    null
+                }
+            }
+        } catch (e: Exception) {
+            // Broken data may throw anything while decoding, such as a null string or an unknown format
+            e.printStackTrace()
+            null
+        }
+        if (posts == null) {
+            file.delete()
+        }
+        return posts
+    }
+
+    fun write(posts: List<Post>) {
+        try {
+            file.parentFile?.mkdirs()
+            val temporaryFile = File(file.parentFile, file.name + ".tmp")
+            DataOutputStream(BufferedOutputStream(FileOutputStream(temporaryFile))).use { output ->
+                output.writeInt(MAGIC)
+                output.writeInt(FORMAT_VERSION)
+                output.writeInt(posts.size)
+                posts.forEach { output.writePost(it) }
+            }
+            if (!temporaryFile.renameTo(file)) {
+                temporaryFile.delete()
+                file.delete()
+            }
+        } catch (e: IOException) {
+            e.printStackTrace()
+            file.delete()
+        }
+    }
+
+    fun delete() {
+        file.delete()
+    }
+}
+
+private fun DataOutputStream.writePost(post: Post) {
+    var flags = 0
+    if (post.repeat != null) flags = flags or HAS_REPEAT
+    if (post.repeatedUser != null) flags = flags or HAS_REPEATED_USER
+    if (post.status != null) flags = flags or HAS_STATUS
+    if (post.user != null) flags = flags or HAS_USER
+    if (post.quotedRepeatingStatus != null) flags = flags or HAS_QUOTE
+    if (post.quotedRepeatingUser != null) flags = flags or HAS_QUOTE_USER
+
+    writeLong(post.id)
+    writeByte(flags)
+    post.repeat?.let { writeRepeat(it) }
+    post.repeatedUser?.let { writeUser(it) }
+    post.status?.let { writeStatus(it) }
+    post.user?.let { writeUser(it) }
+    post.quotedRepeatingStatus?.let { writeStatus(it) }
+    post.quotedRepeatingUser?.let { writeUser(it) }
+}
+
+private fun DataInputStream.readPost(): Post {
+    val id = readLong()
+    val flags = readByte().toInt()
+    return Post(
+            id = id,
+            repeat = if (flags and HAS_REPEAT != 0) readRepeat() else null,
+            repeatedUser = if (flags and HAS_REPEATED_USER != 0) readUser() else null,
+            status = if (flags and HAS_STATUS != 0) readStatus() else null,
+            user = if (flags and HAS_USER != 0) readUser() else null,
+            quotedRepeatingStatus = if (flags and HAS_QUOTE != 0) readStatus() else null,
+            quotedRepeatingUser = if (flags and HAS_QUOTE_USER != 0) readUser() else null
+    )
+}
+
+private fun DataOutputStream.writeRepeat(repeat: Repeat) {
+    writeLong(repeat.createdAt.time)
+    writeLong(repeat.id)
+    writeLong(repeat.userId)
+    writeLong(repeat.repeatedStatusId)
+}
+
+private fun DataInputStream.readRepeat() = Repeat(
+        createdAt = Date(readLong()),
+        id = readLong(),
+        userId = readLong(),
+        repeatedStatusId = readLong()
+)
+
+private fun DataOutputStream.writeStatus(status: Status) {
+    writeLong(status.createdAt.time)
+    writeLong(status.id)
+    writeLong(status.userId)
+    writeString(status.text)
+    writeNullableString(status.sourceName)
+    writeNullableString(status.sourceWebsite)
+    writeLong(status.inReplyToStatusId)
+    writeLong(status.inReplyToUserId)
+    writeNullableString(status.inReplyToScreenName)
+    writeBoolean(status.isFavorited)
+    writeBoolean(status.isRepeated)
+    writeInt(status.favoriteCount)
+    writeInt(status.repeatCount)
+    writeInt(status.repliesCount)
+    writeBoolean(status.isSensitive)
+    writeNullableString(status.lang)
+    writeBlob(
+            StatusEntities(
+                    mentions = status.mentions,
+                    urls = status.urls,
+                    medias = status.medias,
+                    emojis = status.emojis,
+                    pollOptionTitles = status.poll?.optionTitles,
+                    pollOptionCounts = status.poll?.optionCounts
+            ).encode()
+    )
+    writeLong(status.quotedStatusId)
+    writeString(status.url)
+    writeNullableString(status.spoilerText)
+    writeNullableString(status.visibility)
+
+    val card = status.card
+    writeBoolean(card != null)
+    if (card != null) {
+        writeString(card.title)
+        writeString(card.description)
+        writeString(card.url)
+        writeNullableString(card.imageUrl)
+    }
+
+    val poll = status.poll
+    writeBoolean(poll != null)
+    if (poll != null) {
+        writeLong(poll.id)
+        writeLong(poll.expiresAt?.time ?: -1L)
+        writeBoolean(poll.expired)
+        writeBoolean(poll.multiple)
+        writeInt(poll.votesCount)
+        writeBoolean(poll.voted)
+    }
+}
+
+private fun DataInputStream.readStatus(): Status {
+    val createdAt = Date(readLong())
+    val id = readLong()
+    val userId = readLong()
+    val text = readString()
+    val sourceName = readNullableString()
+    val sourceWebsite = readNullableString()
+    val inReplyToStatusId = readLong()
+    val inReplyToUserId = readLong()
+    val inReplyToScreenName = readNullableString()
+    val isFavorited = readBoolean()
+    val isRepeated = readBoolean()
+    val favoriteCount = readInt()
+    val repeatCount = readInt()
+    val repliesCount = readInt()
+    val isSensitive = readBoolean()
+    val lang = readNullableString()
+    val entities = StatusEntities.decode(readBlob())
+    val quotedStatusId = readLong()
+    val url = readString()
+    val spoilerText = readNullableString()
+    val visibility = readNullableString()
+
+    val card = if (readBoolean()) {
+        Card(
+                title = readString(),
+                description = readString(),
+                url = readString(),
+                imageUrl = readNullableString()
+        )
+    } else {
+        null
+    }
+
+    val poll = if (readBoolean()) {
+        val pollId = readLong()
+        val expiresAt = readLong()
+        Poll(
+                pollId,
+                if (expiresAt != -1L) Date(expiresAt) else null,
+                readBoolean(),
+                readBoolean(),
+                readInt(),
+                entities.pollOptionTitles ?: emptyList(),
+                entities.pollOptionCounts ?: emptyList(),
+                readBoolean()
+        )
+    } else {
+        null
+    }
+
+    return Status(
+            createdAt = createdAt,
+            id = id,
+            userId = userId,
+            text = text,
+            sourceName = sourceName,
+            sourceWebsite = sourceWebsite,
+            inReplyToStatusId = inReplyToStatusId,
+            inReplyToUserId = inReplyToUserId,
+            inReplyToScreenName = inReplyToScreenName,
+            isFavorited = isFavorited,
+            isRepeated = isRepeated,
+            favoriteCount = favoriteCount,
+            repeatCount = repeatCount,
+            repliesCount = repliesCount,
+            isSensitive = isSensitive,
+            lang = lang,
+            mentions = entities.mentions,
+            urls = entities.urls,
+            medias = entities.medias,
+            quotedStatusId = quotedStatusId,
+            url = url,
+            spoilerText = spoilerText,
+            emojis = entities.emojis,
+            visibility = visibility,
+            card = card,
+            poll = poll
+    )
+}
+
+private fun DataOutputStream.writeUser(user: User) {
+    writeLong(user.id)
+    writeString(user.name)
+    writeString(user.screenName)
+    writeString(user.description)
+    writeBlob(StatusEntities(null, user.descriptionLinks, null, user.emojis, null, null).encode())
+    writeNullableString(user.location)
+    writeLong(user.createdAt.time)
+    writeNullableString(user.url)
+    writeBoolean(user.isProtected)
+    writeBoolean(user.isVerified)
+    writeInt(user.statusesCount)
+    writeInt(user.favoritesCount)
+    writeInt(user.followersCount)
+    writeInt(user.friendsCount)
+    writeNullableString(user.profileBannerImageUrl)
+    writeString(user.profileImageURLHttps)
+}
+
+private fun DataInputStream.readUser(): User {
+    val id = readLong()
+    val name = readString()
+    val screenName = readString()
+    val description = readString()
+    val entities = StatusEntities.decode(readBlob())
+    return User(
+            id = id,
+            name = name,
+            screenName = screenName,
+            description = description,
+            descriptionLinks = entities.urls,
+            emojis = entities.emojis,
+            location = readNullableString(),
+            createdAt = Date(readLong()),
+            url = readNullableString(),
+            isProtected = readBoolean(),
+            isVerified = readBoolean(),
+            statusesCount = readInt(),
+            favoritesCount = readInt(),
+            followersCount = readInt(),
+            friendsCount = readInt(),
+            profileBannerImageUrl = readNullableString(),
+            profileImageURLHttps = readString()
+    )
+}
+
+/**
+ * Unlike [DataOutputStream.writeUTF], this is not limited to 65535 bytes.
+ */
+private fun DataOutputStream.writeString(value: String) {
+    writeBlob(value.toByteArray(Charsets.UTF_8))
+}
+
+private fun DataOutputStream.writeNullableString(value: String?) {
+    writeBlob(value?.toByteArray(Charsets.UTF_8))
+}
+
+private fun DataOutputStream.writeBlob(value: ByteArray?) {
+    if (value == null) {
+        writeInt(-1)
+    } else {
+        writeInt(value.size)
+        write(value)
+    }
+}
+
+private fun DataInputStream.readString(): String = readNullableString()!!
+
+private fun DataInputStream.readNullableString(): String? = readBlob()?.toString(Charsets.UTF_8)
+
+private fun DataInputStream.readBlob(): ByteArray? {
+    val size = readInt()
+    return when {
+        size == -1 -> null
+        size < 0 || size > available() -> throw IOException("Broken blob size: $size")
+        else -> ByteArray(size).also { readFully(it) }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database
+
+import com.github.moko256.latte.client.base.entity.Emoji
+import com.github.moko256.latte.client.base.entity.Media
+import com.github.moko256.latte.html.entity.Link
+import java.io.ByteArrayOutputStream
+
+private const val FORMAT_VERSION = 1
+
+private const val HAS_MENTIONS = 1
+private const val HAS_URLS = 1 shl 1
+private const val HAS_MEDIAS = 1 shl 2
+private const val HAS_EMOJIS = 1 shl 3
+private const val HAS_POLL_OPTIONS = 1 shl 4
+
+/**
+ * List-valued fields of a status, which are stored in one blob column.
+ *
+ * The blob is a version byte, a byte of flags telling which lists are present and then each present list
+ * as a varint size followed by its elements. Strings are a varint UTF-8 length and the bytes,
+ * nullable strings store the length + 1 (0 means null), and link offsets are zigzag varints
+ * relative to the previous link, so no field needs to be split or parsed as text.
+ */
+internal class StatusEntities(
+        val mentions: Array<String>?,
+        val urls: Array<Link>?,
+        val medias: Array<Media>?,
+        val emojis: Array<Emoji>?,
+        val pollOptionTitles: List<String>?,
+        val pollOptionCounts: List<Int>?
+) {
+    /**
+     * @return the blob, or null if there is no list to store
+     */
+    fun encode(): ByteArray? {
+        var flags = 0
+        if (mentions != null) flags = flags or HAS_MENTIONS
+        if (urls != null) flags = flags or HAS_URLS
+        if (medias != null) flags = flags or HAS_MEDIAS
+        if (emojis != null) flags = flags or HAS_EMOJIS
+        if (pollOptionTitles != null && pollOptionCounts != null) flags = flags or HAS_POLL_OPTIONS
+        if (flags == 0) {
+            return null
+        }
+
+        val writer = BlobWriter()
+        writer.writeByte(FORMAT_VERSION)
+        writer.writeByte(flags)
+
+        mentions?.let { list ->
+            writer.writeVarint(list.size)
+            list.forEach { writer.writeString(it) }
+        }
+        urls?.let { list ->
+            writer.writeVarint(list.size)
+            list.forEach { writer.writeString(it.url) }
+            var previousStart = 0
+            list.forEach {
+                writer.writeSignedVarint(it.start - previousStart)
+                writer.writeSignedVarint(it.end - it.start)
+                previousStart = it.start
+            }
+        }
+        medias?.let { list ->
+            writer.writeVarint(list.size)
+            list.forEach {
+                writer.writeNullableString(it.thumbnailUrl)
+                writer.writeString(it.originalUrl)
+                writer.writeNullableString(it.downloadVideoUrl)
+                writer.writeString(it.mediaType)
+            }
+        }
+        emojis?.let { list ->
+            writer.writeVarint(list.size)
+            list.forEach {
+                writer.writeString(it.shortCode)
+                writer.writeString(it.url)
+            }
+        }
+        if (flags and HAS_POLL_OPTIONS != 0) {
+            val titles = pollOptionTitles!!
+            val counts = pollOptionCounts!!
+            val size = minOf(titles.size, counts.size)
+            writer.writeVarint(size)
+            for (i in 0 until size) {
+                writer.writeString(titles[i])
+                writer.writeVarint(counts[i])
+            }
+        }
+
+        return writer.toByteArray()
+    }
+
+    companion object {
+        val EMPTY = StatusEntities(null, null, null, null, null, null)
+
+        /**
+         * Decodes [blob] in one pass, making each element directly from the bytes.
+         */
+        fun decode(blob: ByteArray?): StatusEntities {
+            if (blob == null) {
+                return EMPTY
+            }
+
+            val reader = BlobReader(blob)
+            val version = reader.readByte()
+            if (version != FORMAT_VERSION) {
+                throw IllegalArgumentException("Unknown format version: $version")
+            }
+            val flags = reader.readByte()
+
+            val mentions = if (flags and HAS_MENTIONS != 0) {
+                Array(reader.readVarint()) { reader.readString() }
+            } else {
+                null
+            }
+
+            val urls = if (flags and HAS_URLS != 0) {
+                val size = reader.readVarint()
+                val linkUrls = Array(size) { reader.readString() }
+                var previousStart = 0
+                Array(size) {
+                    val start = previousStart + reader.readSignedVarint()
+                    previousStart = start
+                    Link(
+                            url = linkUrls[it],
+                            start = start,
+                            end = start + reader.readSignedVarint()
+                    )
+                }
+            } else {
+                null
+            }
+
+            val medias = if (flags and HAS_MEDIAS != 0) {
+                Array(reader.readVarint()) {
+                    Media(
+                            thumbnailUrl = reader.readNullableString(),
+                            originalUrl = reader.readString(),
+                            downloadVideoUrl = reader.readNullableString(),
+                            mediaType = reader.readString()
+                    )
+                }
+            } else {
+                null
+            }
+
+            val emojis = if (flags and HAS_EMOJIS != 0) {
+                Array(reader.readVarint()) {
+                    Emoji(
+                            shortCode = reader.readString(),
+                            url = reader.readString()
+                    )
+                }
+            } else {
+                null
+            }
+
+            var pollOptionTitles: List<String>? = null
+            var pollOptionCounts: List<Int>? = null
+            if (flags and HAS_POLL_OPTIONS != 0) {
+                val size = reader.readVarint()
+                val titles = ArrayList<String>(size)
+                val counts = ArrayList<Int>(size)
+                repeat(size) {
+                    titles.add(reader.readString())
+                    counts.add(reader.readVarint())
+                }
+                pollOptionTitles = titles
+                pollOptionCounts = counts
+            }
+
+            return StatusEntities(mentions, urls, medias, emojis, pollOptionTitles, pollOptionCounts)
+        }
+    }
+}
+
+private class BlobWriter : ByteArrayOutputStream(64) {
+
+    fun writeByte(value: Int) {
+        write(value)
+    }
+
+    fun writeVarint(value: Int) {
+        var v = value
+        while (v and 0x7f.inv() != 0) {
+            write((v and 0x7f) or 0x80)
+            v = v ushr 7
+        }
+        write(v)
+    }
+
+    fun writeSignedVarint(value: Int) {
+        writeVarint((value shl 1) xor (value shr 31))
+    }
+
+    fun writeString(value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        writeVarint(bytes.size)
+        write(bytes, 0, bytes.size)
+    }
+
+    fun writeNullableString(value: String?) {
+        if (value == null) {
+            writeVarint(0)
+        } else {
+            val bytes = value.toByteArray(Charsets.UTF_8)
+            writeVarint(bytes.size + 1)
+            write(bytes, 0, bytes.size)
+        }
+    }
+}
+
+private class BlobReader(private val bytes: ByteArray) {
+    private var position = 0
+
+    fun readByte(): Int = bytes[position++].toInt() and 0xff
+
+    fun readVarint(): Int {
+        var result = 0
+        var shift = 0
+        while (true) {
+            val b = bytes[position++].toInt()
+            result = result or ((b and 0x7f) shl shift)
+            if (b and 0x80 == 0) {
+                return result
+            }
+            shift += 7
+        }
+    }
+
+    fun readSignedVarint(): Int {
+        val v = readVarint()
+        return (v ushr 1) xor -(v and 1)
+    }
+
+    fun readString(): String = readBytesAsString(readVarint())
+
+    fun readNullableString(): String? {
+        val length = readVarint()
+        return if (length == 0) {
+            null
+        } else {
+            readBytesAsString(length - 1)
+        }
+    }
+
+    private fun readBytesAsString(length: Int): String {
+        val result = String(bytes, position, length, Charsets.UTF_8)
+        position += length
+        return result
+    }
+}
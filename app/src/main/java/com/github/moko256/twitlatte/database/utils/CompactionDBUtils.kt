@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database.utils
+
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+
+/**
+ * Bytes of the database file, including free pages.
+ */
+fun SQLiteOpenHelper.databaseSize(): Long = read {
+    pragmaLong("page_count") * pageSize
+}
+
+/**
+ * Ratio of pages which are free, left by deleted rows and reused only by later inserts.
+ */
+fun SQLiteOpenHelper.freePageRatio(): Double = read {
+    val pageCount = pragmaLong("page_count")
+    if (pageCount > 0) {
+        pragmaLong("freelist_count").toDouble() / pageCount
+    } else {
+        0.0
+    }
+}
+
+/**
+ * Rebuilds the database file without free pages. This cannot run in a transaction.
+ */
+fun SQLiteOpenHelper.vacuum() {
+    write {
+        execSQL("vacuum")
+    }
+}
+
+private fun SQLiteDatabase.pragmaLong(name: String): Long {
+    return rawQuery("PRAGMA $name", null).use {
+        if (it.moveToFirst()) it.getLong(0) else 0L
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database.utils
+
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+
+/**
+ * Implemented by helpers which can keep their database open between operations.
+ *
+ * If [keepsConnectionOpen] is true, [read], [write] and [transaction] do not close the database,
+ * so that an operation does not pay to open it again. The owner of such a helper
+ * has to call [SQLiteOpenHelper.close] at the end of its lifetime.
+ */
+interface ConnectionScope {
+    val keepsConnectionOpen: Boolean
+}
+
+@PublishedApi
+internal fun SQLiteOpenHelper.release(db: SQLiteDatabase) {
+    if (this !is ConnectionScope || !keepsConnectionOpen) {
+        db.close()
+    }
+}
@@ -31,7 +31,7 @@ fun Cursor.getBoolean(index: Int) = getInt(index) == 1
 inline fun <T> SQLiteOpenHelper.read(action: SQLiteDatabase.() -> T): T {
     val db = readableDatabase
     val result = action(db)
-    db.close()
+    release(db)
     return result
 }
 
@@ -104,4 +104,4 @@ inline fun SQLiteDatabase.selectMultiple(
         action(cursor)
     }
     cursor.close()
-}
\ No newline at end of file
+}
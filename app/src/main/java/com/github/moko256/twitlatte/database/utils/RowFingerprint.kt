@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database.utils
+
+/**
+ * 64-bit FNV-1a hash of the values of a row, used to skip writing rows whose content is unchanged.
+ * Every value is preceded by a tag, so that a null and an empty string or adjacent strings do not collide.
+ */
+class RowFingerprint {
+    var value: Long = OFFSET_BASIS
+        private set
+
+    fun add(long: Long): RowFingerprint {
+        addByte(TAG_LONG)
+        for (shift in 0 until 64 step 8) {
+            addByte((long ushr shift).toInt())
+        }
+        return this
+    }
+
+    fun add(int: Int): RowFingerprint = add(int.toLong())
+
+    fun add(boolean: Boolean): RowFingerprint {
+        addByte(if (boolean) TAG_TRUE else TAG_FALSE)
+        return this
+    }
+
+    fun add(string: String?): RowFingerprint {
+        if (string == null) {
+            addByte(TAG_NULL)
+        } else {
+            addByte(TAG_STRING)
+            add(string.length)
+            for (c in string) {
+                addByte(c.toInt())
+                addByte(c.toInt() ushr 8)
+            }
+        }
+        return this
+    }
+
+    fun add(bytes: ByteArray?): RowFingerprint {
+        if (bytes == null) {
+            addByte(TAG_NULL)
+        } else {
+            addByte(TAG_BYTES)
+            add(bytes.size)
+            for (b in bytes) {
+                addByte(b.toInt())
+            }
+        }
+        return this
+    }
+
+    private fun addByte(byte: Int) {
+        value = (value xor (byte and 0xff).toLong()) * PRIME
+    }
+
+    private companion object {
+        private const val OFFSET_BASIS = -0x340d631b7bdddcdbL
+        private const val PRIME = 0x100000001b3L
+
+        private const val TAG_NULL = 0
+        private const val TAG_FALSE = 1
+        private const val TAG_TRUE = 2
+        private const val TAG_LONG = 3
+        private const val TAG_STRING = 4
+        private const val TAG_BYTES = 5
+    }
+}
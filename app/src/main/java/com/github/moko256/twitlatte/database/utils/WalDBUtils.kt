@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database.utils
+
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+
+/**
+ * Pages of the WAL file before a commit checkpoints it (4MB at 4KB page).
+ * This is the default of SQLite, but Android replaces it by a smaller one (100 pages) on open,
+ * which checkpoints in the middle of a refresh of a few hundred rows.
+ * The largest bursts, passes of DiskCacheCompactor, are checkpointed when they are over by [checkpointWal].
+ */
+private const val WAL_AUTO_CHECKPOINT_PAGES = 1000
+
+/** Bytes the WAL file is truncated to after a checkpoint, so that it does not stay at its peak size. */
+private const val WAL_SIZE_LIMIT = 1024 * 1024
+
+/**
+ * Turns on write-ahead logging, so that readers on other threads are not blocked by a writer.
+ * Call this from the constructor of the helper.
+ */
+fun SQLiteOpenHelper.enableWal() {
+    setWriteAheadLoggingEnabled(true)
+}
+
+/**
+ * Applies the checkpoint policy. Call this from [SQLiteOpenHelper.onOpen].
+ * Only the primary connection writes, so it is the one that checkpoints.
+ * Closing the helper checkpoints the rest and removes the WAL file.
+ */
+fun SQLiteDatabase.configureWalCheckpoint() {
+    if (isWriteAheadLoggingEnabled) {
+        pragma("wal_autocheckpoint=$WAL_AUTO_CHECKPOINT_PAGES")
+        pragma("journal_size_limit=$WAL_SIZE_LIMIT")
+    }
+}
+
+/**
+ * Copies the WAL file back into the database without waiting for readers, and so without blocking them.
+ * Call this on the writer of the database when a burst of writes is over, so that the WAL file
+ * does not stay large and slow down reads until a later commit reaches [WAL_AUTO_CHECKPOINT_PAGES].
+ */
+fun SQLiteOpenHelper.checkpointWal() {
+    write {
+        if (isWriteAheadLoggingEnabled) {
+            pragma("wal_checkpoint(PASSIVE)")
+        }
+    }
+}
+
+/**
+ * These pragmas return a row, so they cannot be run by [SQLiteDatabase.execSQL].
+ */
+private fun SQLiteDatabase.pragma(statement: String) {
+    rawQuery("PRAGMA $statement", null).use {
+        it.moveToFirst()
+    }
+}
@@ -18,6 +18,7 @@ package com.github.moko256.twitlatte.database.utils
 
 import android.database.sqlite.SQLiteDatabase
 import android.database.sqlite.SQLiteOpenHelper
+import android.database.sqlite.SQLiteStatement
 
 /**
  * Created by moko256 on 2019/09/11.
@@ -28,7 +29,7 @@ import android.database.sqlite.SQLiteOpenHelper
 inline fun SQLiteOpenHelper.write(action: SQLiteDatabase.() -> Unit) {
     val db = writableDatabase
     action(db)
-    db.close()
+    release(db)
 }
 
 inline fun SQLiteOpenHelper.transaction(action: SQLiteDatabase.() -> Unit) {
@@ -39,7 +40,30 @@ inline fun SQLiteOpenHelper.transaction(action: SQLiteDatabase.() -> Unit) {
             setTransactionSuccessful()
         } finally {
             endTransaction()
-            close()
+            release(this)
         }
     }
-}
\ No newline at end of file
+}
+
+fun SQLiteStatement.bindStringOrNull(index: Int, value: String?) {
+    if (value != null) {
+        bindString(index, value)
+    } else {
+        bindNull(index)
+    }
+}
+
+fun SQLiteStatement.bindLongOrNull(index: Int, value: Long?) {
+    if (value != null) {
+        bindLong(index, value)
+    } else {
+        bindNull(index)
+    }
+}
+
+/**
+ * Binds [value] as 1 or 0, same as ContentValues does.
+ */
+fun SQLiteStatement.bindBoolean(index: Int, value: Boolean) {
+    bindLong(index, if (value) 1L else 0L)
+}
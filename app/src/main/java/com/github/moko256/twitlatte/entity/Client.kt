@@ -24,7 +24,7 @@ import com.github.moko256.latte.client.twitter.CLIENT_TYPE_TWITTER
 import com.github.moko256.twitlatte.cacheMap.PostCache
 import com.github.moko256.twitlatte.cacheMap.StatusCacheMap
 import com.github.moko256.twitlatte.cacheMap.UserCacheMap
-import com.github.moko256.twitlatte.collections.LruCache
+import com.github.moko256.twitlatte.collections.ConcurrentLruCache
 
 /**
  * Created by moko256 on 2018/11/28.
@@ -37,10 +37,9 @@ data class Client(
         val mediaUrlConverter: MediaUrlConverter,
         val statusCache: StatusCacheMap,
         val userCache: UserCacheMap,
-        val friendshipCache: LruCache<Long, Friendship>
+        val postCache: PostCache,
+        val friendshipCache: ConcurrentLruCache<Long, Friendship>
 ) {
-    val postCache: PostCache = PostCache(statusCache, userCache)
-
     val statusLimit: Int = if (accessToken.clientType == CLIENT_TYPE_TWITTER) 200 else 40
 
 }
\ No newline at end of file
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.metrics
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Counters of a cache. Every lookup is counted as one of [memoryHits], [diskHits] or [misses].
+ * Every row given to the disk cache is counted as one of [rowsWritten] or [rowsUnchanged].
+ */
+class CacheMetrics(val name: String) {
+    val memoryHits = AtomicLong()
+    val diskHits = AtomicLong()
+    val misses = AtomicLong()
+    val evictions = AtomicLong()
+    val rowsWritten = AtomicLong()
+    val rowsUnchanged = AtomicLong()
+
+    val diskReads = LatencyHistogram()
+    val diskWrites = LatencyHistogram()
+
+    fun lookups(): Long = memoryHits.get() + diskHits.get() + misses.get()
+
+    fun reset() {
+        memoryHits.set(0)
+        diskHits.set(0)
+        misses.set(0)
+        evictions.set(0)
+        rowsWritten.set(0)
+        rowsUnchanged.set(0)
+        diskReads.reset()
+        diskWrites.reset()
+    }
+}
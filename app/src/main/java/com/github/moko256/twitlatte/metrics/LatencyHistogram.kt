@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.metrics
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+private const val BUCKET_COUNT = 32
+
+/**
+ * Lock-free histogram of durations.
+ *
+ * Bucket 0 counts durations under 1µs and bucket i counts durations in [2^(i-1), 2^i) µs,
+ * so percentiles are reported as the upper bound of the bucket they fall in.
+ */
+class LatencyHistogram {
+    private val buckets = AtomicLongArray(BUCKET_COUNT)
+    private val totalNanos = AtomicLong()
+
+    fun record(nanos: Long) {
+        val micros = nanos / 1000
+        val bucket = (64 - java.lang.Long.numberOfLeadingZeros(micros)).coerceAtMost(BUCKET_COUNT - 1)
+        buckets.incrementAndGet(bucket)
+        totalNanos.addAndGet(nanos)
+    }
+
+    inline fun <T> time(block: () -> T): T {
+        val start = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            record(System.nanoTime() - start)
+        }
+    }
+
+    fun count(): Long {
+        var count = 0L
+        for (i in 0 until BUCKET_COUNT) {
+            count += buckets[i]
+        }
+        return count
+    }
+
+    fun totalNanos(): Long = totalNanos.get()
+
+    fun meanNanos(): Long {
+        val count = count()
+        return if (count == 0L) 0 else totalNanos() / count
+    }
+
+    /**
+     * @param percentile in 0.0 to 1.0
+     * @return upper bound in nanoseconds of the bucket where [percentile] of durations fall in
+     */
+    fun percentileNanos(percentile: Double): Long {
+        val count = count()
+        if (count == 0L) {
+            return 0
+        }
+        val target = Math.ceil(count * percentile).toLong().coerceAtLeast(1)
+        var seen = 0L
+        for (i in 0 until BUCKET_COUNT) {
+            seen += buckets[i]
+            if (seen >= target) {
+                return (1L shl i) * 1000
+            }
+        }
+        return (1L shl (BUCKET_COUNT - 1)) * 1000
+    }
+
+    fun reset() {
+        for (i in 0 until BUCKET_COUNT) {
+            buckets.set(i, 0)
+        }
+        totalNanos.set(0)
+    }
+}
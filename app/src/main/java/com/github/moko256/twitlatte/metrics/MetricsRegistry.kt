@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.metrics
+
+import java.util.concurrent.ConcurrentHashMap
+
+const val METRICS_STATUSES = "statuses"
+const val METRICS_USERS = "users"
+const val METRICS_POSTS = "posts"
+const val METRICS_FRIENDSHIPS = "friendships"
+const val METRICS_API_CLIENTS = "apiClients"
+
+const val METRICS_DISK_READS = "diskReads"
+const val METRICS_DISK_WRITES = "diskWrites"
+
+/**
+ * Process-wide holder of [CacheMetrics] and [SchedulerMetrics], shared by all accounts.
+ */
+object MetricsRegistry {
+    private val caches = ConcurrentHashMap<String, CacheMetrics>()
+
+    fun cache(name: String): CacheMetrics {
+        return caches[name] ?: CacheMetrics(name).let {
+            caches.putIfAbsent(name, it) ?: it
+        }
+    }
+
+    fun caches(): List<CacheMetrics> = caches.values.sortedBy { it.name }
+
+    private val schedulers = ConcurrentHashMap<String, SchedulerMetrics>()
+
+    fun scheduler(name: String): SchedulerMetrics {
+        return schedulers[name] ?: SchedulerMetrics(name).let {
+            schedulers.putIfAbsent(name, it) ?: it
+        }
+    }
+
+    fun schedulers(): List<SchedulerMetrics> = schedulers.values.sortedBy { it.name }
+
+    fun reset() {
+        caches.values.forEach { it.reset() }
+        schedulers.values.forEach { it.reset() }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.metrics
+
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Counters of a scheduler. [queueDepth] is the number of tasks submitted and not started yet,
+ * [waitTimes] are durations from submission to start and [runTimes] are durations of tasks.
+ */
+class SchedulerMetrics(val name: String) {
+    val queueDepth = AtomicInteger()
+    val maxQueueDepth = AtomicInteger()
+
+    val waitTimes = LatencyHistogram()
+    val runTimes = LatencyHistogram()
+
+    fun onSubmitted() {
+        val depth = queueDepth.incrementAndGet()
+        while (true) {
+            val max = maxQueueDepth.get()
+            if (depth <= max || maxQueueDepth.compareAndSet(max, depth)) {
+                return
+            }
+        }
+    }
+
+    fun onStarted(waitNanos: Long) {
+        queueDepth.decrementAndGet()
+        waitTimes.record(waitNanos)
+    }
+
+    /**
+     * Resets counters except [queueDepth], which counts tasks still in queues.
+     */
+    fun reset() {
+        maxQueueDepth.set(queueDepth.get())
+        waitTimes.reset()
+        runTimes.reset()
+    }
+}
@@ -18,6 +18,7 @@ package com.github.moko256.twitlatte.model.base
 
 import com.github.moko256.twitlatte.entity.UpdateEvent
 import io.reactivex.Observable
+import io.reactivex.Single
 import java.io.Closeable
 
 /**
@@ -28,6 +29,12 @@ import java.io.Closeable
 interface ListModel : Closeable {
 
     fun getIdsList(): List<Long>
+
+    /**
+     * Copies ids from [from] until [to], clamped to the size of the list after changes already requested.
+     */
+    fun getIds(from: Int, to: Int): Single<LongArray>
+
     fun getListEventObservable(): Observable<UpdateEvent>
     fun getErrorEventObservable(): Observable<Throwable>
 
@@ -20,6 +20,7 @@ import android.net.Uri
 import com.github.moko256.latte.client.base.entity.Emoji
 import com.github.moko256.latte.client.base.entity.UpdateStatus
 import io.reactivex.Completable
+import io.reactivex.Observable
 import io.reactivex.Single
 
 /**
@@ -44,5 +45,16 @@ interface PostStatusModel {
 
     fun post(): Completable
 
-    fun requestCustomEmojis(): Single<List<Emoji>>
+    /**
+     * Emits the number of custom emojis cached on the disk, then the new number if they were refreshed.
+     * They are refreshed by a conditional request if [forceRefresh] is true or they are older than their TTL.
+     */
+    fun requestCustomEmojis(forceRefresh: Boolean): Observable<Int>
+
+    fun getCustomEmojis(offset: Int, limit: Int): Single<List<Emoji>>
+
+    /**
+     * Closes the custom emoji catalog. Call this after disposing requests of this model.
+     */
+    fun close()
 }
\ No newline at end of file
@@ -19,20 +19,32 @@ package com.github.moko256.twitlatte.model.impl
 import com.github.moko256.latte.client.base.entity.Paging
 import com.github.moko256.latte.client.base.entity.Post
 import com.github.moko256.twitlatte.LIMIT_OF_SIZE_OF_STATUSES_LIST
+import com.github.moko256.twitlatte.collections.MappedLongList
 import com.github.moko256.twitlatte.database.CachedIdListSQLiteOpenHelper
+import com.github.moko256.twitlatte.database.DiskScheduler
 import com.github.moko256.twitlatte.entity.Client
 import com.github.moko256.twitlatte.entity.EventType
 import com.github.moko256.twitlatte.entity.UpdateEvent
 import com.github.moko256.twitlatte.model.base.ListModel
 import com.github.moko256.twitlatte.repository.server.base.ListServerRepository
 import io.reactivex.Completable
+import io.reactivex.Maybe
 import io.reactivex.Observable
+import io.reactivex.Single
 import io.reactivex.disposables.CompositeDisposable
 import io.reactivex.schedulers.Schedulers
 import io.reactivex.subjects.PublishSubject
 import java.lang.IllegalStateException
 
 /**
+ * Number of posts at the top of the list which are saved to be shown on next start before the databases are read.
+ */
+private const val WARM_START_POST_COUNT = 30
+
+/**
+ * Requests run on Schedulers.io(), and their results are applied on the writer of [database] (See [DiskScheduler]),
+ * so that changes of the list and the database are serialized.
+ *
  * Created by moko256 on 2018/10/11.
  *
  * @author moko256
@@ -40,29 +52,59 @@ import java.lang.IllegalStateException
 class ListModelImpl(
     private val api: ListServerRepository<Post>,
     private val client: Client,
-    private val database: CachedIdListSQLiteOpenHelper
+    private val database: CachedIdListSQLiteOpenHelper,
+    private val localRequest: () -> List<Long> = { emptyList() }
 ) : ListModel {
 
     private val nothingEvent = UpdateEvent(EventType.NOTHING, 0, 0)
-    private val list = ArrayList<Long>()
+    /**
+     * Read from the memory-mapped snapshot if there is one, so that it costs nothing until positions are touched.
+     */
+    private val list: MutableList<Long> = database.snapshot?.map()?.let { MappedLongList(it) }
+        ?: ArrayList(database.getIds()).also { database.snapshot?.write(it) }
     private val requests = CompositeDisposable()
+    private val writer = DiskScheduler.writer(database)
 
     private var seeingId = -1L
 
-    private val updateObserver = PublishSubject.create<UpdateEvent>()
-    private val errorObserver = PublishSubject.create<Throwable>()
+    /**
+     * Number of ids at the top of [list] found by [localRequest], which are shown until the request of [refreshFirst]
+     * completes and not written to [database] unless it fails or finds nothing.
+     */
+    private var localCount = 0
 
     init {
-        val c = database.getIds()
-        if (c.isNotEmpty()) {
-            list.addAll(c)
-        }
+        // Read on the writer, so that the snapshot is not written meanwhile
+        requests.add(
+            Completable.fromAction {
+                val posts = database.postSnapshot?.read()
+                if (posts != null) {
+                    client.postCache.preload(posts)
+                } else {
+                    // The top of the list is read as posts by one query, instead of each post on bind
+                    client.postCache.preloadList(database.listName, 0, WARM_START_POST_COUNT)
+                }
+            }.subscribeOn(writer)
+                .subscribe({}, { it.printStackTrace() })
+        )
     }
 
+    private val updateObserver = PublishSubject.create<UpdateEvent>()
+    private val errorObserver = PublishSubject.create<Throwable>()
+
     override fun getIdsList(): List<Long> {
         return list
     }
 
+    override fun getIds(from: Int, to: Int): Single<LongArray> {
+        // The list is changed on the writer, so it is stable while this runs there
+        return Single.fromCallable {
+            val end = to.coerceAtMost(list.size)
+            val start = from.coerceIn(0, end)
+            LongArray(end - start) { list[start + it] }
+        }.subscribeOn(writer)
+    }
+
     override fun getListEventObservable(): Observable<UpdateEvent> {
         return updateObserver
     }
@@ -82,32 +124,77 @@ class ListModelImpl(
         val id = getIdsList()[position]
         if (id != seeingId) {
             seeingId = id
-            database.setSeeingId(id)
+            writer.scheduleDirect { database.setSeeingId(id) }
         }
     }
 
     override fun refreshFirst() {
+        // Used by the callbacks below, which run on the writer one at a time
+        var isRequestCompleted = false
         requests.add(
-            Completable.create { status ->
-                try {
-                    api.request(Paging(count = 10))
-                } catch (e: Throwable) {
-                    e.printStackTrace()
-                    errorObserver.onNext(e)
-                    return@create
-                }.also { client.postCache.addAll(it) }
-                    .map { it.id }
-                    .let {
-                        list.addAll(it)
-                        database.insertIdsAtFirst(it)
-                        updateObserver.onNext(UpdateEvent(EventType.ADD_FIRST, 0, it.size))
-                    }
-                status.onComplete()
+            Maybe.fromCallable {
+                localRequest().takeIf { it.isNotEmpty() }
+            }.subscribeOn(DiskScheduler.reader)
+                .observeOn(writer)
+                .subscribe(
+                    { ids ->
+                        // The request may have found posts already
+                        if (list.isEmpty()) {
+                            list.addAll(ids)
+                            localCount = ids.size
+                            if (isRequestCompleted) {
+                                keepLocalResults()
+                            }
+                            updateObserver.onNext(UpdateEvent(EventType.ADD_FIRST, 0, ids.size))
+                        }
+                    },
+                    { it.printStackTrace() }
+                )
+        )
+        requests.add(
+            Single.fromCallable {
+                api.request(Paging(count = 10))
             }.subscribeOn(Schedulers.io())
-                .subscribe()
+                .observeOn(writer)
+                .subscribe(
+                    { posts ->
+                        isRequestCompleted = true
+                        if (posts.isEmpty()) {
+                            // Better than nothing, as some servers search hashtags only
+                            keepLocalResults()
+                        } else if (localCount > 0) {
+                            list.subList(0, localCount).clear()
+                            localCount = 0
+                        }
+                        client.postCache.addAll(posts)
+                        val ids = posts.map { it.id }
+                        list.addAll(ids)
+                        updateDatabase { insertIdsAtFirst(ids) }
+                        updateObserver.onNext(UpdateEvent(EventType.ADD_FIRST, 0, ids.size))
+                        savePostSnapshot()
+                    },
+                    {
+                        isRequestCompleted = true
+                        keepLocalResults()
+                        notifyError(it)
+                    }
+                )
         )
     }
 
+    /**
+     * Writes ids found by [localRequest] to [database] to use them as the list.
+     * Their posts are added again to count them for this list, like posts found by the request.
+     */
+    private fun keepLocalResults() {
+        if (localCount > 0) {
+            val ids = list.subList(0, localCount).toList()
+            localCount = 0
+            client.postCache.addAll(client.postCache.getPosts(ids.toLongArray()).filterNotNull())
+            updateDatabase { insertIdsAtFirst(ids) }
+        }
+    }
+
     override fun refreshOnTop() {
         val sinceId: Long = if (list.size >= 2) {
             if (list[1] == -1L) {
@@ -122,91 +209,89 @@ class ListModelImpl(
         val excludeId = list.takeIf { it.size >= 2 }?.firstOrNull() ?: 0
 
         requests.add(
-            Completable.create { status ->
-                try {
-                    api.request(
-                        Paging(
-                            sinceId = sinceId,
-                            count = client.statusLimit
-                        )
+            Single.fromCallable {
+                api.request(
+                    Paging(
+                        sinceId = sinceId,
+                        count = client.statusLimit
                     )
-                } catch (e: Throwable) {
-                    e.printStackTrace()
-                    errorObserver.onNext(e)
-                    return@create
-                }.apply {
-                    if (isNotEmpty()) {
-                        client.postCache.addAll(this, excludeId)
-
-                        val ids = map { it.id }.toMutableList()
-
-                        if (ids[ids.size - 1] == list[0]) {
-                            ids.removeAt(ids.size - 1)
-                        } else {
-                            ids.add(-1L)
-                        }
-
-                        if (ids.size > 0) {
-                            list.addAll(0, ids)
-                            database.insertIdsAtFirst(ids)
-                            updateObserver.onNext(UpdateEvent(EventType.ADD_TOP, 0, ids.size))
+                )
+            }.subscribeOn(Schedulers.io())
+                .observeOn(writer)
+                .subscribe(
+                    { posts ->
+                        if (posts.isNotEmpty()) {
+                            client.postCache.addAll(posts, excludeId)
+
+                            val ids = posts.map { it.id }.toMutableList()
+
+                            if (ids[ids.size - 1] == list[0]) {
+                                ids.removeAt(ids.size - 1)
+                            } else {
+                                ids.add(-1L)
+                            }
+
+                            if (ids.size > 0) {
+                                list.addAll(0, ids)
+                                updateDatabase { insertIdsAtFirst(ids) }
+                                updateObserver.onNext(UpdateEvent(EventType.ADD_TOP, 0, ids.size))
+                                savePostSnapshot()
+                            } else {
+                                updateObserver.onNext(nothingEvent)
+                            }
                         } else {
                             updateObserver.onNext(nothingEvent)
                         }
-                    } else {
-                        updateObserver.onNext(nothingEvent)
-                    }
-                }
-                status.onComplete()
-            }.subscribeOn(Schedulers.io())
-                .subscribe()
+                    },
+                    { notifyError(it) }
+                )
         )
     }
 
     override fun loadOnBottom() {
-        val bottomPos = list.size - 1
-
-        if (list[bottomPos] == -1L) {
-            database.removeAt(bottomPos)
-            list.removeAt(bottomPos)
-            updateObserver.onNext(UpdateEvent(EventType.REMOVE, bottomPos, 1))
-        }
-
         requests.add(
-            Completable.create { status ->
-                try {
+            Single.fromCallable {
+                // The gap at the bottom is removed on the writer, where the list and the database are changed
+                val bottomPos = list.size - 1
+                if (list[bottomPos] == -1L) {
+                    list.removeAt(bottomPos)
+                    updateDatabase { removeAt(bottomPos) }
+                    updateObserver.onNext(UpdateEvent(EventType.REMOVE, bottomPos, 1))
+                }
+                list[list.size - 1] - 1L
+            }.subscribeOn(writer)
+                .observeOn(Schedulers.io())
+                .map { maxId ->
                     api.request(
                         Paging(
-                            maxId = list[list.size - 1] - 1L,
+                            maxId = maxId,
                             count = client.statusLimit
                         )
                     )
-                } catch (e: Throwable) {
-                    e.printStackTrace()
-                    errorObserver.onNext(e)
-                    return@create
-                }.apply {
-                    if (isNotEmpty()) {
-                        client.postCache.addAll(this)
-
-                        val ids = map { it.id }
-                        val sizeBeforeAdded = list.size
-                        list.addAll(ids)
-                        database.insertIdsAtLast(ids)
-                        updateObserver.onNext(
-                            UpdateEvent(
-                                EventType.ADD_BOTTOM,
-                                sizeBeforeAdded,
-                                size
-                            )
-                        )
-                    } else {
-                        updateObserver.onNext(nothingEvent)
-                    }
                 }
-                status.onComplete()
-            }.subscribeOn(Schedulers.io())
-                .subscribe()
+                .observeOn(writer)
+                .subscribe(
+                    { posts ->
+                        if (posts.isNotEmpty()) {
+                            client.postCache.addAll(posts)
+
+                            val ids = posts.map { it.id }
+                            val sizeBeforeAdded = list.size
+                            list.addAll(ids)
+                            updateDatabase { insertIdsAtLast(ids) }
+                            updateObserver.onNext(
+                                UpdateEvent(
+                                    EventType.ADD_BOTTOM,
+                                    sizeBeforeAdded,
+                                    posts.size
+                                )
+                            )
+                        } else {
+                            updateObserver.onNext(nothingEvent)
+                        }
+                    },
+                    { notifyError(it) }
+                )
         )
     }
 
@@ -224,49 +309,51 @@ class ListModelImpl(
         val excludeId = list.takeIf { it.size >= position + 2 }?.get(position + 1) ?: 0
 
         requests.add(
-            Completable.create { status ->
-                try {
-                    api.request(
-                        Paging(
-                            sinceId = sinceId,
-                            maxId = list[position - 1] - 1L,
-                            count = client.statusLimit
-                        )
+            Single.fromCallable {
+                api.request(
+                    Paging(
+                        sinceId = sinceId,
+                        maxId = list[position - 1] - 1L,
+                        count = client.statusLimit
                     )
-                } catch (e: Throwable) {
-                    e.printStackTrace()
-                    errorObserver.onNext(e)
-                    updateObserver.onNext(UpdateEvent(EventType.UPDATE, position, 1))
-                    return@create
-                }.apply {
-                    if (isNotEmpty()) {
-                        client.postCache.addAll(this, excludeId)
-
-                        val ids = map { it.id }.toMutableList()
-
-                        val noGap = ids[ids.size - 1] == list[position + 1]
-                        if (noGap) {
-                            ids.removeAt(ids.size - 1)
+                )
+            }.subscribeOn(Schedulers.io())
+                .observeOn(writer)
+                .subscribe(
+                    { posts ->
+                        if (posts.isNotEmpty()) {
+                            client.postCache.addAll(posts, excludeId)
+
+                            val ids = posts.map { it.id }.toMutableList()
+
+                            val noGap = ids[ids.size - 1] == list[position + 1]
+                            if (noGap) {
+                                ids.removeAt(ids.size - 1)
+                                list.removeAt(position)
+                                updateDatabase { removeAt(position) }
+                                updateObserver.onNext(UpdateEvent(EventType.REMOVE, position, 1))
+                            } else {
+                                updateObserver.onNext(UpdateEvent(EventType.UPDATE, position, 1))
+                            }
+
+                            list.addAll(position, ids)
+                            updateDatabase { insertIdsAt(position, ids) }
+
+                            updateObserver.onNext(UpdateEvent(EventType.INSERT, position, ids.size))
+                            if (position < WARM_START_POST_COUNT) {
+                                savePostSnapshot()
+                            }
+                        } else {
                             list.removeAt(position)
-                            database.removeAt(position)
+                            updateDatabase { removeAt(position) }
                             updateObserver.onNext(UpdateEvent(EventType.REMOVE, position, 1))
-                        } else {
-                            updateObserver.onNext(UpdateEvent(EventType.UPDATE, position, 1))
                         }
-
-                        list.addAll(position, ids)
-                        database.insertIdsAt(position, ids)
-
-                        updateObserver.onNext(UpdateEvent(EventType.INSERT, position, ids.size))
-                    } else {
-                        list.removeAt(position)
-                        database.removeAt(position)
-                        updateObserver.onNext(UpdateEvent(EventType.REMOVE, position, 1))
+                    },
+                    {
+                        notifyError(it)
+                        updateObserver.onNext(UpdateEvent(EventType.UPDATE, position, 1))
                     }
-                }
-                status.onComplete()
-            }.subscribeOn(Schedulers.io())
-                .subscribe()
+                )
         )
     }
 
@@ -281,8 +368,10 @@ class ListModelImpl(
                 Completable.create {
                     try {
                         client.statusCache.delete(targetToRemove)
-                        database.removeFromLast(targetToRemove.size)
-                        targetToRemove.clear() //Clear this range from parent's list
+                        updateDatabase {
+                            removeFromLast(targetToRemove.size)
+                            targetToRemove.clear() //Clear this range from parent's list
+                        }
 
                         updateObserver.onNext(
                             UpdateEvent(
@@ -293,14 +382,48 @@ class ListModelImpl(
                         )
                     } catch (ignore: IllegalStateException) {}
                     it.onComplete()
-                }.subscribeOn(Schedulers.io())
+                }.subscribeOn(writer)
                     .subscribe()
             )
         }
     }
 
+    private fun notifyError(e: Throwable) {
+        e.printStackTrace()
+        errorObserver.onNext(e)
+    }
+
+    /**
+     * Applies [action] to the database, then writes [list] to the snapshot.
+     * The snapshot is deleted meanwhile, so that a crash leaves no snapshot rather than a stale one.
+     */
+    private inline fun updateDatabase(action: CachedIdListSQLiteOpenHelper.() -> Unit) {
+        val snapshot = database.snapshot
+        snapshot?.invalidate()
+        database.action()
+        snapshot?.write(list)
+    }
+
+    /**
+     * Writes posts at the top of the list for the next start. Call this on [writer].
+     */
+    private fun savePostSnapshot() {
+        val postSnapshot = database.postSnapshot ?: return
+        val ids = list.asSequence()
+            .take(WARM_START_POST_COUNT)
+            .filter { it != -1L }
+            .toList()
+            .toLongArray()
+        postSnapshot.write(client.postCache.getPosts(ids).filterNotNull())
+    }
+
     override fun close() {
         requests.dispose()
-        database.close()
+        // Saves the latest state of posts, which may be changed by actions after the list is loaded
+        // Closed on the writer too, after writes already queued on it and the snapshot
+        Completable.fromAction { savePostSnapshot() }
+            .doFinally { database.close() }
+            .subscribeOn(writer)
+            .subscribe({}, { it.printStackTrace() })
     }
 }
\ No newline at end of file
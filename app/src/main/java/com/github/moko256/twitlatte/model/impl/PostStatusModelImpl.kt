@@ -21,9 +21,17 @@ import android.net.Uri
 import com.github.moko256.latte.client.base.ApiClient
 import com.github.moko256.latte.client.base.entity.Emoji
 import com.github.moko256.latte.client.base.entity.UpdateStatus
+import com.github.moko256.twitlatte.database.CachedEmojisSQLiteOpenHelper
+import com.github.moko256.twitlatte.database.DiskScheduler
 import com.github.moko256.twitlatte.model.base.PostStatusModel
 import io.reactivex.Completable
+import io.reactivex.Observable
 import io.reactivex.Single
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+private const val TTL_OF_CUSTOM_EMOJIS_MILLIS = 24 * 60 * 60 * 1000L
 
 /**
  * Created by moko256 on 2017/10/23.
@@ -33,10 +41,18 @@ import io.reactivex.Single
 
 class PostStatusModelImpl(
         private val contentResolver: ContentResolver,
-        private val apiClient: ApiClient
+        private val apiClient: ApiClient,
+        private val emojiCatalog: CachedEmojisSQLiteOpenHelper?
 ) : PostStatusModel {
     private val counter = apiClient.generateCounter()
 
+    /**
+     * Held for reading while [emojiCatalog] is used, and for writing by [close],
+     * so that the catalog is not closed in the middle of a read on the reader pool.
+     */
+    private val catalogLock = ReentrantReadWriteLock()
+    private var isCatalogClosed = false
+
     override val updateStatus: UpdateStatus = UpdateStatus(
             inReplyToStatusId = -1,
             isPossiblySensitive = false,
@@ -94,13 +110,64 @@ class PostStatusModelImpl(
         }
     }
 
-    override fun requestCustomEmojis(): Single<List<Emoji>> {
-        return Single.create {
+    override fun requestCustomEmojis(forceRefresh: Boolean): Observable<Int> {
+        val catalog = emojiCatalog ?: return Observable.error(UnsupportedOperationException())
+        return Observable.create {
             try {
-                it.onSuccess(apiClient.getCustomEmojis())
+                val info = useCatalog(catalog) { getCatalogInfo() }
+                if (info != null) {
+                    it.onNext(useCatalog(catalog) { count() })
+                }
+                if (forceRefresh || info == null || System.currentTimeMillis() - info.fetchedAt >= TTL_OF_CUSTOM_EMOJIS_MILLIS) {
+                    val response = apiClient.getCustomEmojis(info?.validator)
+                    val fetchedAt = System.currentTimeMillis()
+                    val emojis = response.body
+                    DiskScheduler.runWrite(catalog.databaseName) {
+                        useCatalog(catalog) {
+                            if (emojis != null) {
+                                replaceEmojis(emojis, response.validator, fetchedAt)
+                            } else {
+                                updateCatalogInfo(response.validator, fetchedAt)
+                            }
+                        }
+                    }
+                    if (emojis != null) {
+                        it.onNext(emojis.size)
+                    }
+                }
+                it.onComplete()
             } catch (e: Throwable) {
                 it.tryOnError(e)
             }
         }
     }
-}
\ No newline at end of file
+
+    override fun getCustomEmojis(offset: Int, limit: Int): Single<List<Emoji>> {
+        val catalog = emojiCatalog ?: return Single.error(UnsupportedOperationException())
+        return Single.fromCallable { useCatalog(catalog) { getEmojis(offset, limit) } }
+    }
+
+    private inline fun <T> useCatalog(
+            catalog: CachedEmojisSQLiteOpenHelper,
+            action: CachedEmojisSQLiteOpenHelper.() -> T
+    ): T {
+        catalogLock.read {
+            if (isCatalogClosed) {
+                throw IllegalStateException("The emoji catalog is closed")
+            }
+            return catalog.action()
+        }
+    }
+
+    override fun close() {
+        val catalog = emojiCatalog ?: return
+        // Closed on the writer after writes queued on it, and after reads running on the reader pool
+        Completable.fromAction {
+            catalogLock.write {
+                isCatalogClosed = true
+                catalog.close()
+            }
+        }.subscribeOn(DiskScheduler.writer(catalog))
+                .subscribe({}, { it.printStackTrace() })
+    }
+}
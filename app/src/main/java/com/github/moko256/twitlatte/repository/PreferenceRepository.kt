@@ -43,6 +43,9 @@ const val KEY_IS_PATTERN_TWEET_SOURCE_MUTE = "patternTweetSourceMuteEnabled"
 const val KEY_TWEET_SOURCE_MUTE_PATTERN = "tweetSourceMutePattern"
 const val KEY_TIMELINE_IMAGE_LOAD_MODE = "timelineImageMode"
 const val KEY_ALWAYS_CLOSE_APP = "alwaysCloseApp"
+const val KEY_DISK_CACHE_BUDGET = "diskCacheBudget"
+
+const val DEFAULT_DISK_CACHE_BUDGET_MB = "32"
 
 class PreferenceRepository(private val preferences: SharedPreferences) {
 
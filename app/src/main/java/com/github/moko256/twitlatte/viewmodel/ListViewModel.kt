@@ -52,8 +52,10 @@ class ListViewModel(
                 CachedIdListSQLiteOpenHelper(
                         app.applicationContext,
                         client.accessToken,
-                        repo.name()
-                )
+                        repo.name(),
+                        true
+                ),
+                repo::requestLocal
         )
     }
 
@@ -75,5 +77,11 @@ class ListViewModel(
         }
 
         abstract fun name(): String
+
+        /**
+         * Finds ids of posts in the caches, which are shown until the first request completes.
+         * Called on a background thread.
+         */
+        open fun requestLocal(): List<Long> = emptyList()
     }
 }
\ No newline at end of file
@@ -23,6 +23,8 @@ import androidx.lifecycle.ViewModel
 import com.github.moko256.latte.client.base.ApiClient
 import com.github.moko256.latte.client.base.entity.Trend
 import com.github.moko256.twitlatte.database.CachedTrendsSQLiteOpenHelper
+import com.github.moko256.twitlatte.database.DiskScheduler
+import io.reactivex.Maybe
 import io.reactivex.Single
 import io.reactivex.android.schedulers.AndroidSchedulers
 import io.reactivex.disposables.CompositeDisposable
@@ -40,24 +42,19 @@ class TrendsViewModel : ViewModel() {
     val errors = MutableLiveData<Throwable>()
 
     fun load(withoutCache: Boolean) {
-        disposables.add(
-                Single.create<List<Trend>> {
-                    try {
-                        if (!withoutCache) {
-                            val fromDb = database.trends
-                            if (fromDb.isNotEmpty()) {
-                                it.onSuccess(fromDb)
-                                return@create
-                            }
-                        }
-
-                        it.onSuccess(getTrendsFromApi())
+        val fromApi = Single.fromCallable { getTrendsFromApi() }
+                .subscribeOn(Schedulers.io())
+                .observeOn(DiskScheduler.writer(database))
+                .doOnSuccess { database.trends = it }
 
-                    } catch (e: Throwable) {
-                        it.tryOnError(e)
-                    }
-                }.subscribeOn(Schedulers.io())
-                        .observeOn(AndroidSchedulers.mainThread())
+        disposables.add(
+                if (withoutCache) {
+                    fromApi
+                } else {
+                    Maybe.fromCallable<List<Trend>> { database.trends.takeIf { it.isNotEmpty() } }
+                            .subscribeOn(DiskScheduler.reader)
+                            .switchIfEmpty(fromApi)
+                }.observeOn(AndroidSchedulers.mainThread())
                         .subscribe(
                                 //TODO: Consider to use whether post/setValues method in MutableLiveData. It is different about using thread
                                 {
@@ -72,11 +69,7 @@ class TrendsViewModel : ViewModel() {
 
     private fun getTrendsFromApi(): List<Trend> {
         val address = getGeoLocation()
-        val trends = apiClient.getClosestTrends(address.latitude, address.longitude)
-
-        database.trends = trends
-
-        return trends
+        return apiClient.getClosestTrends(address.latitude, address.longitude)
     }
 
     private fun getGeoLocation(): Address {
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.cacheMap
+
+import android.content.Context
+import android.database.DatabaseUtils
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.github.moko256.twitlatte.database.CachedStatusesSQLiteOpenHelper
+import com.github.moko256.twitlatte.database.CachedUsersSQLiteOpenHelper
+import com.github.moko256.twitlatte.testutils.emptyAccessToken
+import org.junit.After
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class DiskCacheCompactorTest {
+
+    private val context = ApplicationProvider.getApplicationContext<Context>()
+    private val statuses = CachedStatusesSQLiteOpenHelper(context, emptyAccessToken)
+    private val users = CachedUsersSQLiteOpenHelper(context, emptyAccessToken)
+
+    @Before
+    fun setUp() {
+        statuses.writableDatabase.apply {
+            delete("CachedStatuses", null, null)
+            delete("Counts", null, null)
+            delete("CachedUsers", null, null)
+
+            // Status 1 is counted by a list, status 2 is not
+            execSQL("insert into CachedStatuses(id,userId,repeatedStatusId) values(1,10,-1)")
+            execSQL("insert into CachedStatuses(id,userId,repeatedStatusId) values(2,11,-1)")
+            execSQL("insert into Counts(id,count) values(1,1)")
+            for (userId in 10..13) {
+                execSQL("insert into CachedUsers(id,name) values($userId,'$userId')")
+            }
+        }
+    }
+
+    @After
+    fun tearDown() {
+        statuses.close()
+        users.close()
+    }
+
+    @Test
+    fun testCompactWithinBudget() {
+        val compactor = DiskCacheCompactor(statuses, users, 12) { Long.MAX_VALUE }
+        compactor.compact()
+        compactor.close()
+
+        assertTrue(hasStatus(1))
+        assertFalse(hasStatus(2))
+        // Users are kept while the database is within the budget
+        for (userId in 10..13) {
+            assertTrue(hasUser(userId))
+        }
+    }
+
+    @Test
+    fun testCompactOverBudget() {
+        val compactor = DiskCacheCompactor(statuses, users, 12) { 0 }
+        compactor.compact()
+        compactor.close()
+
+        assertTrue(hasStatus(1))
+        assertFalse(hasStatus(2))
+        // The user of the counted status and the user of the account are kept
+        assertTrue(hasUser(10))
+        assertFalse(hasUser(11))
+        assertTrue(hasUser(12))
+        assertFalse(hasUser(13))
+    }
+
+    @Test
+    fun testClosedCompactorDoesNothing() {
+        val compactor = DiskCacheCompactor(statuses, users, 12) { 0 }
+        compactor.close()
+        compactor.compact()
+
+        assertTrue(hasStatus(2))
+        assertTrue(hasUser(13))
+    }
+
+    private fun hasStatus(id: Int): Boolean {
+        return DatabaseUtils.queryNumEntries(statuses.readableDatabase, "CachedStatuses", "id=$id") > 0
+    }
+
+    private fun hasUser(id: Int): Boolean {
+        return DatabaseUtils.queryNumEntries(users.readableDatabase, "CachedUsers", "id=$id") > 0
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.cacheMap
+
+import android.content.Context
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.github.moko256.latte.client.base.entity.Post
+import com.github.moko256.latte.client.base.entity.Repeat
+import com.github.moko256.latte.client.base.entity.Status
+import com.github.moko256.latte.client.base.entity.User
+import com.github.moko256.twitlatte.collections.PartitionedLongLruCache
+import com.github.moko256.twitlatte.database.CachedStatusesSQLiteOpenHelper
+import com.github.moko256.twitlatte.metrics.METRICS_STATUSES
+import com.github.moko256.twitlatte.metrics.METRICS_USERS
+import com.github.moko256.twitlatte.metrics.MetricsRegistry
+import com.github.moko256.twitlatte.testutils.emptyAccessToken
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.Date
+
+@RunWith(AndroidJUnit4::class)
+class PostCacheTest {
+
+    private val context = ApplicationProvider.getApplicationContext<Context>()
+
+    private lateinit var statusCache: StatusCacheMap
+    private lateinit var userCache: UserCacheMap
+    private lateinit var postCache: PostCache
+
+    @Before
+    fun setUp() {
+        CachedStatusesSQLiteOpenHelper(context, emptyAccessToken).apply {
+            writableDatabase.apply {
+                delete("CachedStatuses", null, null)
+                delete("Counts", null, null)
+                delete("CachedUsers", null, null)
+            }
+            close()
+        }
+        open()
+    }
+
+    @After
+    fun tearDown() {
+        close()
+    }
+
+    @Test
+    fun testGetPostReturnsCachedInstance() {
+        postCache.add(Post(1, status = generateStatus(1, 10), user = generateUser(10, "a")), true)
+
+        val post = postCache.getPost(1)!!
+        assertEquals(1L, post.status!!.id)
+        assertEquals("a", post.user!!.name)
+        assertSame(post, postCache.getPost(1))
+        assertSame(post, postCache.getPosts(longArrayOf(1))[0])
+    }
+
+    @Test
+    fun testUpdatesInvalidatePosts() {
+        // 3 repeats 2 which quotes 1
+        postCache.addAll(
+                listOf(
+                        Post(
+                                3,
+                                Repeat(Date(), 3, 11, 2), generateUser(11, "repeater"),
+                                generateStatus(2, 10, 1), generateUser(10, "a"),
+                                generateStatus(1, 12), generateUser(12, "quoted")
+                        )
+                )
+        )
+
+        var post = postCache.getPost(3)!!
+
+        statusCache.add(generateStatus(2, 10, 1, "edited"), false)
+        assertNotSame(post, postCache.getPost(3))
+        post = postCache.getPost(3)!!
+        assertEquals("edited", post.status!!.text)
+
+        statusCache.add(generateStatus(1, 12, text = "quote edited"), false)
+        post = postCache.getPost(3)!!.also { assertNotSame(post, it) }
+        assertEquals("quote edited", post.quotedRepeatingStatus!!.text)
+
+        statusCache.addAll(listOf(Repeat(Date(), 3, 12, 2)), false)
+        post = postCache.getPost(3)!!.also { assertNotSame(post, it) }
+        assertEquals(12L, post.repeat!!.userId)
+        assertEquals("quoted", post.repeatedUser!!.name)
+
+        userCache.add(generateUser(10, "b"))
+        post = postCache.getPost(3)!!.also { assertNotSame(post, it) }
+        assertEquals("b", post.user!!.name)
+
+        userCache.addAll(listOf(generateUser(12, "renamed")))
+        post = postCache.getPost(3)!!.also { assertNotSame(post, it) }
+        assertEquals("renamed", post.repeatedUser!!.name)
+        assertEquals("renamed", post.quotedRepeatingUser!!.name)
+
+        // Not referred by the post
+        userCache.add(generateUser(13, "other"))
+        assertSame(post, postCache.getPost(3))
+    }
+
+    @Test
+    fun testGetPostsReadsDiskInBatches() {
+        postCache.addAll(
+                listOf(
+                        Post(1, status = generateStatus(1, 10), user = generateUser(10, "a")),
+                        Post(2, status = generateStatus(2, 11, 1), user = generateUser(11, "b")),
+                        Post(
+                                3,
+                                Repeat(Date(), 3, 12, 1), generateUser(12, "c"),
+                                generateStatus(1, 10), generateUser(10, "a"),
+                                null, null
+                        )
+                )
+        )
+        // Reopened, so that nothing is in the memory caches
+        close()
+        open()
+
+        val statusMetrics = MetricsRegistry.cache(METRICS_STATUSES)
+        val userMetrics = MetricsRegistry.cache(METRICS_USERS)
+        statusMetrics.reset()
+        userMetrics.reset()
+
+        val posts = postCache.getPosts(longArrayOf(3, 2, 4, 1))
+
+        assertEquals(listOf(3L, 2L, null, 1L), posts.map { it?.id })
+        assertEquals("c", posts[0]!!.repeatedUser!!.name)
+        assertEquals("a", posts[0]!!.user!!.name)
+        assertEquals(1L, posts[1]!!.quotedRepeatingStatus!!.id)
+        assertEquals("a", posts[1]!!.quotedRepeatingUser!!.name)
+        assertEquals("b", posts[1]!!.user!!.name)
+        assertNull(posts[3]!!.quotedRepeatingStatus)
+
+        // One query for the statuses with their references, one query for their users
+        assertEquals(1, statusMetrics.diskReads.count())
+        assertEquals(1, userMetrics.diskReads.count())
+        assertEquals(3, userMetrics.diskHits.get())
+
+        // Assembled posts are kept
+        assertSame(posts[0], postCache.getPost(3))
+    }
+
+    private fun open() {
+        statusCache = StatusCacheMap(
+                PartitionedLongLruCache(1024 * 1024, StatusObjectWeigher).partition(0),
+                context,
+                emptyAccessToken
+        )
+        userCache = UserCacheMap(
+                PartitionedLongLruCache(1024 * 1024, UserWeigher).partition(0),
+                context,
+                emptyAccessToken
+        )
+        postCache = PostCache(statusCache, userCache)
+    }
+
+    private fun close() {
+        statusCache.close()
+        userCache.close()
+    }
+
+    private fun generateStatus(id: Long, userId: Long, quotedStatusId: Long = -1, text: String = "text") = Status(
+            Date(),
+            id,
+            userId,
+            text,
+            null,
+            null,
+            -1,
+            -1,
+            null,
+            false,
+            false,
+            0,
+            0,
+            0,
+            false,
+            null,
+            null,
+            null,
+            null,
+            quotedStatusId,
+            "https://example.com/$id",
+            null,
+            null,
+            null,
+            null,
+            null
+    )
+
+    private fun generateUser(id: Long, name: String) = User(
+            id,
+            name,
+            "screen_name_$id",
+            "",
+            null,
+            null,
+            null,
+            Date(),
+            null,
+            false,
+            false,
+            0,
+            0,
+            0,
+            0,
+            null,
+            "https://example.com/$id.png"
+    )
+}
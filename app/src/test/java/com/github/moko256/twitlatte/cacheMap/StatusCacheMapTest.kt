@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.cacheMap
+
+import android.content.Context
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.github.moko256.latte.client.base.entity.Repeat
+import com.github.moko256.latte.client.base.entity.Status
+import com.github.moko256.twitlatte.collections.PartitionedLongLruCache
+import com.github.moko256.twitlatte.database.CachedStatusesSQLiteOpenHelper
+import com.github.moko256.twitlatte.metrics.METRICS_STATUSES
+import com.github.moko256.twitlatte.metrics.MetricsRegistry
+import com.github.moko256.twitlatte.testutils.emptyAccessToken
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.Date
+import kotlin.system.measureNanoTime
+
+/**
+ * Checks that the memory cache and the disk cache agree across close and crash boundaries.
+ */
+@RunWith(AndroidJUnit4::class)
+class StatusCacheMapTest {
+
+    private val context = ApplicationProvider.getApplicationContext<Context>()
+    private val helper = CachedStatusesSQLiteOpenHelper(context, emptyAccessToken)
+
+    @Before
+    fun setUp() {
+        helper.writableDatabase.apply {
+            delete("CachedStatuses", null, null)
+            delete("Counts", null, null)
+        }
+    }
+
+    @After
+    fun tearDown() {
+        helper.close()
+    }
+
+    @Test
+    fun testCloseFlushesPendingWrites() {
+        val cacheMap = newCacheMap()
+        cacheMap.addAll(listOf(generateStatus(1, "a"), Repeat(Date(), 2, 0, 1)), true)
+        cacheMap.add(generateStatus(1, "b"), true)
+
+        assertEquals("b", (cacheMap.get(1) as Status).text)
+        assertNotNull(cacheMap.getAllWithReferences(longArrayOf(2))[1])
+
+        cacheMap.close()
+
+        assertEquals("b", (helper.getCachedStatus(1) as Status).text)
+        assertNotNull(helper.getCachedStatus(2))
+
+        // Both increments of id 1 are counted whether or not they were coalesced
+        helper.deleteCachedStatuses(listOf(1L, 2L))
+        assertNotNull(helper.getCachedStatus(1))
+        assertNull(helper.getCachedStatus(2))
+        helper.deleteCachedStatuses(listOf(1L))
+        assertNull(helper.getCachedStatus(1))
+    }
+
+    @Test
+    fun testFlushedWritesSurviveCrash() {
+        val crashed = newCacheMap()
+        crashed.add(generateStatus(1, "a"), true)
+        crashed.flush()
+
+        // The process is killed here without close()
+        val restarted = newCacheMap()
+        assertEquals("a", (restarted.get(1) as Status).text)
+        assertEquals("a", (helper.getCachedStatus(1) as Status).text)
+
+        restarted.close()
+    }
+
+    @Test
+    fun testDeleteAfterPendingAdd() {
+        val cacheMap = newCacheMap()
+        cacheMap.addAll(listOf(generateStatus(1, "a"), generateStatus(2, "b")), true, 2)
+
+        cacheMap.delete(listOf(1L))
+        cacheMap.close()
+
+        assertNull(helper.getCachedStatus(1))
+        // Not counted, so reclaimed by compaction
+        assertNotNull(helper.getCachedStatus(2))
+        assertNull(helper.deleteUncountedStatuses(helper.deleteUncountedStatuses(Long.MIN_VALUE, 10)!!, 10))
+        assertNull(helper.getCachedStatus(2))
+    }
+
+    @Test
+    fun testMissingIds() {
+        val cacheMap = newCacheMap()
+        assertNull(cacheMap.get(1))
+        assertEquals(0, cacheMap.getAll(longArrayOf(2)).size())
+
+        // Written behind the cache map, so they stay hidden until added through it
+        helper.addCachedStatuses(listOf(generateStatus(1, "a"), generateStatus(2, "b")), false)
+        assertNull(cacheMap.get(1))
+        assertNull(cacheMap.get(2))
+
+        cacheMap.add(generateStatus(1, "c"), false)
+        cacheMap.addAll(listOf(generateStatus(2, "d")), false)
+        assertEquals("c", (cacheMap.get(1) as Status).text)
+        assertEquals("d", (cacheMap.getAll(longArrayOf(2))[2] as Status).text)
+
+        cacheMap.close()
+    }
+
+    @Test
+    fun testMetrics() {
+        val metrics = MetricsRegistry.cache(METRICS_STATUSES)
+        helper.addCachedStatuses(listOf(generateStatus(1, "a")), false)
+        metrics.reset()
+
+        val cacheMap = newCacheMap()
+        cacheMap.get(1)
+        cacheMap.get(1)
+        cacheMap.get(2)
+        cacheMap.get(2)
+        cacheMap.add(generateStatus(3, "c"), false)
+        cacheMap.close()
+
+        assertEquals(1, metrics.memoryHits.get())
+        assertEquals(1, metrics.diskHits.get())
+        assertEquals(2, metrics.misses.get())
+        assertEquals(2, metrics.diskReads.count())
+        assertEquals(1, metrics.diskWrites.count())
+    }
+
+    @Test
+    fun missingIdsBenchmark() {
+        val metrics = MetricsRegistry.cache(METRICS_STATUSES)
+        metrics.reset()
+
+        val cacheMap = newCacheMap()
+        val ids = LongArray(20) { 1000L + it }
+        val rounds = 500
+
+        val withoutCache = measureNanoTime {
+            repeat(rounds) {
+                ids.forEach { assertNull(helper.getCachedStatus(it)) }
+            }
+        }
+        val withCache = measureNanoTime {
+            repeat(rounds) {
+                ids.forEach { assertNull(cacheMap.get(it)) }
+            }
+        }
+        cacheMap.close()
+
+        val reads = ids.size * rounds
+        println(
+                "Missing ids: ${reads - metrics.diskReads.count()} of $reads database round-trips saved, " +
+                        "${withoutCache / reads} ns/get without negative cache, ${withCache / reads} ns/get with"
+        )
+        // Each missing id is read from the disk once, and every get still counts as a miss
+        assertEquals(ids.size.toLong(), metrics.diskReads.count())
+        assertEquals(reads.toLong(), metrics.misses.get())
+    }
+
+    private fun newCacheMap() = StatusCacheMap(
+            PartitionedLongLruCache(1024 * 1024, StatusObjectWeigher).partition(0),
+            context,
+            emptyAccessToken
+    )
+
+    private fun generateStatus(id: Long, text: String) = Status(
+            Date(),
+            id,
+            0,
+            text,
+            null,
+            null,
+            0,
+            0,
+            "",
+            false,
+            false,
+            0,
+            0,
+            0,
+            false,
+            "",
+            null,
+            null,
+            null,
+            0,
+            "",
+            "",
+            null,
+            "",
+            null,
+            null
+    )
+}
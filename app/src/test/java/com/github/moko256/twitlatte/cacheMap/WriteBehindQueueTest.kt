@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.cacheMap
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class WriteBehindQueueTest {
+
+    @Test
+    fun testCoalesce() {
+        val disk = HashMap<Long, Pair<String, Int>>()
+        val batches = ArrayList<Int>()
+        val started = CountDownLatch(1)
+        val blocker = CountDownLatch(1)
+
+        val queue = WriteBehindQueue<String>("test") { values, increments ->
+            started.countDown()
+            blocker.await(5, TimeUnit.SECONDS)
+            batches.add(values.size)
+            values.forEachIndexed { index, value ->
+                val id = value.substringBefore(':').toLong()
+                disk[id] = value to (disk[id]?.second ?: 0) + increments[index]
+            }
+        }
+
+        queue.enqueue(0, "0:first", 1)
+        started.await(5, TimeUnit.SECONDS)
+
+        // The first batch is being written, so these are coalesced into the next one
+        queue.enqueue(1, "1:a", 1)
+        queue.enqueue(1, "1:b", 1)
+        queue.enqueue(2, "2:a", 0)
+        assertEquals("0:first", queue.get(0))
+        assertEquals("1:b", queue.get(1))
+        assertNull(queue.get(3))
+
+        blocker.countDown()
+        queue.close()
+
+        assertEquals(listOf(1, 2), batches)
+        assertEquals("0:first" to 1, disk[0])
+        assertEquals("1:b" to 2, disk[1])
+        assertEquals("2:a" to 0, disk[2])
+        assertNull(queue.get(1))
+    }
+
+    @Test
+    fun testFailedWrite() {
+        var fail = true
+        val written = ArrayList<Pair<String, Int>>()
+
+        val queue = WriteBehindQueue<String>("test") { values, increments ->
+            if (fail) {
+                throw IllegalStateException()
+            }
+            values.forEachIndexed { index, value ->
+                written.add(value to increments[index])
+            }
+        }
+
+        queue.enqueue(0, "a", 1)
+        queue.enqueue(1, "b", 1)
+        queue.flush()
+
+        // The failed batch is kept until the next write
+        assertEquals("a", queue.get(0))
+        assertEquals("b", queue.get(1))
+
+        fail = false
+        queue.enqueue(1, "c", 2)
+        queue.close()
+        assertEquals(listOf("a" to 1, "c" to 3), written)
+        assertNull(queue.get(0))
+    }
+
+    @Test
+    fun testEnqueueAfterClose() {
+        val written = ArrayList<String>()
+        val queue = WriteBehindQueue<String>("test") { values, _ ->
+            written.addAll(values)
+        }
+
+        queue.enqueue(0, "a", 0)
+        queue.close()
+        queue.enqueue(1, "b", 0)
+        queue.flush()
+
+        assertEquals(listOf("a"), written)
+        assertNull(queue.get(1))
+    }
+}
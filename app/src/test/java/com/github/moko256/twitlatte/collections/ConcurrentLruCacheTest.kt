@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.collections
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.concurrent.thread
+
+class ConcurrentLruCacheTest {
+
+    @Test
+    fun testSingleSegment() {
+        val lruCache = ConcurrentLruCache<Int, String>(2)
+        assertEquals(1, lruCache.segmentCount())
+
+        lruCache.put(0, "zero")
+        lruCache.put(1, "one")
+        lruCache.put(2, "two")
+        assertArrayEquals(lruCache.valueIterable().toTypedArray(), arrayOf("one", "two"))
+
+        assertEquals(lruCache.get(1), "one")
+        lruCache.put(3, "three")
+        assertArrayEquals(lruCache.valueIterable().toTypedArray(), arrayOf("one", "three"))
+
+        lruCache.clearIfNotEmpty()
+        assertEquals(0, lruCache.size())
+    }
+
+    @Test
+    fun testSegmented() {
+        val lruCache = ConcurrentLruCache<Long, Long>(250)
+        assertEquals(8, lruCache.segmentCount())
+
+        for (i in 0L until 1000L) {
+            lruCache.put(i, i)
+        }
+        assertTrue(lruCache.size() <= 250)
+
+        for (i in 990L until 1000L) {
+            assertEquals(i, lruCache.get(i))
+        }
+
+        lruCache.clear()
+        assertEquals(0, lruCache.size())
+    }
+
+    @Test
+    fun contentionBenchmark() {
+        val lruCache = LruCache<Long, Long>(250)
+        val concurrentLruCache = ConcurrentLruCache<Long, Long>(250)
+
+        val lruTime = runContention({ lruCache.get(it) }, { lruCache.put(it, it) })
+        val concurrentTime = runContention({ concurrentLruCache.get(it) }, { concurrentLruCache.put(it, it) })
+
+        println("LruCache: $lruTime ns/get, ConcurrentLruCache: $concurrentTime ns/get")
+        assertTrue(lruCache.size() <= 250)
+        assertTrue(concurrentLruCache.size() <= 250)
+    }
+
+    /**
+     * One reader (like a timeline bind on the main thread) runs gets
+     * while three writers (like PostCache.addAll on io threads) keep inserting.
+     *
+     * Every get has to return null or the value put with its key while the writers run.
+     *
+     * @return average time of a get in nanoseconds
+     */
+    private inline fun runContention(
+        crossinline get: (Long) -> Long?,
+        crossinline put: (Long) -> Unit
+    ): Long {
+        val writers = 3
+        val reads = 2_000_000
+        val running = AtomicBoolean(true)
+        val ready = CountDownLatch(writers)
+
+        for (i in 0L until 250L) {
+            put(i)
+        }
+
+        val threads = List(writers) { n ->
+            thread {
+                var i = n * 100_000L
+                ready.countDown()
+                while (running.get()) {
+                    put(i % 1000)
+                    i++
+                }
+            }
+        }
+        ready.await()
+
+        var wrongValues = 0
+        val start = System.nanoTime()
+        for (i in 0 until reads) {
+            val key = (i % 500).toLong()
+            val value = get(key)
+            if (value != null && value != key) {
+                wrongValues++
+            }
+        }
+        val time = System.nanoTime() - start
+
+        running.set(false)
+        threads.forEach { it.join() }
+        assertEquals(0, wrongValues)
+        return time / reads
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.collections
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class FrequencySketchTest {
+
+    @Test
+    fun testFrequency() {
+        val sketch = FrequencySketch(64)
+        val hot = mixLong(100)
+        val cold = mixLong(200)
+
+        repeat(5) {
+            sketch.increment(hot)
+        }
+        sketch.increment(cold)
+
+        assertEquals(5, sketch.frequency(hot))
+        assertEquals(1, sketch.frequency(cold))
+        assertEquals(0, sketch.frequency(mixLong(300)))
+
+        repeat(100) {
+            sketch.increment(hot)
+        }
+        assertEquals(15, sketch.frequency(hot))
+    }
+
+    @Test
+    fun testEnsureCapacityKeepsCounts() {
+        val sketch = FrequencySketch(8)
+        val hot = mixLong(100)
+        repeat(5) {
+            sketch.increment(hot)
+        }
+
+        sketch.ensureCapacity(16)
+        sketch.ensureCapacity(1024)
+
+        assertEquals(5, sketch.frequency(hot))
+        assertEquals(0, sketch.frequency(mixLong(300)))
+    }
+
+    @Test
+    fun testReset() {
+        val sketch = FrequencySketch(8)
+        val hot = mixLong(1)
+        repeat(15) {
+            sketch.increment(hot)
+        }
+        for (i in 1000L until 2000L) {
+            sketch.increment(mixLong(i))
+        }
+        assertTrue(sketch.frequency(hot) < 15)
+    }
+
+    /**
+     * Replays a home timeline trace: every refresh inserts 600 new objects by [LongLruCache.offer]
+     * like PostCache.addAll, then frames read a hot set (own user, favorite users, quotes on screen)
+     * and the newest posts, loading misses from disk by [LongLruCache.put].
+     */
+    @Test
+    fun traceReplay() {
+        val lruHitRate = replay(LongLruCache(250, unitWeigher, false))
+        val tinyLfuHitRate = replay(LongLruCache(250, unitWeigher, true))
+
+        println("Hit rate: LRU $lruHitRate, TinyLFU admission $tinyLfuHitRate")
+        assertTrue(tinyLfuHitRate > lruHitRate)
+    }
+
+    private val unitWeigher = object : Weigher<Long> {
+        override fun weigh(value: Long) = 1
+    }
+
+    private fun replay(cache: LongLruCache<Long>): Double {
+        val hot = LongArray(40) { it * 7L + 1 }
+
+        var hits = 0
+        var requests = 0
+
+        fun read(id: Long) {
+            requests++
+            if (cache.get(id) != null) {
+                hits++
+            } else {
+                cache.put(id, id)
+            }
+        }
+
+        for (refresh in 0 until 50) {
+            val first = 1_000_000L + refresh * 1000L
+            for (id in first until first + 600) {
+                cache.offer(id, id)
+            }
+
+            for (frame in 0 until 20) {
+                hot.forEach { read(it) }
+                for (id in first + frame until first + frame + 10) {
+                    read(id)
+                }
+            }
+        }
+
+        return hits.toDouble() / requests
+    }
+}
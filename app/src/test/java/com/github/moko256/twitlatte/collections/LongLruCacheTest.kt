@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.collections
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.lang.management.ManagementFactory
+
+class LongLruCacheTest {
+
+    @Test
+    fun test() {
+        val lruCache = LongLruCache<String>(2)
+        testMap(lruCache)
+        lruCache.clear()
+        testMap(lruCache)
+        lruCache.clearIfNotEmpty()
+        testMap(lruCache)
+    }
+
+    private fun testMap(lruCache: LongLruCache<String>) {
+        lruCache.put(0, "zero")
+        assertEquals(lruCache.get(0), "zero")
+        assertEquals(lruCache.valueIterable().singleOrNull(), "zero")
+
+        lruCache.put(1, "one")
+        assertArrayEquals(lruCache.valueIterable().toTypedArray(), arrayOf("zero", "one"))
+
+        lruCache.put(2, "two")
+        assertArrayEquals(lruCache.valueIterable().toTypedArray(), arrayOf("one", "two"))
+
+        assertEquals(lruCache.get(1), "one")
+
+        lruCache.put(3, "three")
+        assertArrayEquals(lruCache.valueIterable().toTypedArray(), arrayOf("one", "three"))
+
+        lruCache.put(1, "one")
+        assertArrayEquals(lruCache.valueIterable().toTypedArray(), arrayOf("three", "one"))
+
+        lruCache.put(3, "THREE")
+        assertArrayEquals(lruCache.valueIterable().toTypedArray(), arrayOf("one", "THREE"))
+    }
+
+    @Test
+    fun testManyKeys() {
+        val lruCache = LongLruCache<Long>(250)
+
+        for (i in 0L until 10_000L) {
+            val key = i * 1_000_003L
+            lruCache.put(key, i)
+            assertEquals(i, lruCache.get(key))
+        }
+        assertTrue(lruCache.size() <= 250)
+
+        for (i in 9_990L until 10_000L) {
+            assertEquals(i, lruCache.get(i * 1_000_003L))
+        }
+        assertNull(lruCache.get(0))
+    }
+
+    @Test
+    fun testWeight() {
+        val lruCache = LongLruCache(10, object : Weigher<String> {
+            override fun weigh(value: String) = value.length
+        })
+
+        lruCache.put(0, "aaaa")
+        lruCache.put(1, "bbbb")
+        assertEquals(8, lruCache.weight())
+
+        lruCache.put(2, "cc")
+        assertEquals(10, lruCache.weight())
+        assertArrayEquals(lruCache.valueIterable().toTypedArray(), arrayOf("aaaa", "bbbb", "cc"))
+
+        lruCache.put(3, "dddddd")
+        assertArrayEquals(lruCache.valueIterable().toTypedArray(), arrayOf("cc", "dddddd"))
+        assertEquals(8, lruCache.weight())
+
+        lruCache.put(2, "c")
+        assertEquals(7, lruCache.weight())
+
+        lruCache.put(4, "too large value")
+        assertNull(lruCache.get(4))
+        assertEquals(7, lruCache.weight())
+
+        for (i in 100L until 1000L) {
+            lruCache.put(i, "e")
+        }
+        assertEquals(10, lruCache.size())
+        assertEquals(10, lruCache.weight())
+    }
+
+    @Test
+    fun testRemoveIf() {
+        val lruCache = LongLruCache<Long>(1000)
+        for (i in 0L until 100L) {
+            lruCache.put(i, i)
+        }
+
+        lruCache.removeIf { it % 2 == 0L }
+
+        assertEquals(50, lruCache.size())
+        assertNull(lruCache.get(10))
+        assertEquals(11L, lruCache.get(11))
+
+        lruCache.remove(11)
+        lruCache.remove(12)
+        assertEquals(49, lruCache.size())
+        assertNull(lruCache.get(11))
+        assertEquals(13L, lruCache.get(13))
+    }
+
+    @Test
+    fun testNoAllocationOnHit() {
+        val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+
+        val lruCache = LongLruCache<String>(250)
+        val keys = LongArray(100) { 1_000_000_000_000L + it * 7919L }
+        keys.forEach {
+            lruCache.put(it, it.toString())
+        }
+
+        val hits = 1_000_000
+
+        // Warm up so that JIT compiled code is measured
+        readAll(lruCache, keys, hits)
+
+        val empty = threadMXBean.getThreadAllocatedBytes(threadId)
+        val calibration = threadMXBean.getThreadAllocatedBytes(threadId) - empty
+
+        val before = threadMXBean.getThreadAllocatedBytes(threadId)
+        val found = readAll(lruCache, keys, hits)
+        val allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before - calibration
+
+        assertEquals(hits, found)
+        println("LongLruCache: $allocated bytes allocated for $hits hits")
+        assertEquals(0L, allocated / hits)
+    }
+
+    private fun readAll(lruCache: LongLruCache<String>, keys: LongArray, count: Int): Int {
+        var found = 0
+        for (i in 0 until count) {
+            if (lruCache.get(keys[i % keys.size]) != null) {
+                found++
+            }
+        }
+        return found
+    }
+}
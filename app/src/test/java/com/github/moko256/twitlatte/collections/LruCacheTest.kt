@@ -16,6 +16,7 @@
 
 package com.github.moko256.twitlatte.collections
 
+import com.github.moko256.twitlatte.metrics.CacheMetrics
 import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
 import org.junit.Test
@@ -37,6 +38,22 @@ class LruCacheTest {
         testMap(lruCache)
     }
 
+    @Test
+    fun testMetrics() {
+        val metrics = CacheMetrics("test")
+        val lruCache = LruCache<Int, String>(2, metrics)
+
+        lruCache.put(0, "zero")
+        lruCache.put(1, "one")
+        lruCache.get(0)
+        lruCache.get(2)
+        lruCache.put(2, "two")
+
+        assertEquals(1, metrics.memoryHits.get())
+        assertEquals(1, metrics.misses.get())
+        assertEquals(1, metrics.evictions.get())
+        assertEquals(2, metrics.lookups())
+    }
 
     private fun testMap(lruCache: LruCache<Int, String>) {
         lruCache.put(0, "zero")
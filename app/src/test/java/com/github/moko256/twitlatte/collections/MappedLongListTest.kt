@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.collections
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.LongBuffer
+
+class MappedLongListTest {
+
+    @Test
+    fun testReadWithoutCopy() {
+        val list = MappedLongList(LongBuffer.wrap(longArrayOf(3, 2, 1, -1)))
+
+        assertEquals(4, list.size)
+        assertEquals(2L, list[1])
+        assertEquals(3, list.indexOf(-1L))
+        assertTrue(list.isMapped())
+    }
+
+    @Test
+    fun testModify() {
+        val list = MappedLongList(LongBuffer.wrap(longArrayOf(5, 4, 3, 2, 1)))
+
+        list.addAll(0, listOf(7L, 6L))
+        list.removeAt(2)
+        list.subList(4, list.size).clear()
+        list.add(0)
+
+        assertFalse(list.isMapped())
+        assertEquals(listOf(7L, 6L, 4L, 3L, 0L), list)
+    }
+}
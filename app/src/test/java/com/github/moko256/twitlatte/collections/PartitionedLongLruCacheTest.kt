@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.collections
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.lang.management.ManagementFactory
+
+class PartitionedLongLruCacheTest {
+
+    private val weigher = object : Weigher<String> {
+        override fun weigh(value: String) = 32
+    }
+
+    @Test
+    fun testPartitions() {
+        val cache = PartitionedLongLruCache(1024 * 1024, weigher)
+        val first = cache.partition(0)
+        val second = cache.partition(1)
+
+        first.put(1, "first")
+        second.put(1, "second")
+
+        assertEquals("first", first.get(1))
+        assertEquals("second", second.get(1))
+        assertNull(first.get(2))
+
+        first.clear()
+        assertNull(first.get(1))
+        assertEquals("second", second.get(1))
+    }
+
+    @Test
+    fun testEvictionAcrossPartitions() {
+        // 32 bytes each
+        val cache = PartitionedLongLruCache(32 * 100, weigher)
+        val first = cache.partition(0)
+        val second = cache.partition(1)
+
+        for (i in 0L until 50L) {
+            first.put(i, "first")
+        }
+        for (i in 0L until 50L) {
+            second.put(i, "second")
+        }
+
+        // Reading the first partition makes the second one the eldest
+        for (i in 0L until 50L) {
+            first.get(i)
+        }
+        for (i in 100L until 120L) {
+            second.put(i, "second")
+        }
+
+        assertEquals(100, cache.size())
+        for (i in 0L until 50L) {
+            assertEquals("first", first.get(i))
+        }
+    }
+
+    @Test
+    fun testNoAllocationOnPut() {
+        val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+
+        val partition = PartitionedLongLruCache(1024 * 1024, weigher).partition(1)
+        val keys = LongArray(100) { 1_000_000_000_000L + it * 7919L }
+        val puts = 1_000_000
+
+        // Warm up so that JIT compiled code is measured
+        putAll(partition, keys, puts)
+
+        val before = threadMXBean.getThreadAllocatedBytes(threadId)
+        putAll(partition, keys, puts)
+        val allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before
+
+        assertEquals("value", partition.get(keys[0]))
+        assertEquals(0L, allocated / puts)
+    }
+
+    private fun putAll(partition: PartitionedLongLruCache.Partition<String>, keys: LongArray, count: Int) {
+        for (i in 0 until count) {
+            partition.put(keys[i % keys.size], "value")
+        }
+    }
+}
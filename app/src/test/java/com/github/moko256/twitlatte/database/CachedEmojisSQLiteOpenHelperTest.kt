@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database
+
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.github.moko256.latte.client.base.entity.CacheValidator
+import com.github.moko256.latte.client.base.entity.Emoji
+import com.github.moko256.twitlatte.testutils.emptyAccessToken
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class CachedEmojisSQLiteOpenHelperTest {
+
+    private lateinit var helper: CachedEmojisSQLiteOpenHelper
+
+    @Before
+    fun setUp() {
+        helper = CachedEmojisSQLiteOpenHelper(ApplicationProvider.getApplicationContext(), emptyAccessToken)
+        helper.writableDatabase.apply {
+            delete("Emojis", null, null)
+            delete("Catalog", null, null)
+        }
+    }
+
+    @After
+    fun tearDown() {
+        helper.close()
+    }
+
+    @Test
+    fun replaceEmojis() {
+        assertNull(helper.getCatalogInfo())
+        assertEquals(0, helper.count())
+
+        val validator = CacheValidator("\"a\"", "Tue, 31 Dec 2019 00:00:00 GMT")
+        helper.replaceEmojis(generateEmojis(120), validator, 100)
+
+        assertEquals(EmojiCatalogInfo(validator, 100), helper.getCatalogInfo())
+        assertEquals(120, helper.count())
+        assertEquals(generateEmojis(120).subList(50, 100), helper.getEmojis(50, 50))
+        assertEquals(generateEmojis(120).subList(100, 120), helper.getEmojis(100, 50))
+
+        helper.replaceEmojis(generateEmojis(3), CacheValidator("\"b\"", null), 200)
+        assertEquals(3, helper.count())
+        assertEquals(generateEmojis(3), helper.getEmojis(0, 50))
+        assertEquals(EmojiCatalogInfo(CacheValidator("\"b\"", null), 200), helper.getCatalogInfo())
+    }
+
+    @Test
+    fun updateCatalogInfo() {
+        helper.replaceEmojis(generateEmojis(3), CacheValidator("\"a\"", null), 100)
+        helper.updateCatalogInfo(CacheValidator("\"a\"", null), 200)
+
+        assertEquals(EmojiCatalogInfo(CacheValidator("\"a\"", null), 200), helper.getCatalogInfo())
+        assertEquals(generateEmojis(3), helper.getEmojis(0, 50))
+    }
+
+    private fun generateEmojis(size: Int) = List(size) {
+        Emoji("emoji$it", "https://test.example.com/emojis/$it.png")
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.github.moko256.twitlatte.database
 
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
 import androidx.test.core.app.ApplicationProvider
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import com.github.moko256.twitlatte.database.utils.transaction
@@ -23,9 +25,14 @@ import com.github.moko256.twitlatte.testutils.emptyAccessToken
 import org.junit.After
 import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
+import java.io.File
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import kotlin.concurrent.thread
 
 /**
  * Created by moko256 on 2019/12/07.
@@ -55,9 +62,9 @@ class CachedIdListSQLiteOpenHelperTest {
     @Test
     fun getIds() {
         helper.transaction {
-            execSQL("insert into IdList values(3)")
-            execSQL("insert into IdList values(2)")
-            execSQL("insert into IdList values(1)")
+            execSQL("insert into IdList(listName,position,id) values('testIdsDatabase',1,3)")
+            execSQL("insert into IdList(listName,position,id) values('testIdsDatabase',2,2)")
+            execSQL("insert into IdList(listName,position,id) values('testIdsDatabase',3,1)")
         }
         assertArrayEquals(longArrayOf(1, 2, 3), helper.getIds().toLongArray())
     }
@@ -88,6 +95,47 @@ class CachedIdListSQLiteOpenHelperTest {
         assertArrayEquals(longArrayOf(1, 2, 10, 11, 12, 3, 4), helper.getIds().toLongArray())
     }
 
+    @Test
+    fun insertIdsAtRepeatedly() {
+        helper.insertIdsAtFirst(listOf(1, 2))
+        val expected = mutableListOf(1L, 2L)
+
+        // Halves the gap between 1 and the inserted id every time until there is no room
+        for (id in 100L until 150L) {
+            helper.insertIdsAt(1, listOf(id))
+            expected.add(1, id)
+        }
+        helper.insertIdsAtLast(listOf(3))
+        expected.add(3)
+
+        assertArrayEquals(expected.toLongArray(), helper.getIds().toLongArray())
+    }
+
+    @Test
+    fun insertIdsAtCrowdedMiddleMovesNearbyRowsOnly() {
+        val expected = (1L..200L).toMutableList()
+        helper.insertIdsAtFirst(expected)
+        val topPosition = positionOf(1)
+        val bottomPosition = positionOf(200)
+
+        for (id in 1000L until 1040L) {
+            helper.insertIdsAt(100, listOf(id))
+            expected.add(100, id)
+        }
+
+        assertArrayEquals(expected.toLongArray(), helper.getIds().toLongArray())
+        assertEquals(topPosition, positionOf(1))
+        assertEquals(bottomPosition, positionOf(200))
+    }
+
+    private fun positionOf(id: Long): Long {
+        val c = helper.readableDatabase.rawQuery("select position from IdList where id=$id", null)
+        c.moveToNext()
+        val position = c.getLong(0)
+        c.close()
+        return position
+    }
+
     @Test
     fun removeAt() {
         helper.insertIdsAtFirst(listOf(1, 2, 3, 1, 4))
@@ -104,9 +152,33 @@ class CachedIdListSQLiteOpenHelperTest {
         assertArrayEquals(longArrayOf(1, 2, 3, 4), helper.getIds().toLongArray())
     }
 
+    @Test
+    fun changesFollowPositionsOfExistingRows() {
+        helper.insertIdsAtFirst(listOf(1, 2, 3, 4))
+
+        // Positions of rows written by another helper are loaded on the first change
+        val other = CachedIdListSQLiteOpenHelper(
+            ApplicationProvider.getApplicationContext(),
+            emptyAccessToken,
+            "testIdsDatabase"
+        )
+        other.removeAt(1)
+        other.insertIdsAt(2, listOf(10))
+        for (id in 100L until 130L) {
+            other.insertIdsAt(1, listOf(id))
+        }
+        other.removeAt(0)
+        other.removeFromLast(1)
+        other.insertIdsAtLast(listOf(5))
+        other.close()
+
+        val expected = (129L downTo 100L).toList() + listOf(3L, 10L, 5L)
+        assertArrayEquals(expected.toLongArray(), helper.getIds().toLongArray())
+    }
+
     @Test
     fun getSeeingId() {
-        helper.writableDatabase.execSQL("insert into SeeingId values(123)")
+        helper.writableDatabase.execSQL("insert into SeeingId(listName,id) values('testIdsDatabase',123)")
         assertEquals(123, helper.getSeeingId())
     }
 
@@ -118,4 +190,88 @@ class CachedIdListSQLiteOpenHelperTest {
         helper.setSeeingId(333)
         assertEquals(333, helper.getSeeingId())
     }
-}
\ No newline at end of file
+
+    @Test
+    fun listsShareDatabase() {
+        val other = CachedIdListSQLiteOpenHelper(
+            ApplicationProvider.getApplicationContext(),
+            emptyAccessToken,
+            "otherIdsDatabase"
+        )
+        helper.insertIdsAtFirst(listOf(1, 2, 3))
+        other.insertIdsAtFirst(listOf(4, 5))
+        other.removeFromLast(1)
+        helper.setSeeingId(2)
+        other.setSeeingId(4)
+
+        assertEquals(helper.databaseName, other.databaseName)
+        assertArrayEquals(longArrayOf(1, 2, 3), helper.getIds().toLongArray())
+        assertArrayEquals(longArrayOf(4), other.getIds().toLongArray())
+        assertEquals(2, helper.getSeeingId())
+        assertEquals(4, other.getSeeingId())
+        other.close()
+    }
+
+    @Test
+    fun movesSeparateFile() {
+        helper.close()
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        val directory = File(context.cacheDir, emptyAccessToken.getKeyString())
+        directory.mkdirs()
+        SQLiteDatabase.deleteDatabase(File(directory, "Cache.db"))
+
+        // Same as version 2 of the file of each list, whose last row is the top of the list
+        val separateFile = File(directory, "separateIdsDatabase.db")
+        SQLiteDatabase.openOrCreateDatabase(separateFile, null).use {
+            it.execSQL("create table IdList(id)")
+            it.execSQL("create table SeeingId(id)")
+            it.execSQL("insert into IdList values(2)")
+            it.execSQL("insert into IdList values(1)")
+            it.execSQL("insert into SeeingId values(2)")
+            it.version = 2
+        }
+
+        helper = CachedIdListSQLiteOpenHelper(context, emptyAccessToken, "separateIdsDatabase")
+        assertArrayEquals(longArrayOf(1, 2), helper.getIds().toLongArray())
+        assertEquals(2, helper.getSeeingId())
+        assertFalse(separateFile.exists())
+    }
+
+    @Test
+    fun helpersOpeningAtOnceCreateOnce() {
+        helper.close()
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        val directory = File(context.cacheDir, emptyAccessToken.getKeyString())
+        directory.mkdirs()
+        SQLiteDatabase.deleteDatabase(File(directory, "Cache.db"))
+
+        SQLiteDatabase.openOrCreateDatabase(File(directory, "separateIdsDatabase.db"), null).use {
+            it.execSQL("create table IdList(id)")
+            it.execSQL("create table SeeingId(id)")
+            it.execSQL("insert into IdList values(2)")
+            it.execSQL("insert into IdList values(1)")
+            it.version = 2
+        }
+
+        helper = CachedIdListSQLiteOpenHelper(context, emptyAccessToken, "separateIdsDatabase")
+        val helpers = List(4) { CachedIdListSQLiteOpenHelper(context, emptyAccessToken, "separateIdsDatabase") }
+        val start = CountDownLatch(1)
+        val errors = ConcurrentLinkedQueue<Throwable>()
+        val threads = helpers.map {
+            thread {
+                start.await()
+                try {
+                    it.getIds()
+                } catch (e: Throwable) {
+                    errors.add(e)
+                }
+            }
+        }
+        start.countDown()
+        threads.forEach { it.join() }
+        helpers.forEach { it.close() }
+
+        assertEquals(listOf<Throwable>(), errors.toList())
+        assertArrayEquals(longArrayOf(1, 2), helper.getIds().toLongArray())
+    }
+}
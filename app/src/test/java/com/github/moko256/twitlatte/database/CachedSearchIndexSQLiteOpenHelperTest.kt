@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database
+
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.github.moko256.twitlatte.testutils.emptyAccessToken
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class CachedSearchIndexSQLiteOpenHelperTest {
+
+    private lateinit var helper: CachedSearchIndexSQLiteOpenHelper
+
+    @Before
+    fun setUp() {
+        helper = CachedSearchIndexSQLiteOpenHelper(
+                ApplicationProvider.getApplicationContext(),
+                emptyAccessToken,
+                maxEntries = 3
+        )
+        helper.writableDatabase.delete("StatusesIndex", null, null)
+    }
+
+    @After
+    fun tearDown() {
+        helper.close()
+    }
+
+    @Test
+    fun search() {
+        assertEquals(3, helper.addEntries(listOf(
+                SearchIndexEntry(1, "Hello world", null, "Alice", "alice"),
+                SearchIndexEntry(2, "hello again", "spoiler", "Bob", "bob"),
+                SearchIndexEntry(3, "nothing", "Hello", "Carol", "carol")
+        )))
+
+        assertEquals(listOf(3L, 2L, 1L), helper.search("hello", 10))
+        assertEquals(listOf(1L), helper.search("hel WOR", 10))
+        assertEquals(listOf(2L), helper.search("bob", 10))
+        assertEquals(listOf(3L, 2L), helper.search("hello", 2))
+        assertEquals(emptyList<Long>(), helper.search("\"*", 10))
+    }
+
+    @Test
+    fun addEntriesKeepsNewest() {
+        helper.addEntries(listOf(
+                SearchIndexEntry(1, "a", null, null, null),
+                SearchIndexEntry(2, "a", null, null, null)
+        ))
+        // Already indexed
+        assertEquals(0, helper.addEntries(listOf(SearchIndexEntry(2, "a", null, null, null))))
+
+        assertEquals(2, helper.addEntries(listOf(
+                SearchIndexEntry(3, "a", null, null, null),
+                SearchIndexEntry(4, "a", null, null, null)
+        )))
+        assertEquals(3, helper.count())
+        assertEquals(listOf(4L, 3L, 2L), helper.search("a", 10))
+    }
+
+    @Test
+    fun searchTextWithoutSpaces() {
+        helper.addEntries(listOf(
+                SearchIndexEntry(1, "今日は東京都庁に行きました。", null, "太郎", "taro"),
+                SearchIndexEntry(2, "京都に行きたい", null, null, null),
+                SearchIndexEntry(3, "我喜欢北京烤鸭", null, null, null)
+        ))
+
+        assertEquals(listOf(1L), helper.search("東京", 10))
+        assertEquals(listOf(2L, 1L), helper.search("京都", 10))
+        assertEquals(listOf(1L), helper.search("都庁 行き", 10))
+        assertEquals(listOf(1L), helper.search("郎", 10))
+        assertEquals(listOf(3L), helper.search("北京", 10))
+        assertEquals(emptyList<Long>(), helper.search("東京タワー", 10))
+    }
+
+    @Test
+    fun toIndexedText() {
+        assertEquals("hello 東京 京都 都 world ", CachedSearchIndexSQLiteOpenHelper.toIndexedText("Hello, 東京都World!"))
+        assertNull(CachedSearchIndexSQLiteOpenHelper.toIndexedText(null))
+    }
+
+    @Test
+    fun toMatchQuery() {
+        assertEquals("\"hello*\" \"world*\"", CachedSearchIndexSQLiteOpenHelper.toMatchQuery(" hello\t\"world\" "))
+        assertEquals("\"tag*\"", CachedSearchIndexSQLiteOpenHelper.toMatchQuery("#tag"))
+        assertEquals("\"東京 京都\" \"abc*\"", CachedSearchIndexSQLiteOpenHelper.toMatchQuery("東京都ＡＢＣ"))
+        assertNull(CachedSearchIndexSQLiteOpenHelper.toMatchQuery(" * \" "))
+    }
+}
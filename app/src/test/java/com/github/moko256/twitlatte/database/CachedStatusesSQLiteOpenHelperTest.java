@@ -16,6 +16,8 @@
 
 package com.github.moko256.twitlatte.database;
 
+import android.content.Context;
+import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
@@ -23,17 +25,27 @@ import android.database.sqlite.SQLiteStatement;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
+import com.github.moko256.latte.client.base.entity.Post;
+import com.github.moko256.latte.client.base.entity.Repeat;
 import com.github.moko256.latte.client.base.entity.Status;
 import com.github.moko256.latte.client.base.entity.StatusObject;
+import com.github.moko256.latte.client.base.entity.User;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import kotlin.Pair;
 import kotlin.collections.ArraysKt;
@@ -42,8 +54,11 @@ import kotlin.collections.MapsKt;
 import static com.github.moko256.twitlatte.testutils.EmptyAccessTokenKt.emptyAccessToken;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by moko256 on 2017/03/17.
@@ -72,6 +87,7 @@ public class CachedStatusesSQLiteOpenHelperTest {
         updateCacheTest();
         removeCacheTest();
         addStatusesTest();
+        getStatusesTest();
         addStatusTestWithIncrement();
         getIdInUseTest();
         helper.close();
@@ -108,6 +124,16 @@ public class CachedStatusesSQLiteOpenHelperTest {
         assertEquals(((Status) helper.getCachedStatus(TEST_DUMMY_STATUS_ID_2)).getText(), TEST_DUMMY_STATUS_TEXT_1);
     }
 
+    private void getStatusesTest() {
+        helper.addCachedStatus(new Repeat(new Date(), 10L, 0L, TEST_DUMMY_STATUS_ID_2), false);
+
+        List<StatusObject> statuses = helper.getCachedStatuses(new long[]{TEST_DUMMY_STATUS_ID_1, 10L, 99L});
+        assertEquals(2, statuses.size());
+
+        List<StatusObject> withReferences = helper.getCachedStatusesWithReferences(new long[]{10L});
+        assertEquals(2, withReferences.size());
+    }
+
     private void addStatusTestWithIncrement() {
         helper.addCachedStatus(generateStatus(3, "3"), true);
         helper.addCachedStatus(generateStatus(4, "3"), true);
@@ -120,9 +146,21 @@ public class CachedStatusesSQLiteOpenHelperTest {
 
         helper.deleteCachedStatuses(Arrays.asList(3L, 4L));
 
+        assertNotNull(helper.getCachedStatus(TEST_DUMMY_STATUS_ID_1));
+        assertNotNull(helper.getCachedStatus(TEST_DUMMY_STATUS_ID_2));
+        assertNull(helper.getCachedStatus(3));
+        assertNotNull(helper.getCachedStatus(4));
+
+        // Statuses added without counting are reclaimed in batches
+        Long fromId = helper.deleteUncountedStatuses(Long.MIN_VALUE, 1);
+        int batches = 0;
+        while (fromId != null) {
+            batches++;
+            fromId = helper.deleteUncountedStatuses(fromId, 1);
+        }
+        assertEquals(4, batches);
         assertNull(helper.getCachedStatus(TEST_DUMMY_STATUS_ID_1));
         assertNull(helper.getCachedStatus(TEST_DUMMY_STATUS_ID_2));
-        assertNull(helper.getCachedStatus(3));
         assertNotNull(helper.getCachedStatus(4));
 
         helper.deleteCachedStatuses(Collections.singletonList(4L));
@@ -130,6 +168,265 @@ public class CachedStatusesSQLiteOpenHelperTest {
         assertNull(helper.getCachedStatus(4));
     }
 
+    @Test
+    public void readDuringWriteTransactionTest() throws Exception {
+        CachedStatusesSQLiteOpenHelper writer = new CachedStatusesSQLiteOpenHelper(
+                ApplicationProvider.getApplicationContext(),
+                emptyAccessToken,
+                true
+        );
+        writer.addCachedStatus(generateStatus(TEST_DUMMY_STATUS_ID_1, TEST_DUMMY_STATUS_TEXT_0), false);
+        assertTrue(writer.getWritableDatabase().isWriteAheadLoggingEnabled());
+
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch readDone = new CountDownLatch(1);
+        Thread writeThread = new Thread(() -> {
+            SQLiteDatabase database = writer.getWritableDatabase();
+            database.beginTransaction();
+            try {
+                SQLiteStatement statement = database.compileStatement(
+                        "insert or replace into CachedStatuses(id,text) values(?,?)"
+                );
+                for (long id = 100; id < 10100; id++) {
+                    statement.bindLong(1, id);
+                    statement.bindString(2, TEST_DUMMY_STATUS_TEXT_1);
+                    statement.execute();
+                }
+                writing.countDown();
+                readDone.await(10, TimeUnit.SECONDS);
+                database.setTransactionSuccessful();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                database.endTransaction();
+            }
+        });
+        writeThread.start();
+        assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+        // The write transaction is still open here, the reader sees the last committed state
+        long start = System.nanoTime();
+        StatusObject status = writer.getCachedStatus(TEST_DUMMY_STATUS_ID_1);
+        long readTime = System.nanoTime() - start;
+        assertNull(writer.getCachedStatus(100));
+        readDone.countDown();
+
+        writeThread.join();
+        assertEquals(((Status) status).getText(), TEST_DUMMY_STATUS_TEXT_0);
+        assertTrue(readTime < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(10001, DatabaseUtils.queryNumEntries(writer.getReadableDatabase(), "CachedStatuses"));
+
+        writer.getWritableDatabase().delete("CachedStatuses", null, null);
+        writer.close();
+    }
+
+    @Test
+    public void singleRowReadBenchmark() {
+        CachedStatusesSQLiteOpenHelper closing = new CachedStatusesSQLiteOpenHelper(
+                ApplicationProvider.getApplicationContext(),
+                emptyAccessToken,
+                false
+        );
+        CachedStatusesSQLiteOpenHelper keeping = new CachedStatusesSQLiteOpenHelper(
+                ApplicationProvider.getApplicationContext(),
+                emptyAccessToken,
+                true
+        );
+        keeping.addCachedStatus(generateStatus(TEST_DUMMY_STATUS_ID_1, TEST_DUMMY_STATUS_TEXT_0), false);
+
+        // The keeping helper reads with the same connection, the closing one closes it after each read
+        SQLiteDatabase keepingDatabase = keeping.getReadableDatabase();
+        SQLiteDatabase closingDatabase = closing.getReadableDatabase();
+        assertNotNull(keeping.getCachedStatus(TEST_DUMMY_STATUS_ID_1));
+        assertNotNull(closing.getCachedStatus(TEST_DUMMY_STATUS_ID_1));
+        assertTrue(keepingDatabase.isOpen());
+        assertFalse(closingDatabase.isOpen());
+
+        int reads = 2000;
+        long closingTime = readRepeatedly(closing, reads);
+        long keepingTime = readRepeatedly(keeping, reads);
+        System.out.println(
+                "Single-row read: " + closingTime / reads + " ns with open/close per call, "
+                        + keepingTime / reads + " ns with a connection kept open"
+        );
+        assertTrue(keepingDatabase.isOpen());
+        assertSame(keepingDatabase, keeping.getReadableDatabase());
+
+        closing.close();
+        keeping.close();
+        assertFalse(keepingDatabase.isOpen());
+    }
+
+    @Test
+    public void bulkWriteBenchmark() {
+        helper.getWritableDatabase().delete("CachedStatuses", null, null);
+
+        int rows = 1000;
+        List<StatusObject> statuses = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            statuses.add(generateStatus(100L + i, TEST_DUMMY_STATUS_TEXT_0));
+        }
+        // Warm up
+        assertEquals(rows, helper.addCachedStatuses(statuses, false));
+
+        // Changed content, so that no row is skipped as unchanged
+        List<StatusObject> changedStatuses = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            changedStatuses.add(generateStatus(100L + i, TEST_DUMMY_STATUS_TEXT_1));
+        }
+        long start = System.nanoTime();
+        int written = helper.addCachedStatuses(changedStatuses, false);
+        long time = System.nanoTime() - start;
+        System.out.println("Bulk write: " + rows * 1_000_000_000L / time + " rows/s");
+
+        assertEquals(rows, written);
+        assertEquals(rows, DatabaseUtils.queryNumEntries(helper.getReadableDatabase(), "CachedStatuses"));
+        assertEquals(TEST_DUMMY_STATUS_TEXT_1, ((Status) helper.getCachedStatus(100L + rows - 1)).getText());
+        helper.close();
+    }
+
+    /**
+     * Replays refreshes of a timeline: each fetches the newest 40 statuses,
+     * of which 5 are new and 3 have a changed favorite count.
+     */
+    @Test
+    public void refreshTraceWriteAmplification() {
+        SQLiteDatabase database = helper.getWritableDatabase();
+        database.delete("CachedStatuses", null, null);
+        database.delete("Counts", null, null);
+
+        int pageSize = 40;
+        int newPerRefresh = 5;
+        int changedPerRefresh = 3;
+        int refreshes = 50;
+        Date createdAt = new Date();
+
+        List<Status> timeline = new ArrayList<>();
+        for (int i = 0; i < pageSize; i++) {
+            timeline.add(0, generateStatus(i, createdAt, 0));
+        }
+        helper.addCachedStatuses(timeline, new int[pageSize]);
+
+        int offered = 0;
+        int changed = 0;
+        int written = 0;
+        for (int refresh = 0; refresh < refreshes; refresh++) {
+            for (int i = 0; i < newPerRefresh; i++) {
+                timeline.add(0, generateStatus(timeline.get(0).getId() + 1, createdAt, 0));
+            }
+            for (int i = 0; i < changedPerRefresh; i++) {
+                int index = newPerRefresh + (refresh + i * 11) % (pageSize - newPerRefresh);
+                Status old = timeline.get(index);
+                timeline.set(index, generateStatus(old.getId(), createdAt, old.getFavoriteCount() + 1));
+            }
+            List<Status> page = timeline.subList(0, pageSize);
+
+            offered += pageSize;
+            changed += newPerRefresh + changedPerRefresh;
+            written += helper.addCachedStatuses(page, new int[pageSize]);
+        }
+
+        System.out.println(
+                "Refresh trace: " + changed + " of " + offered + " rows changed, write amplification "
+                        + (float) offered / changed + " before fingerprints, " + (float) written / changed + " after"
+        );
+        // Only the new and changed rows are written, not every offered row
+        assertEquals(changed, written);
+        assertTrue(written < offered);
+        Status changedStatus = timeline.get(newPerRefresh + (refreshes - 1) % (pageSize - newPerRefresh));
+        assertEquals(
+                changedStatus.getFavoriteCount(),
+                ((Status) helper.getCachedStatus(changedStatus.getId())).getFavoriteCount()
+        );
+        helper.close();
+    }
+
+    @Test
+    public void idsInUseBenchmark() {
+        SQLiteDatabase database = helper.getWritableDatabase();
+        database.delete("CachedStatuses", null, null);
+
+        // 1000 timeline ids repeating statuses which quote other statuses
+        int count = 1000;
+        List<Long> ids = new ArrayList<>(count);
+        SQLiteStatement statement = database.compileStatement(
+                "insert into CachedStatuses(id,repeatedStatusId,quotedStatusId) values(?,?,?)"
+        );
+        database.beginTransaction();
+        for (long id = 1; id <= count; id++) {
+            ids.add(id);
+            insertReference(statement, id, id + count, -1L);
+            insertReference(statement, id + count, -1L, id + count * 2);
+            insertReference(statement, id + count * 2, -1L, -1L);
+        }
+        database.setTransactionSuccessful();
+        database.endTransaction();
+
+        long perIdStart = System.nanoTime();
+        Set<Long> perIdResult = idsInUseByOneQueryPerId(database, ids);
+        long perIdTime = System.nanoTime() - perIdStart;
+
+        long batchedStart = System.nanoTime();
+        Collection<Long> result = helper.getIdsInUse(ids);
+        long batchedTime = System.nanoTime() - batchedStart;
+
+        System.out.println(
+                "Ids in use of " + count + " ids: " + perIdTime / 1000000 + " ms with one query per id, "
+                        + batchedTime / 1000000 + " ms with batched levels"
+        );
+        // The repeated and the quoted status of each id
+        assertEquals(count * 2, result.size());
+        assertEquals(perIdResult, new HashSet<>(result));
+        helper.close();
+    }
+
+    private static void insertReference(SQLiteStatement statement, long id, long repeatedStatusId, long quotedStatusId) {
+        statement.bindLong(1, id);
+        statement.bindLong(2, repeatedStatusId);
+        statement.bindLong(3, quotedStatusId);
+        statement.execute();
+    }
+
+    /**
+     * Same access pattern as the implementation before batching.
+     */
+    private static Set<Long> idsInUseByOneQueryPerId(SQLiteDatabase database, List<Long> ids) {
+        Set<Long> found = new HashSet<>();
+        List<Long> level = ids;
+        while (!level.isEmpty()) {
+            List<Long> nextLevel = new ArrayList<>();
+            for (long id : level) {
+                Cursor c = database.rawQuery(
+                        "select repeatedStatusId,quotedStatusId from CachedStatuses where id=" + id, null
+                );
+                if (c.moveToFirst()) {
+                    long referredId = c.getLong(0) != -1L ? c.getLong(0) : c.getLong(1);
+                    if (referredId != -1L) {
+                        nextLevel.add(referredId);
+                    }
+                }
+                c.close();
+            }
+            found.addAll(nextLevel);
+            level = nextLevel;
+        }
+        return found;
+    }
+
+    private static long readRepeatedly(CachedStatusesSQLiteOpenHelper helper, int count) {
+        // Warm up
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(helper.getCachedStatus(TEST_DUMMY_STATUS_ID_1));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            StatusObject status = helper.getCachedStatus(TEST_DUMMY_STATUS_ID_1);
+            assertEquals(TEST_DUMMY_STATUS_TEXT_0, ((Status) status).getText());
+        }
+        return System.nanoTime() - start;
+    }
+
     private static Map<Long, Pair<Long, Long>> data = MapsKt.mapOf(
             new Pair<>(1L, new Pair<>(-1L, -1L)),
             new Pair<>(2L, new Pair<>(-1L, 1L)),
@@ -159,11 +456,141 @@ public class CachedStatusesSQLiteOpenHelperTest {
         assertArrayEquals(new long[]{1L, 2L, 3L, 4L}, ArraysKt.toLongArray(result.toArray(new Long[0])));
     }
 
+    @Test
+    public void getPostsJoinsStatusesAndUsers() {
+        helper.getWritableDatabase().delete("CachedStatuses", null, null);
+
+        CachedUsersSQLiteOpenHelper users = new CachedUsersSQLiteOpenHelper(
+                ApplicationProvider.getApplicationContext(),
+                emptyAccessToken
+        );
+        users.addCachedUsers(Arrays.asList(generateUser(1L, "a"), generateUser(2L, "b")));
+
+        helper.addCachedStatuses(Arrays.asList(
+                generateStatus(TEST_DUMMY_STATUS_ID_1, TEST_DUMMY_STATUS_TEXT_0, 1L, -1L),
+                generateStatus(TEST_DUMMY_STATUS_ID_2, TEST_DUMMY_STATUS_TEXT_1, 2L, TEST_DUMMY_STATUS_ID_1),
+                new Repeat(new Date(), 10L, 1L, TEST_DUMMY_STATUS_ID_2)
+        ), false);
+
+        CachedIdListSQLiteOpenHelper idList = new CachedIdListSQLiteOpenHelper(
+                ApplicationProvider.getApplicationContext(),
+                emptyAccessToken,
+                "testPosts"
+        );
+        idList.getWritableDatabase().delete("IdList", null, null);
+        idList.insertIdsAtFirst(Arrays.asList(10L, -1L, TEST_DUMMY_STATUS_ID_1));
+
+        List<Post> posts = helper.getPosts("testPosts", 0, 10);
+        assertEquals(3, posts.size());
+
+        Post repeat = posts.get(0);
+        assertEquals(10L, repeat.getId());
+        assertEquals(10L, repeat.getRepeat().getId());
+        assertEquals("a", repeat.getRepeatedUser().getName());
+        assertEquals(TEST_DUMMY_STATUS_TEXT_1, repeat.getStatus().getText());
+        assertEquals("b", repeat.getUser().getName());
+        assertEquals(TEST_DUMMY_STATUS_TEXT_0, repeat.getQuotedRepeatingStatus().getText());
+        assertEquals("a", repeat.getQuotedRepeatingUser().getName());
+
+        assertNull(posts.get(1));
+
+        Post status = posts.get(2);
+        assertNull(status.getRepeat());
+        assertEquals(TEST_DUMMY_STATUS_TEXT_0, status.getStatus().getText());
+        assertEquals("a", status.getUser().getName());
+        assertNull(status.getQuotedRepeatingStatus());
+
+        List<Post> page = helper.getPosts("testPosts", 2, 10);
+        assertEquals(1, page.size());
+        assertEquals(TEST_DUMMY_STATUS_ID_1, page.get(0).getId());
+
+        idList.close();
+        users.close();
+        helper.close();
+    }
+
+    @Test
+    public void movesSeparateFilesOfReleasedVersions() {
+        helper.close();
+        Context context = ApplicationProvider.getApplicationContext();
+        File directory = new File(context.getCacheDir(), emptyAccessToken.getKeyString());
+        directory.mkdirs();
+        SQLiteDatabase.deleteDatabase(new File(directory, "Cache.db"));
+
+        // Same as version 7 of CachedStatuses.db
+        File statusesFile = new File(directory, "CachedStatuses.db");
+        SQLiteDatabase statuses = SQLiteDatabase.openOrCreateDatabase(statusesFile, null);
+        statuses.execSQL("create table CachedStatuses(createdAt,id integer primary key,userId,repeatedStatusId,text," +
+                "sourceName,sourceWebsite,inReplyToStatusId,inReplyToUserId,isFavorited,isRepeated,favoriteCount," +
+                "repeatCount,repliesCount,inReplyToScreenName,isSensitive,lang,mentions,urls_urls,urls_starts,urls_ends," +
+                "medias_thumbnail_urls,medias_original_urls,medias_download_video_urls,medias_types,quotedStatusId,url," +
+                "emojis_shortcodes,emojis_urls,contentWarning,visibility,card_title,card_description,card_url," +
+                "card_image_url,poll_id,poll_expiresAt,poll_expired,poll_multiple,poll_votesCount,poll_optionTitles," +
+                "poll_optionCounts,poll_voted)");
+        statuses.execSQL("create table Counts(id integer primary key,count integer default 0)");
+        statuses.execSQL("insert into CachedStatuses(createdAt,id,userId,repeatedStatusId,text,quotedStatusId,url," +
+                "mentions,urls_urls,urls_starts,urls_ends,poll_id) " +
+                "values(0,1,2,-1,'text',-1,'','a,b','https://example.com','0','5',-1)");
+        statuses.execSQL("insert into Counts(id,count) values(1,1)");
+        statuses.setVersion(7);
+        statuses.close();
+
+        // Same as version 3 of CachedUsers.db
+        File usersFile = new File(directory, "CachedUsers.db");
+        SQLiteDatabase users = SQLiteDatabase.openOrCreateDatabase(usersFile, null);
+        users.execSQL("create table CachedUsers(id integer primary key,name,screenName,location,description," +
+                "profileImageURLHttps,url,isProtected,followersCount,friendsCount,createdAt,favoritesCount," +
+                "profileBannerImageUrl,statusesCount,isVerified,urls_urls,urls_starts,urls_ends," +
+                "Emoji_shortcodes,Emoji_urls)");
+        users.execSQL("insert into CachedUsers(id,name,screenName,description,createdAt) values(2,'name','sn','',0)");
+        users.setVersion(3);
+        users.close();
+
+        helper = new CachedStatusesSQLiteOpenHelper(context, emptyAccessToken);
+        CachedUsersSQLiteOpenHelper usersHelper = new CachedUsersSQLiteOpenHelper(context, emptyAccessToken);
+
+        Status status = (Status) helper.getCachedStatus(1);
+        assertNotNull(status);
+        assertEquals("text", status.getText());
+        assertArrayEquals(new String[]{"a", "b"}, status.getMentions());
+        assertEquals("https://example.com", status.getUrls()[0].getUrl());
+        assertEquals(1, DatabaseUtils.longForQuery(helper.getReadableDatabase(), "select count from Counts where id=1", null));
+        assertEquals("name", usersHelper.getCachedUser(2).getName());
+        assertFalse(statusesFile.exists());
+        assertFalse(usersFile.exists());
+
+        usersHelper.close();
+        helper.close();
+    }
+
     private static Status generateStatus(final long testId, final String testText) {
+        return generateStatus(testId, testText, new Date(), 0);
+    }
+
+    private static Status generateStatus(final long testId, final Date createdAt, final int favoriteCount) {
+        return generateStatus(testId, TEST_DUMMY_STATUS_TEXT_0, createdAt, favoriteCount);
+    }
+
+    private static Status generateStatus(final long testId, final String testText, final Date createdAt, final int favoriteCount) {
+        return generateStatus(testId, testText, createdAt, favoriteCount, 0, 0);
+    }
+
+    private static Status generateStatus(final long testId, final String testText, final long userId, final long quotedStatusId) {
+        return generateStatus(testId, testText, new Date(), 0, userId, quotedStatusId);
+    }
+
+    private static Status generateStatus(
+            final long testId,
+            final String testText,
+            final Date createdAt,
+            final int favoriteCount,
+            final long userId,
+            final long quotedStatusId
+    ) {
         return new Status(
-                new Date(),
+                createdAt,
                 testId,
-                0,
+                userId,
                 testText,
                 null,
                 null,
@@ -172,7 +599,7 @@ public class CachedStatusesSQLiteOpenHelperTest {
                 "",
                 false,
                 false,
-                0,
+                favoriteCount,
                 0,
                 0,
                 false,
@@ -180,7 +607,7 @@ public class CachedStatusesSQLiteOpenHelperTest {
                 null,
                 null,
                 null,
-                0,
+                quotedStatusId,
                 "",
                 "",
                 null,
@@ -189,4 +616,26 @@ public class CachedStatusesSQLiteOpenHelperTest {
                 null
         );
     }
+
+    private static User generateUser(final long testId, final String testName) {
+        return new User(
+                testId,
+                testName,
+                "",
+                "",
+                null,
+                null,
+                "",
+                new Date(),
+                "",
+                false,
+                false,
+                0,
+                0,
+                0,
+                0,
+                "",
+                ""
+        );
+    }
 }
\ No newline at end of file
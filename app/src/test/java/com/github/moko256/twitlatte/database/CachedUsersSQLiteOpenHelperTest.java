@@ -25,10 +25,13 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 import static com.github.moko256.twitlatte.testutils.EmptyAccessTokenKt.emptyAccessToken;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
 /**
@@ -46,6 +49,8 @@ public class CachedUsersSQLiteOpenHelperTest {
 
     private static final long TEST_DUMMY_USER_ID_1 = 1L;
     private static final long TEST_DUMMY_USER_ID_2 = 2L;
+    private static final long TEST_DUMMY_USER_ID_3 = 3L;
+    private static final long TEST_DUMMY_USER_ID_4 = 4L;
 
     private static final String TEST_DUMMY_USER_NAME_0 = "0";
     private static final String TEST_DUMMY_USER_NAME_1 = "1";
@@ -58,6 +63,9 @@ public class CachedUsersSQLiteOpenHelperTest {
         updateCacheTest();
         removeCacheTest();
         addUsersTest();
+        getUsersTest();
+        skipUnchangedUsersTest();
+        deleteUnreferencedUsersTest();
         helper.close();
     }
 
@@ -91,6 +99,51 @@ public class CachedUsersSQLiteOpenHelperTest {
         assertEquals(helper.getCachedUser(TEST_DUMMY_USER_ID_2).getName(), TEST_DUMMY_USER_NAME_1);
     }
 
+    private void getUsersTest() {
+        List<User> users = helper.getCachedUsers(new long[]{TEST_DUMMY_USER_ID_1, TEST_DUMMY_USER_ID_2, 99L});
+
+        assertEquals(2, users.size());
+    }
+
+    private void skipUnchangedUsersTest() {
+        User user = helper.getCachedUser(TEST_DUMMY_USER_ID_2);
+
+        assertEquals(0, helper.addCachedUsers(Collections.singletonList(user)));
+        assertEquals(1, helper.addCachedUsers(Arrays.asList(
+                user,
+                generateUser(TEST_DUMMY_USER_ID_1, TEST_DUMMY_USER_NAME_1))
+        ));
+        assertEquals(helper.getCachedUser(TEST_DUMMY_USER_ID_1).getName(), TEST_DUMMY_USER_NAME_1);
+    }
+
+    private void deleteUnreferencedUsersTest() {
+        helper.getWritableDatabase().delete("CachedStatuses", null, null);
+        insertStatusOf(TEST_DUMMY_USER_ID_2);
+        helper.addCachedUsers(Arrays.asList(
+                generateUser(TEST_DUMMY_USER_ID_3, TEST_DUMMY_USER_NAME_0),
+                generateUser(TEST_DUMMY_USER_ID_4, TEST_DUMMY_USER_NAME_0)
+        ));
+
+        assertEquals(Long.valueOf(TEST_DUMMY_USER_ID_2), helper.deleteUnreferencedUsers(TEST_DUMMY_USER_ID_4, Long.MIN_VALUE, 2));
+        // Written between the batches, as a refresh does while the compactor runs
+        insertStatusOf(TEST_DUMMY_USER_ID_3);
+        assertEquals(Long.valueOf(TEST_DUMMY_USER_ID_4), helper.deleteUnreferencedUsers(TEST_DUMMY_USER_ID_4, TEST_DUMMY_USER_ID_2, 2));
+        assertNull(helper.deleteUnreferencedUsers(TEST_DUMMY_USER_ID_4, TEST_DUMMY_USER_ID_4, 2));
+
+        assertNull(helper.getCachedUser(TEST_DUMMY_USER_ID_1));
+        assertEquals(helper.getCachedUser(TEST_DUMMY_USER_ID_2).getName(), TEST_DUMMY_USER_NAME_1);
+        assertNotNull(helper.getCachedUser(TEST_DUMMY_USER_ID_3));
+        assertNotNull(helper.getCachedUser(TEST_DUMMY_USER_ID_4));
+
+        helper.getWritableDatabase().delete("CachedStatuses", null, null);
+    }
+
+    private void insertStatusOf(long userId) {
+        helper.getWritableDatabase().execSQL(
+                "insert into CachedStatuses(id,userId,repeatedStatusId) values(" + userId + "," + userId + ",-1)"
+        );
+    }
+
     private static User generateUser(final long testId, final String testName) {
         return new User(
                 testId,
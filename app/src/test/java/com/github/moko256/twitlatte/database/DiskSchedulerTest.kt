@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database
+
+import com.github.moko256.twitlatte.metrics.METRICS_DISK_WRITES
+import com.github.moko256.twitlatte.metrics.MetricsRegistry
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class DiskSchedulerTest {
+
+    @Test
+    fun testWritesToOneFileAreSerialized() {
+        val running = AtomicInteger()
+        val maxRunning = AtomicInteger()
+        val done = CountDownLatch(20)
+
+        repeat(20) {
+            DiskScheduler.writeExecutor("serialized").execute {
+                val count = running.incrementAndGet()
+                maxRunning.accumulateAndGet(count) { a, b -> maxOf(a, b) }
+                Thread.sleep(1)
+                running.decrementAndGet()
+                done.countDown()
+            }
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS))
+        assertEquals(1, maxRunning.get())
+    }
+
+    @Test
+    fun testWritesToDifferentFilesRunInParallel() {
+        val otherStarted = CountDownLatch(1)
+
+        // Would time out if "other" waited for "blocking"
+        val blocking = DiskScheduler.runWrite("blocking") {
+            DiskScheduler.writeExecutor("other").execute { otherStarted.countDown() }
+            otherStarted.await(5, TimeUnit.SECONDS)
+        }
+        assertTrue(blocking)
+    }
+
+    @Test
+    fun testRunWriteOnWriter() {
+        val result = DiskScheduler.runWrite("nested") {
+            // Run here, or this would wait for itself forever
+            DiskScheduler.runWrite("nested") { 1 } + 1
+        }
+        assertEquals(2, result)
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun testRunWriteThrows() {
+        DiskScheduler.runWrite<Unit>("throws") {
+            throw IllegalStateException()
+        }
+    }
+
+    @Test
+    fun testMetrics() {
+        val metrics = MetricsRegistry.scheduler(METRICS_DISK_WRITES)
+        val waitsBefore = metrics.waitTimes.count()
+        val blocker = CountDownLatch(1)
+
+        DiskScheduler.writeExecutor("metrics").execute { blocker.await(5, TimeUnit.SECONDS) }
+        DiskScheduler.writeExecutor("metrics").execute { }
+        assertTrue(metrics.maxQueueDepth.get() >= 1)
+
+        blocker.countDown()
+        DiskScheduler.runWrite("metrics") { }
+        assertTrue(metrics.waitTimes.count() >= waitsBefore + 3)
+        assertEquals(0, metrics.queueDepth.get())
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.io.File
+
+class IdListSnapshotTest {
+
+    @Test
+    fun testWriteAndMap() {
+        val file = File.createTempFile("IdListSnapshotTest", ".ids")
+        val snapshot = IdListSnapshot(file)
+
+        val ids = listOf(Long.MAX_VALUE, 10L, -1L, 1L)
+        snapshot.write(ids)
+        val buffer = snapshot.map()!!
+        assertEquals(ids.size, buffer.limit())
+        assertEquals(ids, List(buffer.limit()) { buffer.get(it) })
+
+        snapshot.write(emptyList())
+        assertEquals(0, snapshot.map()!!.limit())
+
+        snapshot.invalidate()
+        assertNull(snapshot.map())
+    }
+
+    @Test
+    fun testBrokenFile() {
+        val file = File.createTempFile("IdListSnapshotTest", ".ids")
+        IdListSnapshot(file).write(listOf(1L, 2L))
+        file.writeBytes(file.readBytes().copyOf(20))
+
+        assertNull(IdListSnapshot(file).map())
+        file.delete()
+    }
+}
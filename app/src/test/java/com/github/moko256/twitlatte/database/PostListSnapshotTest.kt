@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database
+
+import com.github.moko256.latte.client.base.entity.Card
+import com.github.moko256.latte.client.base.entity.Emoji
+import com.github.moko256.latte.client.base.entity.Media
+import com.github.moko256.latte.client.base.entity.Poll
+import com.github.moko256.latte.client.base.entity.Post
+import com.github.moko256.latte.client.base.entity.Repeat
+import com.github.moko256.latte.client.base.entity.Status
+import com.github.moko256.latte.client.base.entity.User
+import com.github.moko256.latte.html.entity.Link
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.io.DataOutputStream
+import java.io.File
+import java.util.Date
+
+class PostListSnapshotTest {
+
+    @Test
+    fun testWriteAndRead() {
+        val file = File.createTempFile("PostListSnapshotTest", ".posts")
+        val snapshot = PostListSnapshot(file)
+
+        val user = User(
+                1, "name", "screen_name", "description",
+                arrayOf(Link("https://example.com", 0, 19)), arrayOf(Emoji("a", "https://example.com/a.png")),
+                null, Date(1000), null,
+                false, true,
+                1, 2, 3, 4,
+                null, "https://example.com/icon.png"
+        )
+        val quote = Status(
+                Date(2000), 20, 1, "quoted", null, null, -1, -1, null,
+                false, false, 0, 0, 0, false, null,
+                null, null, arrayOf(Media(null, "https://example.com/1.png", null, "picture")),
+                -1, "https://example.com/20", null, null, null,
+                Card("title", "", "https://example.com/card", null),
+                Poll(5, null, false, true, 10, listOf("a", "b"), listOf(3, 7), true)
+        )
+        val status = quote.copy(id = 10, text = "quoting", quotedStatusId = 20, card = null, poll = null)
+        val posts = listOf(
+                Post(30, Repeat(Date(3000), 30, 1, 10), user, status, user, quote, user),
+                Post(10, status = status, user = user)
+        )
+
+        snapshot.write(posts)
+        val read = snapshot.read()!!
+
+        assertEquals(2, read.size)
+        assertEquals(10L, read[0].repeat!!.repeatedStatusId)
+        assertEquals("quoting", read[0].status!!.text)
+        assertEquals(20L, read[0].status!!.quotedStatusId)
+        assertEquals(quote.card, read[0].quotedRepeatingStatus!!.card)
+        assertEquals(quote.poll.toString(), read[0].quotedRepeatingStatus!!.poll.toString())
+        assertArrayEquals(quote.medias, read[0].quotedRepeatingStatus!!.medias)
+        assertEquals(user.screenName, read[0].quotedRepeatingUser!!.screenName)
+        assertArrayEquals(user.descriptionLinks, read[0].user!!.descriptionLinks)
+        assertEquals(4, read[0].repeatedUser!!.friendsCount)
+        assertNull(read[1].repeat)
+        assertNull(read[1].quotedRepeatingStatus)
+
+        snapshot.delete()
+        assertNull(snapshot.read())
+    }
+
+    @Test
+    fun testReadCorruptFile() {
+        val file = File.createTempFile("PostListSnapshotTest", ".posts")
+        val snapshot = PostListSnapshot(file)
+        val post = Post(10, status = Status(
+                Date(2000), 10, 1, "text", null, null, -1, -1, null,
+                false, false, 0, 0, 0, false, null,
+                null, null, null,
+                -1, "https://example.com/10", null, null, null,
+                null, null
+        ))
+        snapshot.write(listOf(post))
+        val valid = file.readBytes()
+
+        // Truncated
+        file.writeBytes(valid.copyOf(valid.size - 3))
+        assertNull(snapshot.read())
+        assertFalse(file.exists())
+
+        // Trailing bytes
+        file.writeBytes(valid + 0)
+        assertNull(snapshot.read())
+        assertFalse(file.exists())
+
+        // Unknown header
+        file.writeBytes(byteArrayOf(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12))
+        assertNull(snapshot.read())
+        assertFalse(file.exists())
+
+        // Too many posts, and a string of a huge length
+        writeHeader(file, Int.MAX_VALUE)
+        assertNull(snapshot.read())
+        writeHeader(file, 1) {
+            writeLong(10)
+            writeByte(1 shl 2)
+            writeLong(2000)
+            writeLong(10)
+            writeLong(1)
+            writeInt(Int.MAX_VALUE)
+        }
+        assertNull(snapshot.read())
+
+        // A null string where a string is required
+        writeHeader(file, 1) {
+            writeLong(10)
+            writeByte(1 shl 2)
+            writeLong(2000)
+            writeLong(10)
+            writeLong(1)
+            writeInt(-1)
+            repeat(64) { writeInt(0) }
+        }
+        assertNull(snapshot.read())
+        assertFalse(file.exists())
+
+        snapshot.write(listOf(post))
+        assertEquals("text", snapshot.read()!![0].status!!.text)
+        snapshot.delete()
+    }
+
+    private fun writeHeader(file: File, size: Int, body: DataOutputStream.() -> Unit = {}) {
+        DataOutputStream(file.outputStream()).use {
+            it.writeInt(0x504f5354)
+            it.writeInt(1)
+            it.writeInt(size)
+            it.body()
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015-2019 The twitlatte authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.moko256.twitlatte.database
+
+import com.github.moko256.latte.client.base.entity.Emoji
+import com.github.moko256.latte.client.base.entity.Media
+import com.github.moko256.latte.html.entity.Link
+import com.github.moko256.twitlatte.text.splitWithComma
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.net.URLDecoder
+import java.net.URLEncoder
+
+class StatusEntitiesTest {
+
+    @Test
+    fun testRoundTrip() {
+        val entities = StatusEntities(
+                mentions = arrayOf("a", "b,c"),
+                urls = arrayOf(Link("https://example.com/a,b", 3, 10), Link("日本語", 0, 2000)),
+                medias = arrayOf(
+                        Media(null, "https://example.com/1.png", null, "picture"),
+                        Media("thumb", "original", "video", "video_one")
+                ),
+                emojis = emptyArray(),
+                pollOptionTitles = listOf("yes, please", ""),
+                pollOptionCounts = listOf(0, 300)
+        )
+        val decoded = StatusEntities.decode(entities.encode())
+
+        assertArrayEquals(entities.mentions, decoded.mentions)
+        assertArrayEquals(entities.urls, decoded.urls)
+        assertArrayEquals(entities.medias, decoded.medias)
+        assertArrayEquals(entities.emojis, decoded.emojis)
+        assertEquals(entities.pollOptionTitles, decoded.pollOptionTitles)
+        assertEquals(entities.pollOptionCounts, decoded.pollOptionCounts)
+    }
+
+    @Test
+    fun testEmpty() {
+        assertNull(StatusEntities.EMPTY.encode())
+
+        val decoded = StatusEntities.decode(null)
+        assertNull(decoded.mentions)
+        assertNull(decoded.urls)
+        assertNull(decoded.medias)
+        assertNull(decoded.emojis)
+        assertNull(decoded.pollOptionTitles)
+    }
+
+    @Test
+    fun decodeBenchmark() {
+        val urls = Array(4) { Link("https://example.com/$it", it * 30, it * 30 + 23) }
+        val medias = Array(4) { Media("https://example.com/$it:small", "https://example.com/$it", null, "picture") }
+        val emojis = Array(4) { Emoji("emoji_$it", "https://example.com/emoji/$it.png") }
+        val titles = List(4) { "option $it" }
+        val counts = List(4) { it * 100 }
+
+        val legacy = arrayOf(
+                urls.joinToString(",") { it.url },
+                urls.joinToString(",") { it.start.toString() },
+                urls.joinToString(",") { it.end.toString() },
+                medias.joinToString(",") { it.thumbnailUrl.toString() },
+                medias.joinToString(",") { it.originalUrl },
+                medias.joinToString(",") { it.downloadVideoUrl.toString() },
+                medias.joinToString(",") { it.mediaType },
+                emojis.joinToString(",") { it.shortCode },
+                emojis.joinToString(",") { it.url },
+                titles.joinToString(",") { URLEncoder.encode(it, "utf-8") },
+                counts.joinToString(",")
+        )
+        val blob = StatusEntities(null, urls, medias, emojis, titles, counts).encode()
+
+        // Both formats hold the same entities
+        val legacyEntities = decodeLegacy(legacy)
+        val blobEntities = StatusEntities.decode(blob)
+        assertArrayEquals(legacyEntities.urls, blobEntities.urls)
+        assertArrayEquals(legacyEntities.medias, blobEntities.medias)
+        assertArrayEquals(legacyEntities.emojis, blobEntities.emojis)
+        assertEquals(legacyEntities.pollOptionTitles, blobEntities.pollOptionTitles)
+        assertEquals(legacyEntities.pollOptionCounts, blobEntities.pollOptionCounts)
+
+        val rows = 20000
+        // Warm up
+        repeat(rows) {
+            decodeLegacy(legacy)
+            StatusEntities.decode(blob)
+        }
+
+        var legacyCount = 0L
+        val legacyStart = System.nanoTime()
+        repeat(rows) { legacyCount += countEntities(decodeLegacy(legacy)) }
+        val legacyTime = System.nanoTime() - legacyStart
+
+        var blobCount = 0L
+        val blobStart = System.nanoTime()
+        repeat(rows) { blobCount += countEntities(StatusEntities.decode(blob)) }
+        val blobTime = System.nanoTime() - blobStart
+
+        println(
+                "List columns decode: ${rows * 1_000_000_000L / legacyTime} rows/s comma-joined, " +
+                        "${rows * 1_000_000_000L / blobTime} rows/s blob " +
+                        "(${legacy.sumBy { it.length }} chars vs ${blob!!.size} bytes per row)"
+        )
+        assertEquals(rows * 20L, legacyCount)
+        assertEquals(legacyCount, blobCount)
+    }
+
+    private fun countEntities(entities: StatusEntities): Int {
+        return entities.urls!!.size +
+                entities.medias!!.size +
+                entities.emojis!!.size +
+                entities.pollOptionTitles!!.size +
+                entities.pollOptionCounts!!.size
+    }
+
+    /**
+     * Same parsing as convertCursorToStatusObject did until version 7.
+     */
+    private fun decodeLegacy(columns: Array<String>): StatusEntities {
+        val urls = columns[0].splitWithComma()!!
+        val starts = columns[1].splitWithComma()!!.map { it.toInt() }
+        val ends = columns[2].splitWithComma()!!.map { it.toInt() }
+        val links = Array(urls.size) { Link(urls[it], starts[it], ends[it]) }
+
+        val thumbnails = columns[3].splitWithComma()!!
+        val originals = columns[4].splitWithComma()!!
+        val videos = columns[5].splitWithComma()!!
+        val types = columns[6].splitWithComma()!!
+        val medias = Array(types.size) {
+            Media(thumbnails[it].takeIf { s -> s != "null" }, originals[it], videos[it].takeIf { s -> s != "null" }, types[it])
+        }
+
+        val shortCodes = columns[7].splitWithComma()!!
+        val emojiUrls = columns[8].splitWithComma()!!
+        val emojis = Array(shortCodes.size) { Emoji(shortCodes[it], emojiUrls[it]) }
+
+        val titles = columns[9].splitWithComma()!!.map { URLDecoder.decode(it, "utf-8") }
+        val counts = columns[10].splitWithComma()!!.map { it.toInt() }
+
+        return StatusEntities(null, links, medias, emojis, titles, counts)
+    }
+}
@@ -73,6 +73,11 @@ interface ApiClient {
 
     fun getCustomEmojis(): List<Emoji>
 
+    /**
+     * Gets custom emojis only if they were modified since [validator] was returned.
+     */
+    fun getCustomEmojis(validator: CacheValidator?): ConditionalResponse<List<Emoji>>
+
     fun uploadMedia(inputStream: InputStream, name: String, type: String): Long
     fun postStatus(updateStatus: UpdateStatus)
 
@@ -28,7 +28,9 @@ import com.sys1yagi.mastodon4j.api.method.Media
 import okhttp3.MediaType
 import okhttp3.MultipartBody
 import okhttp3.OkHttpClient
+import okhttp3.Request
 import java.io.InputStream
+import com.sys1yagi.mastodon4j.api.entity.Emoji as MastodonEmoji
 
 /**
  * Created by moko256 on 2018/11/30.
@@ -37,7 +39,11 @@ import java.io.InputStream
  */
 const val CLIENT_TYPE_MASTODON = 1
 
-class MastodonApiClientImpl(okHttpClient: OkHttpClient, url: String, token: String) : ApiClient {
+class MastodonApiClientImpl(
+        private val okHttpClient: OkHttpClient,
+        private val url: String,
+        token: String
+) : ApiClient {
 
     private val client: MastodonClient = MastodonClient
             .Builder(url, okHttpClient.newBuilder(), gson)
@@ -225,6 +231,41 @@ class MastodonApiClientImpl(okHttpClient: OkHttpClient, url: String, token: Stri
         }
     }
 
+    override fun getCustomEmojis(validator: CacheValidator?): ConditionalResponse<List<Emoji>> {
+        // Called directly because mastodon4j does not expose headers of responses
+        val request = Request.Builder()
+                .url("https://$url/api/v1/custom_emojis")
+                .apply {
+                    validator?.etag?.let { header("If-None-Match", it) }
+                    validator?.lastModified?.let { header("If-Modified-Since", it) }
+                }
+                .build()
+
+        okHttpClient.newCall(request).execute().use { response ->
+            if (response.code() == 304) {
+                return ConditionalResponse(
+                        null,
+                        CacheValidator(
+                                response.header("ETag") ?: validator?.etag,
+                                response.header("Last-Modified") ?: validator?.lastModified
+                        )
+                )
+            }
+
+            val body = response.body()
+            if (!response.isSuccessful || body == null) {
+                throw Exception(response.getErrorMessage())
+            }
+
+            return ConditionalResponse(
+                    gson.fromJson(body.charStream(), Array<MastodonEmoji>::class.java).map {
+                        Emoji(it.shortcode, it.staticUrl)
+                    },
+                    CacheValidator(response.header("ETag"), response.header("Last-Modified"))
+            )
+        }
+    }
+
     override fun uploadMedia(inputStream: InputStream, name: String, type: String): Long {
         return Media(client)
                 .postMedia(
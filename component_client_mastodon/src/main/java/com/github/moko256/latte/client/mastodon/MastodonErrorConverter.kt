@@ -21,6 +21,7 @@ import com.google.gson.JsonParseException
 import com.google.gson.annotations.SerializedName
 import com.sys1yagi.mastodon4j.MastodonRequest
 import com.sys1yagi.mastodon4j.api.exception.Mastodon4jRequestException
+import okhttp3.Response
 
 /**
  * Created by moko256 on 2018/12/08.
@@ -33,21 +34,21 @@ internal fun <T : Any> MastodonRequest<T>.executeAndConvertError(): T {
         return execute()
     } catch (e: Mastodon4jRequestException) {
         throw Exception(
-                e.response?.use { response ->
-
-                    response.body()?.use { body ->
-                        try {
-                            gson.fromJson(body.charStream(), Error::class.java).error
-                        } catch (e: JsonParseException) {
-                            body.string()
-                        }
-                    } ?: response.message()
-
-                } ?: e.toString(), e
+                e.response?.use { it.getErrorMessage() } ?: e.toString(), e
         )
     }
 }
 
+internal fun Response.getErrorMessage(): String {
+    return body()?.use { body ->
+        try {
+            gson.fromJson(body.charStream(), Error::class.java).error
+        } catch (e: JsonParseException) {
+            body.string()
+        }
+    } ?: message()
+}
+
 internal data class Error(
         @SerializedName("error") val error: String
 )
\ No newline at end of file
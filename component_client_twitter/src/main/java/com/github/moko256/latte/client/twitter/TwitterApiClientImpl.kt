@@ -202,6 +202,10 @@ class TwitterApiClientImpl(
         throw UnsupportedOperationException()
     }
 
+    override fun getCustomEmojis(validator: CacheValidator?): ConditionalResponse<List<Emoji>> {
+        throw UnsupportedOperationException()
+    }
+
     override fun uploadMedia(inputStream: InputStream, name: String, type: String): Long {
         return if (type.startsWith("video/")) {
             client.uploadMediaChunked(name, inputStream)